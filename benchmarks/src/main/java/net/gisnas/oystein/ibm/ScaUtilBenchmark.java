@@ -0,0 +1,146 @@
+package net.gisnas.oystein.ibm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of each stage of {@link ScaUtil#modifyWsImports(ImportEndpoint[], File, File)}
+ *
+ * Each stage is measured on its own, with the output of the earlier stages
+ * prepared in setup:
+ *
+ * findScaModule - find the SCA module jars in the EAR
+ *
+ * findWsImports - open the SCA modules and index their imports
+ *
+ * modifyEndpoints - read and rewrite the imports
+ *
+ * writeArchive - write the EAR with the rewritten imports
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScaUtilBenchmark {
+
+	@Param({ "20" })
+	public int jars;
+
+	@Param({ "1", "5" })
+	public int scaModules;
+
+	@Param({ "10" })
+	public int importsPerModule;
+
+	/** Number of imports to rewrite */
+	@Param({ "5" })
+	public int endpoints;
+
+	@Param({ "50" })
+	public int entriesPerJar;
+
+	@Param({ "1024", "65536" })
+	public int entrySize;
+
+	@Param({ "false", "true" })
+	public boolean storedJars;
+
+	private File earFile;
+	private File targetFile;
+	private ZipFile zipFile;
+	private RandomAccessFile earAccess;
+	private ZipDirectory ear;
+	private List<ZipDirectory.Entry> scaModuleEntries;
+	private ScaArchive archive;
+	private ImportEndpoint[] importEndpoints;
+	private Map<String, ImportSet> modifiedImports;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		earFile = File.createTempFile("ScaUtilBenchmark", ".ear");
+		targetFile = File.createTempFile("ScaUtilBenchmark", ".ear");
+		new SyntheticEar(jars, scaModules, importsPerModule, entriesPerJar, entrySize, storedJars).write(earFile);
+
+		zipFile = new ZipFile(earFile);
+		earAccess = new RandomAccessFile(earFile, "r");
+		ear = ZipDirectory.read(earAccess.getChannel(), 0, earAccess.length());
+		scaModuleEntries = ScaUtil.findScaModules(zipFile, ear);
+		archive = ScaUtil.openArchive(earFile);
+
+		importEndpoints = new ImportEndpoint[endpoints];
+		for (int i = 0; i < endpoints; i++) {
+			importEndpoints[i] = new ImportEndpoint();
+			importEndpoints[i].importName = SyntheticEar.importName(i);
+			importEndpoints[i].endpointUrl = "http://benchmark.example.org/" + i;
+		}
+		modifiedImports = ScaUtil.modifyEndpoints(archive.getScaModules(), importEndpoints);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		archive.close();
+		IOUtils.closeQuietly(earAccess);
+		IOUtils.closeQuietly(zipFile);
+		FileUtils.deleteQuietly(earFile);
+		FileUtils.deleteQuietly(targetFile);
+	}
+
+	@Benchmark
+	public int findScaModule() {
+		return ScaUtil.findScaModules(zipFile, ear).size();
+	}
+
+	@Benchmark
+	public int findWsImports() throws IOException {
+		List<ScaModule> modules = new ArrayList<>();
+		try {
+			int imports = 0;
+			for (ZipDirectory.Entry entry : scaModuleEntries) {
+				ScaModule module = ScaModule.open(zipFile, ear, entry);
+				modules.add(module);
+				imports += module.getImports().nameKeySet().size();
+			}
+			return imports;
+		} finally {
+			for (ScaModule module : modules) {
+				module.close();
+			}
+		}
+	}
+
+	@Benchmark
+	public int modifyEndpoints() {
+		return ScaUtil.modifyEndpoints(archive.getScaModules(), importEndpoints).size();
+	}
+
+	@Benchmark
+	public long writeArchive() {
+		ScaUtil.writeArchive(modifiedImports, archive.getScaModules(), archive.getDirectory(), targetFile);
+		return targetFile.length();
+	}
+
+}
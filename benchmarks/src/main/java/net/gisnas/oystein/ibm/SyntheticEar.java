@@ -0,0 +1,128 @@
+package net.gisnas.oystein.ibm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Generates EARs with a given number of nested jars, SCA modules and imports
+ *
+ * Jar n is an SCA module if n < scaModules, with importsPerModule web service
+ * imports named Import0, Import1, ... in each. All jars get entriesPerJar
+ * filler entries of entrySize bytes, half random and half zeros, so they
+ * deflate to about half their size. Content is reproducible.
+ */
+public class SyntheticEar {
+
+	private static final String IMPORT_TEMPLATE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<scdl:import xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xmlns:jaxws=\"http://www.ibm.com/xmlns/prod/websphere/scdl/jaxws/6.0.0\" xmlns:ns1=\"http://Synthetic/Echo\" xmlns:scdl=\"http://www.ibm.com/xmlns/prod/websphere/scdl/6.0.0\" xmlns:wsdl=\"http://www.ibm.com/xmlns/prod/websphere/scdl/wsdl/6.0.0\" displayName=\"%1$s\" name=\"%1$s\">\n"
+			+ "  <interfaces>\n"
+			+ "    <interface xsi:type=\"wsdl:WSDLPortType\" preferredInteractionStyle=\"sync\" portType=\"ns1:Echo\"/>\n"
+			+ "  </interfaces>\n"
+			+ "  <esbBinding xsi:type=\"jaxws:JaxWsImportBinding\" endpoint=\"http://localhost:9080/%1$s\" port=\"ns1:EchoHttpPort\" service=\"ns1:EchoHttpService\"/>\n"
+			+ "</scdl:import>\n";
+	private static final String MODULE_TEMPLATE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<scdl:module xmlns:scdl=\"http://www.ibm.com/xmlns/prod/websphere/scdl/6.0.0\" name=\"%s\"/>\n";
+
+	private final int jars;
+	private final int scaModules;
+	private final int importsPerModule;
+	private final int entriesPerJar;
+	private final int entrySize;
+	private final boolean storedJars;
+
+	/**
+	 * @param jars Number of nested jars, including SCA modules
+	 * @param scaModules Number of nested jars which are SCA modules
+	 * @param importsPerModule Number of .import files in each SCA module
+	 * @param entriesPerJar Number of filler entries in each jar
+	 * @param entrySize Size of each filler entry
+	 * @param storedJars true to store the nested jars in the EAR, false to
+	 *        deflate them
+	 */
+	public SyntheticEar(int jars, int scaModules, int importsPerModule, int entriesPerJar, int entrySize, boolean storedJars) {
+		if (scaModules > jars) {
+			throw new IllegalArgumentException("More SCA modules (" + scaModules + ") than jars (" + jars + ")");
+		}
+		this.jars = jars;
+		this.scaModules = scaModules;
+		this.importsPerModule = importsPerModule;
+		this.entriesPerJar = entriesPerJar;
+		this.entrySize = entrySize;
+		this.storedJars = storedJars;
+	}
+
+	/**
+	 * @return the name of import i, as written to every SCA module
+	 */
+	public static String importName(int i) {
+		return "Import" + i;
+	}
+
+	public void write(File earFile) throws IOException {
+		Random random = new Random(42);
+		ZipOutputStream ear = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(earFile)));
+		try {
+			ear.putNextEntry(new ZipEntry("META-INF/application.xml"));
+			ear.write("<application/>".getBytes("UTF-8"));
+			for (int i = 0; i < jars; i++) {
+				String name = i < scaModules ? "Module" + i : "lib/library" + i;
+				byte[] jar = createJar(name, i < scaModules, random);
+				ZipEntry entry = new ZipEntry(name + ".jar");
+				if (storedJars) {
+					CRC32 crc = new CRC32();
+					crc.update(jar);
+					entry.setMethod(ZipEntry.STORED);
+					entry.setSize(jar.length);
+					entry.setCrc(crc.getValue());
+				}
+				ear.putNextEntry(entry);
+				ear.write(jar);
+			}
+			ear.finish();
+		} finally {
+			IOUtils.closeQuietly(ear);
+		}
+	}
+
+	private byte[] createJar(String name, boolean scaModule, Random random) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream jar = new ZipOutputStream(bytes);
+		jar.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+		jar.write("Manifest-Version: 1.0\r\n".getBytes("UTF-8"));
+		byte[] filler = new byte[entrySize];
+		for (int i = 0; i < entriesPerJar; i++) {
+			random.nextBytes(filler);
+			for (int j = entrySize / 2; j < entrySize; j++) {
+				filler[j] = 0;
+			}
+			jar.putNextEntry(new ZipEntry("data/entry" + i + ".bin"));
+			jar.write(filler);
+		}
+		if (scaModule) {
+			jar.putNextEntry(new ZipEntry("sca.module"));
+			jar.write(String.format(MODULE_TEMPLATE, name).getBytes("UTF-8"));
+			for (int i = 0; i < importsPerModule; i++) {
+				jar.putNextEntry(new ZipEntry(importName(i) + ".import"));
+				jar.write(String.format(IMPORT_TEMPLATE, importName(i)).getBytes("UTF-8"));
+			}
+		}
+		jar.close();
+		return bytes.toByteArray();
+	}
+
+	@Override
+	public String toString() {
+		return jars + " jars, " + scaModules + " SCA modules, " + importsPerModule + " imports per module, " + entriesPerJar + " entries of " + entrySize
+				+ " bytes per jar, " + (storedJars ? "stored" : "deflated");
+	}
+
+}
@@ -0,0 +1,340 @@
+package net.gisnas.oystein.ibm;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.websphere.management.AdminClient;
+import com.ibm.websphere.management.exception.ConnectorException;
+
+/**
+ * Pool of {@link AdminClient} connections, keyed by connector properties
+ *
+ * Creating an AdminClient costs SSL setup, the SOAP handshake and a security
+ * login. Connections released to the pool are handed out again for the same
+ * properties, and dropped when idle longer than the max idle time. A
+ * connection idle longer than the check interval is checked with a cheap
+ * remote call before it is handed out.
+ *
+ * The AdminClients handed out reconnect by themselves when a call fails with
+ * a {@link ConnectorException} and the connection is found dead. Read-only
+ * calls are then retried once on the new connection. Other calls fail as
+ * before, since they may have taken effect, but the next call uses the new
+ * connection. Notification listeners are not carried over to the new
+ * connection, and notifications sent in between are lost. Users listening
+ * for notifications add a {@link ReconnectListener} to register again, as
+ * {@link AppManager} does.
+ *
+ * Thread safe.
+ */
+public class AdminClientPool {
+
+	private static final Logger logger = LoggerFactory.getLogger(AdminClientPool.class);
+	/** Default max idle time, in milliseconds */
+	public static final long DEFAULT_MAX_IDLE = 300000;
+	/** Default check interval, in milliseconds */
+	public static final long DEFAULT_CHECK_INTERVAL = 30000;
+	private static final Set<String> READ_ONLY_METHODS = new HashSet<>(Arrays.asList("queryNames", "getAttribute", "getAttributes", "isRegistered",
+			"getServerMBean", "getMBeanInfo", "getDomainName", "getDefaultDomain", "isInstanceOf", "isAlive"));
+
+	private final long maxIdle;
+	private final long checkInterval;
+	private final Factory factory;
+	/** Idle connections by connector properties, most recently used first. Guarded by this */
+	private final Map<Map<Object, Object>, Deque<Connection>> idle = new HashMap<>();
+	/** Connections handed out, by their AdminClient. Guarded by this */
+	private final Map<AdminClient, Connection> acquired = new IdentityHashMap<>();
+
+	public AdminClientPool() {
+		this(DEFAULT_MAX_IDLE, DEFAULT_CHECK_INTERVAL);
+	}
+
+	/**
+	 * @param maxIdle Max idle time in milliseconds
+	 * @param checkInterval Idle time in milliseconds after which a connection
+	 *        is checked before it is handed out
+	 */
+	public AdminClientPool(long maxIdle, long checkInterval) {
+		this(maxIdle, checkInterval, new Factory() {
+			@Override
+			public AdminClient create(AdminClientConnectorProperties properties) {
+				return AdminClientConnectorProperties.createAdminClient(properties);
+			}
+		});
+	}
+
+	AdminClientPool(long maxIdle, long checkInterval, Factory factory) {
+		this.maxIdle = maxIdle;
+		this.checkInterval = checkInterval;
+		this.factory = factory;
+	}
+
+	/**
+	 * Get an idle connection for the properties, or connect if there is none
+	 *
+	 * The same AdminClient may be handed out again after it is released, so
+	 * it can be recognised across uses, e.g. by {@link AppManager}.
+	 *
+	 * @param properties
+	 * @return an AdminClient, to be released when done
+	 */
+	public AdminClient acquire(AdminClientConnectorProperties properties) {
+		Map<Object, Object> key = new HashMap<>(properties);
+		Connection connection;
+		while ((connection = takeIdle(key)) != null) {
+			if (connection.isHealthy()) {
+				break;
+			}
+			logger.debug("Dropping dead connection to {}", properties);
+		}
+		if (connection == null) {
+			connection = new Connection(properties);
+		}
+		synchronized (this) {
+			acquired.put(connection.client, connection);
+		}
+		return connection.client;
+	}
+
+	/**
+	 * Return a connection to the pool
+	 *
+	 * Listeners added to the connection should be removed first, e.g. by
+	 * closing the {@link AppManager} using it.
+	 *
+	 * @param adminClient AdminClient acquired from this pool
+	 */
+	public synchronized void release(AdminClient adminClient) {
+		Connection connection = acquired.remove(adminClient);
+		if (connection == null) {
+			throw new IllegalArgumentException("AdminClient was not acquired from this pool");
+		}
+		connection.lastUsed = System.currentTimeMillis();
+		Deque<Connection> connections = idle.get(connection.key);
+		if (connections == null) {
+			connections = new ArrayDeque<>();
+			idle.put(connection.key, connections);
+		}
+		connections.push(connection);
+		evict();
+	}
+
+	/**
+	 * Drop all idle connections
+	 */
+	public synchronized void clear() {
+		idle.clear();
+	}
+
+	/**
+	 * @return number of idle connections
+	 */
+	public synchronized int getIdleCount() {
+		evict();
+		int count = 0;
+		for (Deque<Connection> connections : idle.values()) {
+			count += connections.size();
+		}
+		return count;
+	}
+
+	private synchronized Connection takeIdle(Map<Object, Object> key) {
+		evict();
+		Deque<Connection> connections = idle.get(key);
+		return connections == null ? null : connections.poll();
+	}
+
+	/**
+	 * Drop connections idle longer than the max idle time. AdminClient has no
+	 * close, the SOAP connector holds no connection between calls.
+	 */
+	private void evict() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Deque<Connection>> iter = idle.values().iterator(); iter.hasNext();) {
+			Deque<Connection> connections = iter.next();
+			while (!connections.isEmpty() && now - connections.peekLast().lastUsed > maxIdle) {
+				connections.removeLast();
+			}
+			if (connections.isEmpty()) {
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Listen for reconnects of a pooled AdminClient
+	 *
+	 * @param adminClient
+	 * @param listener
+	 * @return false if the AdminClient is not from a pool, and never
+	 *         reconnects
+	 */
+	public static boolean addReconnectListener(AdminClient adminClient, ReconnectListener listener) {
+		Connection connection = getConnection(adminClient);
+		if (connection == null) {
+			return false;
+		}
+		connection.listeners.add(listener);
+		return true;
+	}
+
+	public static void removeReconnectListener(AdminClient adminClient, ReconnectListener listener) {
+		Connection connection = getConnection(adminClient);
+		if (connection != null) {
+			connection.listeners.remove(listener);
+		}
+	}
+
+	private static Connection getConnection(AdminClient adminClient) {
+		if (Proxy.isProxyClass(adminClient.getClass())) {
+			InvocationHandler handler = Proxy.getInvocationHandler(adminClient);
+			if (handler instanceof Connection) {
+				return (Connection) handler;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Told when a pooled AdminClient has connected again, before the call
+	 * which found the connection dead is retried or fails
+	 */
+	public interface ReconnectListener {
+
+		/**
+		 * @param adminClient The pooled AdminClient, now using the new
+		 *        connection
+		 */
+		void reconnected(AdminClient adminClient);
+
+	}
+
+	/**
+	 * Creates AdminClients, replaceable for testing
+	 */
+	interface Factory {
+
+		AdminClient create(AdminClientConnectorProperties properties);
+
+	}
+
+	/**
+	 * A pooled connection. The AdminClient handed out is a proxy for the
+	 * current AdminClient of the connection, which is replaced on reconnect.
+	 */
+	private class Connection implements InvocationHandler {
+
+		private final AdminClientConnectorProperties properties;
+		private final Map<Object, Object> key;
+		private final AdminClient client;
+		private final List<ReconnectListener> listeners = new CopyOnWriteArrayList<>();
+		private volatile AdminClient delegate;
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		Connection(AdminClientConnectorProperties properties) {
+			this.properties = properties;
+			this.key = new HashMap<>(properties);
+			this.delegate = factory.create(properties);
+			this.client = (AdminClient) Proxy.newProxyInstance(AdminClient.class.getClassLoader(), new Class<?>[] { AdminClient.class }, this);
+		}
+
+		/**
+		 * @return false if the connection was idle longer than the check
+		 *         interval and is dead
+		 */
+		boolean isHealthy() {
+			if (System.currentTimeMillis() - lastUsed <= checkInterval) {
+				return true;
+			}
+			return isAlive(delegate);
+		}
+
+		private boolean isAlive(AdminClient adminClient) {
+			try {
+				adminClient.isAlive();
+				return true;
+			} catch (ConnectorException | RuntimeException e) {
+				logger.debug("Connection to deployment manager is dead: {}", e.toString());
+				return false;
+			}
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "Pooled AdminClient " + properties;
+			}
+			AdminClient current = delegate;
+			try {
+				return method.invoke(current, args);
+			} catch (InvocationTargetException e) {
+				if (!(e.getCause() instanceof ConnectorException) || !reconnect(current)) {
+					throw e.getCause();
+				}
+				if (!READ_ONLY_METHODS.contains(method.getName())) {
+					throw e.getCause();
+				}
+				logger.debug("Retrying {} on new connection", method.getName());
+				try {
+					return method.invoke(delegate, args);
+				} catch (InvocationTargetException retry) {
+					throw retry.getCause();
+				}
+			}
+		}
+
+		/**
+		 * Connect again, unless the failed AdminClient is alive or already
+		 * replaced, and tell the listeners
+		 *
+		 * @return true if the current AdminClient may be used
+		 */
+		private boolean reconnect(AdminClient failed) {
+			synchronized (this) {
+				if (delegate != failed) {
+					return true;
+				}
+				if (isAlive(failed)) {
+					return false;
+				}
+				logger.info("Reconnecting to deployment manager {}", properties);
+				try {
+					delegate = factory.create(properties);
+				} catch (RuntimeException e) {
+					logger.warn("Unable to reconnect to deployment manager: {}", e.toString());
+					return false;
+				}
+			}
+			for (ReconnectListener listener : listeners) {
+				try {
+					listener.reconnected(client);
+				} catch (RuntimeException e) {
+					logger.warn("Reconnect listener {} failed", listener, e);
+				}
+			}
+			return true;
+		}
+
+	}
+
+}
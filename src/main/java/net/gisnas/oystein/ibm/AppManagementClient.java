@@ -1,18 +1,25 @@
 package net.gisnas.oystein.ibm;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.management.InstanceNotFoundException;
-import javax.management.MBeanException;
 import javax.management.MalformedObjectNameException;
 import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
 import javax.management.NotificationListener;
 import javax.management.ObjectName;
-import javax.management.ReflectionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,7 +31,6 @@ import com.ibm.websphere.management.application.AppManagementProxy;
 import com.ibm.websphere.management.application.AppNotification;
 import com.ibm.websphere.management.exception.AdminException;
 import com.ibm.websphere.management.exception.ConnectorException;
-import com.ibm.websphere.management.wlm.ClusterMemberData;
 import com.ibm.ws.management.application.client.MapModulesToServers;
 
 /**
@@ -32,115 +38,288 @@ import com.ibm.ws.management.application.client.MapModulesToServers;
  * 
  * Convenience wrapper around {@link AppManagementProxy} Adds basic exception
  * handling and logging For higher level operations, see {@link AppManager}
+ * 
+ * Thread safe. The client listens for AppManagement notifications from it is
+ * created until it is closed. Notifications are routed to the operation they
+ * belong to, by task and application name, so one client can run many
+ * operations concurrently over the same connection.
+ * 
+ * If a call fails because the connection to the deployment manager is lost,
+ * the listener is registered again before the next operation.
+ * 
+ * MBean names, clusters and servers are looked up in a {@link CellTopology}
+ * cache.
  */
 public class AppManagementClient implements NotificationListener {
 
 	private static final Logger logger = LoggerFactory.getLogger(AppManagementClient.class);
 	private static final long MAX_WAIT_TIME = 86400000L;
+	/** Task name of notifications from updateApplication */
+	private static final String UPDATE_TASK = "UpdateApplication";
 
 	private AppManagement proxy;
 	private AdminClient adminClient;
+	private CellTopology topology;
 
-	private AppNotification appNotification;
+	/** Operations waiting for their final notification */
+	private final Set<Operation> operations = Collections.newSetFromMap(new ConcurrentHashMap<Operation, Boolean>());
+	/** AppManagement MBean the listener is registered with, guarded by this */
+	private ObjectName subscription;
 
 	public AppManagementClient(AdminClient adminClient) {
+		this(adminClient, new CellTopology(adminClient, CellTopology.DEFAULT_TTL));
+	}
+
+	/**
+	 * @param adminClient
+	 * @param topology Topology cache, may be shared by clients of the same cell
+	 */
+	public AppManagementClient(AdminClient adminClient, CellTopology topology) {
+		this(adminClient, topology, getJMXProxy(adminClient));
+	}
+
+	AppManagementClient(AdminClient adminClient, CellTopology topology, AppManagement proxy) {
 		this.adminClient = adminClient;
+		this.topology = topology;
+		this.proxy = proxy;
+		subscribe();
+	}
+
+	private static AppManagement getJMXProxy(AdminClient adminClient) {
 		try {
-			proxy = AppManagementProxy.getJMXProxyForClient(adminClient);
+			return AppManagementProxy.getJMXProxyForClient(adminClient);
 		} catch (Exception e) {
 			throw new RuntimeException("Could not obtain JMX proxy AppManagement", e);
 		}
 	}
 
-	private String getAppNotificationStatus(String task) {
-		while (appNotification == null || (!task.equals(appNotification.taskName) || !AppNotification.STATUS_COMPLETED.equals(appNotification.taskStatus))
-				&& !AppNotification.STATUS_FAILED.equals(appNotification.taskStatus)) {
-			try {
-				wait(MAX_WAIT_TIME);
-			} catch (InterruptedException e) {
-				logger.trace("Thread was interrupted while waiting for appNotificationStatus");
+	/**
+	 * Register an operation before it is invoked, so its notification can not
+	 * be missed
+	 * 
+	 * The operation ends when it is completed or cancelled.
+	 */
+	private Operation beginOperation(String taskName, String appName) {
+		subscribe();
+		final Operation operation = new Operation(taskName, appName);
+		operations.add(operation);
+		operation.addCallback(new SettableFuture.Callback<AppNotification>() {
+			@Override
+			public void onSuccess(AppNotification appNotification) {
+				endOperation(operation);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				endOperation(operation);
+			}
+		});
+		return operation;
+	}
+
+	private void endOperation(Operation operation) {
+		operations.remove(operation);
+	}
+
+	/**
+	 * Find the operations the notification belongs to
+	 * 
+	 * A notification which does not name the application is only routed when
+	 * a single operation of the task is pending, since it can not be told
+	 * which of several operations it belongs to.
+	 */
+	private List<Operation> findOperations(AppNotification appNotification) {
+		String appName = appNotification.props == null ? null : appNotification.props.getProperty(AppConstants.APPDEPL_APPNAME);
+		List<Operation> found = new ArrayList<>();
+		for (Operation operation : operations) {
+			if (operation.taskName.equals(appNotification.taskName) && (appName == null || appName.equals(operation.appName))) {
+				found.add(operation);
 			}
 		}
-		return appNotification.taskStatus;
+		if (appName == null && found.size() > 1) {
+			logger.debug("Ignoring notification without application name, pending operations {}: {}", found, appNotification);
+			return Collections.emptyList();
+		}
+		return found;
 	}
 
-	private synchronized void setAppNotificationStatus(AppNotification appNotification) {
-		synchronized (this) {
-			this.appNotification = appNotification;
-			notify();
+	private static void completeOperations(List<Operation> operations, AppNotification appNotification) {
+		for (Operation operation : operations) {
+			operation.set(appNotification);
 		}
 	}
 
-	protected AppManagement getProxy() {
-		return proxy;
+	/**
+	 * Convert the final notification of an operation to a result
+	 * 
+	 * Cancelling the result cancels the operation.
+	 */
+	private <T> SettableFuture<T> onCompletion(final Operation operation, final Completion<T> completion) {
+		final SettableFuture<T> result = new SettableFuture<>();
+		operation.addCallback(new SettableFuture.Callback<AppNotification>() {
+			@Override
+			public void onSuccess(AppNotification appNotification) {
+				try {
+					result.set(completion.completed(appNotification));
+				} catch (RuntimeException e) {
+					result.setException(e);
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				result.setException(t);
+			}
+		});
+		result.addCallback(new SettableFuture.Callback<T>() {
+			@Override
+			public void onSuccess(T value) {
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				operation.cancel(false);
+			}
+		});
+		return result;
 	}
 
-	private ObjectName getMBean() {
+	/**
+	 * Wait for the result of an operation
+	 * 
+	 * The operation is cancelled if there is no result within MAX_WAIT_TIME.
+	 */
+	private static <T> T waitFor(SettableFuture<T> result, String description) {
 		try {
-			ObjectName query = new ObjectName("WebSphere:type=AppManagement,*");
-			Iterator<?> iter = adminClient.queryNames(query, null).iterator();
-			if (!iter.hasNext()) {
-				throw new RuntimeException("MBean not found with query " + query);
+			return result.get(MAX_WAIT_TIME, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			result.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for " + description, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
 			}
-			return (ObjectName) iter.next();
-		} catch (MalformedObjectNameException e) {
-			throw new RuntimeException("Could not query MBean", e);
-		} catch (ConnectorException e) {
-			throw new RuntimeException("An error occured in the communication with the deployment manager", e);
+			throw new RuntimeException("Failed waiting for " + description, e.getCause());
+		} catch (TimeoutException e) {
+			result.cancel(false);
+			throw new RuntimeException("Received no status for " + description + " within " + MAX_WAIT_TIME + " ms", e);
 		}
 	}
 
-	private Set<?> getManagedServers() {
+	/**
+	 * Listen for AppManagement notifications, if not already listening
+	 */
+	private synchronized void subscribe() {
+		if (subscription != null) {
+			return;
+		}
+		ObjectName mBean = getMBean();
+		NotificationFilterSupport filter = new NotificationFilterSupport();
+		filter.enableType(AppConstants.NotificationType);
 		try {
-			ObjectName query = new ObjectName("WebSphere:type=Server,processType=ManagedProcess,*");
-			Set<?> result = adminClient.queryNames(query, null);
-			return result;
-		} catch (MalformedObjectNameException e) {
-			throw new RuntimeException("An error occured while querying servers", e);
+			adminClient.addNotificationListener(mBean, this, filter, null);
+		} catch (InstanceNotFoundException e) {
+			topology.refresh();
+			throw new RuntimeException("Could not find MBean " + mBean, e);
 		} catch (ConnectorException e) {
-			throw new RuntimeException("An error occured in the communication with the deployment manager", e);
+			throw new RuntimeException("Communication with deployment manager failed", e);
 		}
+		logger.debug("Listening for notifications from {}", mBean);
+		subscription = mBean;
 	}
 
-	private Set<?> getUnmanagedServers() {
+	/**
+	 * Register the notification listener again, e.g. after the connection to
+	 * the deployment manager is restored
+	 * 
+	 * Operations in progress keep waiting, but notifications sent while the
+	 * connection was lost are not received.
+	 */
+	public synchronized void resubscribe() {
+		unsubscribe();
+		topology.close();
+		topology.refresh();
+		subscribe();
+	}
+
+	/**
+	 * Recover after the AdminClient has connected again, see
+	 * {@link AdminClientPool.ReconnectListener}
+	 * 
+	 * Operations in progress fail, since their notifications may have been
+	 * sent while the connection was lost. The listener is registered again,
+	 * or before the next operation if the deployment manager can not be
+	 * reached yet.
+	 */
+	public void reconnected() {
+		synchronized (this) {
+			subscription = null;
+		}
+		for (Operation operation : operations) {
+			operation.setException(new RuntimeException("Connection to the deployment manager was lost during " + operation + ", the outcome is unknown"));
+		}
 		try {
-			ObjectName query = new ObjectName("WebSphere:type=Server,processType=UnManagedProcess,*");
-			Set<?> result = adminClient.queryNames(query, null);
-			return result;
-		} catch (MalformedObjectNameException e) {
-			throw new RuntimeException("An error occured while querying servers", e);
-		} catch (ConnectorException e) {
-			throw new RuntimeException("An error occured in the communication with the deployment manager", e);
+			resubscribe();
+		} catch (RuntimeException e) {
+			logger.debug("Unable to listen for notifications after reconnecting", e);
 		}
 	}
 
-	private Set<?> getClusters() {
+	/**
+	 * Stop listening for notifications
+	 * 
+	 * Operations in progress will not be completed.
+	 */
+	public synchronized void close() {
+		unsubscribe();
+	}
+
+	private synchronized void unsubscribe() {
+		if (subscription == null) {
+			return;
+		}
 		try {
-			ObjectName query = new ObjectName("WebSphere:type=Cluster,*");
-			Set<?> result = adminClient.queryNames(query, null);
-			return result;
-		} catch (MalformedObjectNameException e) {
-			throw new RuntimeException("An error occured while querying clusters", e);
-		} catch (ConnectorException e) {
-			throw new RuntimeException("An error occured in the communication with the deployment manager", e);
+			adminClient.removeNotificationListener(subscription, this);
+		} catch (Exception e) {
+			logger.debug("Unable to remove notification listener: {}", e);
 		}
+		subscription = null;
 	}
 
-	public ObjectName lookupCluster(String cluster) {
-		try {
-			ObjectName query = new ObjectName("WebSphere:type=Cluster,name=" + cluster + ",*");
-			Iterator<?> iter = adminClient.queryNames(query, null).iterator();
-			if (!iter.hasNext()) {
-				throw new RuntimeException("Cluster " + cluster + " not found");
+	/**
+	 * Forget the listener registration if a call failed because the
+	 * connection was lost, so it is registered again before the next
+	 * operation
+	 */
+	private void checkConnection(Exception e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof ConnectorException) {
+				logger.debug("Connection to deployment manager failed, will listen for notifications again");
+				synchronized (this) {
+					subscription = null;
+				}
+				return;
 			}
-			return (ObjectName) iter.next();
-		} catch (MalformedObjectNameException e) {
-			throw new RuntimeException("An error occured while querying cluster", e);
-		} catch (ConnectorException e) {
-			throw new RuntimeException("An error occured in the communication with the deployment manager", e);
 		}
 	}
 
+	protected AppManagement getProxy() {
+		return proxy;
+	}
+
+	public CellTopology getTopology() {
+		return topology;
+	}
+
+	private ObjectName getMBean() {
+		return topology.getAppManagement();
+	}
+
+	public ObjectName lookupCluster(String cluster) {
+		return topology.lookupCluster(cluster);
+	}
+
 	/**
 	 * Start application on all deployment targets
 	 * 
@@ -199,6 +378,19 @@ public class AppManagementClient implements NotificationListener {
 		installApplication(earPath, redeploy, appName, deploymentTarget);
 	}
 
+	/**
+	 * Start installing application on deployment manager with one cluster or
+	 * one server
+	 * 
+	 * @see #installApplication(String, boolean, String)
+	 * @see #installApplicationAsync(String, boolean, String, String)
+	 */
+	public SettableFuture<Void> installApplicationAsync(String earPath, boolean redeploy, String appName) {
+		String deploymentTarget = findDeploymentTarget();
+		logger.debug("Found deployment target {}", deploymentTarget);
+		return installApplicationAsync(earPath, redeploy, appName, deploymentTarget);
+	}
+
 	/**
 	 * Looking for single deployment target. Search order:
 	 * 1. Clusters
@@ -209,19 +401,19 @@ public class AppManagementClient implements NotificationListener {
 	 * @throws RuntimeException If no unambiguous target (unique target in category) found 
 	 */
 	private String findDeploymentTarget() {
-		Set<?> clusters = getClusters();
+		Set<ObjectName> clusters = topology.getClusters();
 		if (clusters.size() == 1) {
-			return createClusterString((ObjectName) clusters.iterator().next());
+			return createClusterString(clusters.iterator().next());
 		}
 
-		Set<?> managedServers = getManagedServers();
+		Set<ObjectName> managedServers = topology.getManagedServers();
 		if (managedServers.size() == 1) {
-			return createServerString((ObjectName) managedServers.iterator().next());
+			return createServerString(managedServers.iterator().next());
 		}
 
-		Set<?> unmanagedServers = getUnmanagedServers();
+		Set<ObjectName> unmanagedServers = topology.getUnmanagedServers();
 		if (unmanagedServers.size() == 1) {
-			return createServerString((ObjectName) unmanagedServers.iterator().next());
+			return createServerString(unmanagedServers.iterator().next());
 		}
 		
 		throw new RuntimeException("Unambiguous server/cluster target, found " + clusters.size() + " clusters, " + managedServers.size() + " managed servers and " + unmanagedServers.size() + " unmanaged servers. Please specifiy target.");
@@ -256,43 +448,124 @@ public class AppManagementClient implements NotificationListener {
 	 * @param target
 	 */
 	public void installApplication(String earFile, boolean redeploy, String appName, String target) {
-		try {
-			Hashtable<String, String> module2server = new Hashtable<>();
-			module2server.put("*", target);
-			Hashtable<String, Object> props = new Hashtable<>();
-			props.put(AppConstants.APPDEPL_ARCHIVE_UPLOAD, true);
-			props.put(AppConstants.APPDEPL_MODULE_TO_SERVER, module2server);
-			adminClient.addNotificationListener(getMBean(), this, null, null);
-			appNotification = null;
-			synchronized (this) {
-				if (redeploy) {
-					proxy.redeployApplication(earFile, appName, props, null);
-				} else {
-					proxy.installApplication(earFile, appName, props, null);
-				}
-				switch (getAppNotificationStatus(AppNotification.INSTALL)) {
+		waitFor(installApplicationAsync(earFile, redeploy, appName, target), "installation of " + earFile);
+	}
+
+	/**
+	 * Start installing application on deployment manager
+	 * 
+	 * Returns when the EAR is uploaded and the installation is started. The
+	 * future is completed by the notification that the installation is done.
+	 * 
+	 * @param earFile
+	 * @param redeploy
+	 * @param appName
+	 * @param target
+	 * @see #installApplication(String, boolean, String, String)
+	 */
+	public SettableFuture<Void> installApplicationAsync(String earFile, boolean redeploy, String appName, String target) {
+		return installApplicationAsync(earFile, redeploy, appName, target, true);
+	}
+
+	/**
+	 * Start installing application from an EAR already on the deployment
+	 * manager, e.g. staged by {@link EarStage}
+	 * 
+	 * @param stagedEar Path of the EAR on the deployment manager
+	 * @param redeploy
+	 * @param appName
+	 * @param target Deployment target, or null to find the single target
+	 * @see #installApplicationAsync(String, boolean, String, String)
+	 */
+	public SettableFuture<Void> installStagedAsync(String stagedEar, boolean redeploy, String appName, String target) {
+		if (target == null) {
+			target = findDeploymentTarget();
+			logger.debug("Found deployment target {}", target);
+		}
+		return installApplicationAsync(stagedEar, redeploy, appName, target, false);
+	}
+
+	private SettableFuture<Void> installApplicationAsync(final String earFile, boolean redeploy, String appName, String target, boolean upload) {
+		Hashtable<String, String> module2server = new Hashtable<>();
+		module2server.put("*", target);
+		Hashtable<String, Object> props = new Hashtable<>();
+		props.put(AppConstants.APPDEPL_ARCHIVE_UPLOAD, upload);
+		props.put(AppConstants.APPDEPL_MODULE_TO_SERVER, module2server);
+		Operation operation = beginOperation(AppNotification.INSTALL, appName);
+		SettableFuture<Void> result = onCompletion(operation, new Completion<Void>() {
+			@Override
+			public Void completed(AppNotification appNotification) {
+				switch (appNotification.taskStatus) {
 				case AppNotification.STATUS_COMPLETED:
 					logger.debug("Installation of {} completed successfully", earFile);
-					break;
+					return null;
 				case AppNotification.STATUS_FAILED:
 					throw new RuntimeException("Installation of " + earFile + " failed, see log messages for details");
 				default:
 					throw new RuntimeException("Received no conclusive status from application installation");
 				}
 			}
+		});
+		try {
+			if (redeploy) {
+				proxy.redeployApplication(earFile, appName, props, null);
+			} else {
+				proxy.installApplication(earFile, appName, props, null);
+			}
 		} catch (AdminException e) {
+			result.cancel(false);
+			checkConnection(e);
 			throw new RuntimeException("An error occured while installing the application " + earFile, e);
-		} catch (InstanceNotFoundException e) {
-			throw new RuntimeException("Could not find MBean " + getMBean(), e);
-		} catch (ConnectorException e) {
-			throw new RuntimeException("Communication with deployment manager failed", e);
-		} finally {
-			try {
-				adminClient.removeNotificationListener(getMBean(), this);
-			} catch (Exception e) {
-				logger.warn("Unable to remove notification listener: {}", e);
+		} catch (RuntimeException e) {
+			result.cancel(false);
+			throw e;
+		}
+		return result;
+	}
+
+	/**
+	 * Start replacing one module of an installed application
+	 * 
+	 * Only the module is uploaded, and only the module is restarted if the
+	 * application is running. The future is completed by the notification
+	 * that the update is done.
+	 * 
+	 * Requires administrator role Configurator, Deployer or Administrator 
+	 * 
+	 * @param appName
+	 * @param moduleUri URI of the module in the EAR
+	 * @param moduleFile New module archive
+	 */
+	public SettableFuture<Void> updateModuleAsync(final String appName, final String moduleUri, String moduleFile) {
+		Hashtable<String, Object> props = new Hashtable<>();
+		props.put(AppConstants.APPUPDATE_CONTENTTYPE, AppConstants.APPUPDATE_CONTENT_MODULEFILE);
+		props.put(AppConstants.APPDEPL_ARCHIVE_UPLOAD, true);
+		Operation operation = beginOperation(UPDATE_TASK, appName);
+		SettableFuture<Void> result = onCompletion(operation, new Completion<Void>() {
+			@Override
+			public Void completed(AppNotification appNotification) {
+				switch (appNotification.taskStatus) {
+				case AppNotification.STATUS_COMPLETED:
+					logger.debug("Update of {} in {} completed successfully", moduleUri, appName);
+					return null;
+				case AppNotification.STATUS_FAILED:
+					throw new RuntimeException("Update of " + moduleUri + " in " + appName + " failed, see log messages for details");
+				default:
+					throw new RuntimeException("Received no conclusive status from application update");
+				}
 			}
+		});
+		try {
+			proxy.updateApplication(appName, moduleUri, moduleFile, AppConstants.APPUPDATE_UPDATE, props, null);
+		} catch (AdminException e) {
+			result.cancel(false);
+			checkConnection(e);
+			throw new RuntimeException("An error occured while updating " + moduleUri + " in " + appName, e);
+		} catch (RuntimeException e) {
+			result.cancel(false);
+			throw e;
 		}
+		return result;
 	}
 
 	/**
@@ -303,52 +576,69 @@ public class AppManagementClient implements NotificationListener {
 	 * @param appName
 	 */
 	public void uninstallApplication(String appName) {
-		try {
-			adminClient.addNotificationListener(getMBean(), this, null, null);
-			synchronized (this) {
-				proxy.uninstallApplication(appName, new Hashtable<String, Object>(), null);
-				switch (getAppNotificationStatus(AppNotification.UNINSTALL)) {
+		waitFor(uninstallApplicationAsync(appName), "uninstallation of " + appName);
+	}
+
+	/**
+	 * Start uninstalling application on deployment manager
+	 * 
+	 * The future is completed by the notification that the uninstallation is
+	 * done.
+	 * 
+	 * @param appName
+	 * @see #uninstallApplication(String)
+	 */
+	public SettableFuture<Void> uninstallApplicationAsync(final String appName) {
+		Operation operation = beginOperation(AppNotification.UNINSTALL, appName);
+		SettableFuture<Void> result = onCompletion(operation, new Completion<Void>() {
+			@Override
+			public Void completed(AppNotification appNotification) {
+				switch (appNotification.taskStatus) {
 				case AppNotification.STATUS_COMPLETED:
 					logger.debug("Uninstallation of {} completed successfully", appName);
-					break;
+					return null;
 				case AppNotification.STATUS_FAILED:
 					throw new RuntimeException("Uninstallation of " + appName + " failed, see log messages for details");
 				default:
 					throw new RuntimeException("Received no conclusive status from application uninstallation");
 				}
 			}
+		});
+		try {
+			proxy.uninstallApplication(appName, new Hashtable<String, Object>(), null);
 		} catch (AdminException e) {
+			result.cancel(false);
+			checkConnection(e);
 			throw new RuntimeException("Uninstallation of application " + appName + " failed", e);
-		} catch (InstanceNotFoundException e) {
-			throw new RuntimeException("MBean not found", e);
-		} catch (ConnectorException e) {
-			throw new RuntimeException("An error occured in the communication with the deployment manager", e);
-		} finally {
-			try {
-				adminClient.removeNotificationListener(getMBean(), this);
-			} catch (Exception e) {
-				logger.warn("Unable to remove notification listener: {}", e);
-			}
+		} catch (RuntimeException e) {
+			result.cancel(false);
+			throw e;
 		}
+		return result;
 	}
 
 	public void handleNotification(Notification notification, Object handback) {
 		AppNotification appNotification = (AppNotification) notification.getUserData();
 		logger.trace("AppNotification received: {}", appNotification);
+		List<Operation> found = findOperations(appNotification);
+		if (found.isEmpty()) {
+			// Operation of another client, or one already cancelled
+			return;
+		}
 		switch (appNotification.taskStatus) {
 		case AppNotification.STATUS_INPROGRESS:
 			logger.debug("{}", appNotification.message);
 			break;
 		case AppNotification.STATUS_COMPLETED:
 			logger.debug("{}", appNotification.message);
-			setAppNotificationStatus(appNotification);
+			completeOperations(found, appNotification);
 			break;
 		case AppNotification.STATUS_WARNING:
 			logger.warn("{}", appNotification.message);
 			break;
 		case AppNotification.STATUS_FAILED:
 			logger.error("{}", appNotification.message);
-			setAppNotificationStatus(appNotification);
+			completeOperations(found, appNotification);
 			break;
 		default:
 			logger.warn("Uknown status for AppNotification {}", appNotification);
@@ -369,6 +659,24 @@ public class AppManagementClient implements NotificationListener {
 		}
 	}
 
+	/**
+	 * List applications installed in cell
+	 * 
+	 * @return application names
+	 */
+	public Set<String> listApplications() {
+		try {
+			Set<String> appNames = new HashSet<>();
+			for (Object appName : proxy.listApplications(null, null)) {
+				appNames.add((String) appName);
+			}
+			return appNames;
+		} catch (AdminException e) {
+			checkConnection(e);
+			throw new RuntimeException("Unable to list applications", e);
+		}
+	}
+
 	/**
 	 * Check if application is distributed to all nodes
 	 * 
@@ -378,58 +686,107 @@ public class AppManagementClient implements NotificationListener {
 	 * @return true if aplication is distributed to all nodes
 	 */
 	public boolean isAppReady(String appName) {
-		try {
-			logger.debug("Checking distribution status for {}", appName);
-			adminClient.addNotificationListener(getMBean(), this, null, null);
-			synchronized (this) {
-				proxy.getDistributionStatus(appName, new Hashtable<String, Object>(), null);
-				switch (getAppNotificationStatus(AppNotification.DISTRIBUTION_STATUS_NODE)) {
+		return waitFor(isAppReadyAsync(appName), "distribution status of " + appName);
+	}
+
+	/**
+	 * Start checking if application is distributed to all nodes
+	 * 
+	 * The future is completed by the notification with the distribution
+	 * status.
+	 * 
+	 * @param appName
+	 * @see #isAppReady(String)
+	 */
+	public SettableFuture<Boolean> isAppReadyAsync(final String appName) {
+		return getDistributionStatusAsync(appName, new Completion<Boolean>() {
+			@Override
+			public Boolean completed(AppNotification appNotification) {
+				Map<String, Boolean> nodeStatus = parseDistributionStatus(appNotification.props.getProperty(AppNotification.DISTRIBUTION_STATUS_COMPOSITE));
+				return !nodeStatus.isEmpty() && !nodeStatus.containsValue(false);
+			}
+		});
+	}
+
+	/**
+	 * Start checking which nodes an application is distributed to
+	 * 
+	 * @param appName
+	 * @return future completed with the distribution status by node name. A
+	 *         node with unknown status is not distributed.
+	 */
+	public SettableFuture<Map<String, Boolean>> getNodeDistributionAsync(final String appName) {
+		return getDistributionStatusAsync(appName, new Completion<Map<String, Boolean>>() {
+			@Override
+			public Map<String, Boolean> completed(AppNotification appNotification) {
+				return parseDistributionStatus(appNotification.props.getProperty(AppNotification.DISTRIBUTION_STATUS_COMPOSITE));
+			}
+		});
+	}
+
+	/**
+	 * @param completion Reads the notification of a completed status check
+	 */
+	private <T> SettableFuture<T> getDistributionStatusAsync(final String appName, final Completion<T> completion) {
+		logger.debug("Checking distribution status for {}", appName);
+		Operation operation = beginOperation(AppNotification.DISTRIBUTION_STATUS_NODE, appName);
+		SettableFuture<T> result = onCompletion(operation, new Completion<T>() {
+			@Override
+			public T completed(AppNotification appNotification) {
+				switch (appNotification.taskStatus) {
 				case AppNotification.STATUS_COMPLETED:
-					String compositeStatus = appNotification.props.getProperty(AppNotification.DISTRIBUTION_STATUS_COMPOSITE);
-					logger.debug("Received composite distribution status for application {}: {}", appName, compositeStatus);
-					return determineDistributionStatus(compositeStatus);
+					logger.debug("Received composite distribution status for application {}: {}", appName,
+							appNotification.props.getProperty(AppNotification.DISTRIBUTION_STATUS_COMPOSITE));
+					return completion.completed(appNotification);
 				case AppNotification.STATUS_FAILED:
 					throw new RuntimeException("getDistributionStatus " + appName + " failed, see log messages for details");
 				default:
 					throw new RuntimeException("Received no conclusive status from application distribution");
 				}
 			}
-		} catch (AdminException | InstanceNotFoundException | ConnectorException e) {
+		});
+		try {
+			proxy.getDistributionStatus(appName, new Hashtable<String, Object>(), null);
+		} catch (AdminException e) {
+			result.cancel(false);
+			checkConnection(e);
 			throw new RuntimeException("Unable to check distribution status for " + appName, e);
+		} catch (RuntimeException e) {
+			result.cancel(false);
+			throw e;
 		}
+		return result;
 	}
 
-	private boolean determineDistributionStatus(String compositeStatus) {
+	/**
+	 * @param compositeStatus Status object names of each node, separated by +
+	 * @return whether distributed, by node name
+	 */
+	private static Map<String, Boolean> parseDistributionStatus(String compositeStatus) {
+		Map<String, Boolean> nodeStatus = new HashMap<>();
 		if (compositeStatus == null || "".equals(compositeStatus.trim())) {
-			return false;
-		} else {
-			String[] nodeStatus = compositeStatus.split("\\+");
-			try {
-				int distCount = 0;
-				for (int i = 0; i < nodeStatus.length; i++) {
-					ObjectName status = new ObjectName(nodeStatus[i]);
-					String distributionStatus = status.getKeyProperty(AppNotification.DISTRIBUTION_STATUS);
-					switch (distributionStatus) {
-					case AppNotification.DISTRIBUTION_DONE:
-						distCount++;
-						continue;
-					case AppNotification.DISTRIBUTION_NOT_DONE:
-						return false;
-					case AppNotification.DISTRIBUTION_UNKNOWN:
-						return false;
-					default:
-						throw new RuntimeException("Uknown distribution status " + distributionStatus);
-					}
-				}
-				if (distCount == 0) {
-					return false;
-				} else {
-					return true;
+			return nodeStatus;
+		}
+		try {
+			for (String s : compositeStatus.split("\\+")) {
+				ObjectName status = new ObjectName(s);
+				String distributionStatus = status.getKeyProperty(AppNotification.DISTRIBUTION_STATUS);
+				switch (distributionStatus) {
+				case AppNotification.DISTRIBUTION_DONE:
+					nodeStatus.put(status.getKeyProperty("node"), true);
+					break;
+				case AppNotification.DISTRIBUTION_NOT_DONE:
+				case AppNotification.DISTRIBUTION_UNKNOWN:
+					nodeStatus.put(status.getKeyProperty("node"), false);
+					break;
+				default:
+					throw new RuntimeException("Uknown distribution status " + distributionStatus);
 				}
-			} catch (MalformedObjectNameException e) {
-				throw new RuntimeException("Error parsing distribution status object name", e);
 			}
+		} catch (MalformedObjectNameException e) {
+			throw new RuntimeException("Error parsing distribution status object name", e);
 		}
+		return nodeStatus;
 	}
 
 	public Set<String> getAppAssociation(String appName) {
@@ -448,7 +805,7 @@ public class AppManagementClient implements NotificationListener {
 						logger.debug("Found target {} in ModulesToServer mapping for {}", target, appName);
 						ObjectName targetON = new ObjectName(target);
 						if (targetON.getKeyProperty("cluster") != null) {
-							targets.addAll(getClusterMembers(targetON.getKeyProperty("cluster")));
+							targets.addAll(topology.getClusterMembers(targetON.getKeyProperty("cluster")));
 						} else {
 							targets.add(target);
 						}
@@ -461,26 +818,36 @@ public class AppManagementClient implements NotificationListener {
 		return targets;
 	}
 
-	private Set<String> getClusterMembers(String clusterName) {
-		try {
-			ObjectName query = new ObjectName("WebSphere:type=Cluster,name="+clusterName+",*");
-			Set<?> result = adminClient.queryNames(query, null);
-			if (result.size() != 1){
-				throw new RuntimeException("Didn't expect result size " + result.size() + " when querying cluster " + clusterName);
-			}
-			ObjectName clusterON = (ObjectName) result.iterator().next();
-			ClusterMemberData[] clusterMemberData = (ClusterMemberData[]) adminClient.invoke(clusterON, "getClusterMembers", null, null);
-			Set<String> clusterMembers = new HashSet<>(clusterMemberData.length);
-			for (ClusterMemberData c : clusterMemberData) {
-				ObjectName clusterMember = c.memberObjectName;
-				clusterMembers.add(createServerString(clusterMember));
-			}
-			return clusterMembers;
-		} catch (MalformedObjectNameException | InstanceNotFoundException | MBeanException | ReflectionException e) {
-			throw new RuntimeException("An error occured while querying cluster " + clusterName, e);
-		} catch (ConnectorException e) {
-			throw new RuntimeException("An error occured in the communication with the deployment manager", e);
+	/**
+	 * Operation waiting for its final notification
+	 */
+	private static class Operation extends SettableFuture<AppNotification> {
+
+		private final String taskName;
+		private final String appName;
+
+		Operation(String taskName, String appName) {
+			this.taskName = taskName;
+			this.appName = appName;
 		}
+
+		@Override
+		public String toString() {
+			return taskName + " " + appName;
+		}
+
+	}
+
+	/**
+	 * Converts the final notification of an operation to its result
+	 */
+	private interface Completion<T> {
+
+		/**
+		 * @throws RuntimeException if the operation failed
+		 */
+		T completed(AppNotification appNotification);
+
 	}
 
-}
\ No newline at end of file
+}
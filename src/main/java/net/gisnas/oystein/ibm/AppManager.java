@@ -1,10 +1,34 @@
 package net.gisnas.oystein.ibm;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanException;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,22 +40,96 @@ import com.ibm.ws.management.application.client.AppInstallHelper;
 
 /**
  * Management client for WebSphere applications
+ * 
+ * The asynchronous operations run their phases on a bounded pool of worker
+ * threads, chained on notifications from the deployment manager. No thread is
+ * blocked while waiting for installation or distribution, so a few threads
+ * can drive many deployments. Distribution is detected from node
+ * synchronization notifications, see {@link DistributionMonitor}, which uses
+ * a scheduler for its polls. Phases which read EARs, upload them or start
+ * applications block a worker thread. Starting an application blocks until
+ * it is started on all its targets, since AppManagement has no notification
+ * for it. Size the worker pool for the number of concurrent phases.
  */
 public class AppManager {
 
 	private static final Logger logger = LoggerFactory.getLogger(AppManager.class);
+	private static final int DEFAULT_WORKERS = 8;
+	private static ScheduledExecutorService defaultScheduler;
+	private static ExecutorService defaultWorkers;
+	/** AdminClients which passed the connection test, e.g. reused from an {@link AdminClientPool} */
+	private static final Set<AdminClient> testedClients = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<AdminClient, Boolean>()));
 
 	private AppManagementClient am;
 	private AdminClient adminClient;
+	private Executor workers;
+	private DistributionMonitor distributionMonitor;
+	private volatile AppStateRegistry stateRegistry;
+	private volatile DeploymentLedger ledger;
+	private volatile boolean pipelinedStart;
+	private volatile EarStage stage;
+	private final List<DeployListener> listeners = new CopyOnWriteArrayList<>();
+	/** Registers the notification listeners again when a pooled AdminClient reconnects */
+	private final AdminClientPool.ReconnectListener reconnectListener = new AdminClientPool.ReconnectListener() {
+		@Override
+		public void reconnected(AdminClient adminClient) {
+			logger.info("Reconnected to deployment manager, listening for notifications again");
+			am.reconnected();
+			distributionMonitor.reconnected();
+			AppStateRegistry registry = stateRegistry;
+			if (registry != null) {
+				try {
+					registry.reconnected();
+				} catch (RuntimeException e) {
+					logger.warn("Unable to refresh application states after reconnecting", e);
+				}
+			}
+		}
+	};
+	/** Deployment targets of each application, see {@link #getTargets(String)} */
+	private final Map<String, Set<String>> targets = new ConcurrentHashMap<>();
 
+	/**
+	 * Asynchronous operations are run on a shared scheduler and a shared pool
+	 * of DEFAULT_WORKERS worker threads, all daemon threads
+	 */
 	public AppManager(AdminClient adminClient) {
-		am = new AppManagementClient(adminClient);
+		this(adminClient, getDefaultScheduler());
+	}
+
+	/**
+	 * @param adminClient
+	 * @param scheduler Runs polls and callbacks of asynchronous operations
+	 */
+	public AppManager(AdminClient adminClient, ScheduledExecutorService scheduler) {
+		this(adminClient, scheduler, getDefaultWorkers());
+	}
+
+	/**
+	 * @param adminClient
+	 * @param scheduler Runs polls and callbacks of asynchronous operations
+	 * @param workers Runs the phases of asynchronous operations, which may
+	 *            block. Should be bounded, as it limits the number of
+	 *            concurrent uploads and starts.
+	 */
+	public AppManager(AdminClient adminClient, ScheduledExecutorService scheduler, Executor workers) {
+		this(adminClient, scheduler, workers, new AppManagementClient(adminClient));
+	}
+
+	AppManager(AdminClient adminClient, ScheduledExecutorService scheduler, Executor workers, AppManagementClient am) {
+		this.am = am;
 		this.adminClient = adminClient;
-		// Test connection (for missing permissions for example)
-		try {
-			am.checkIfAppExists("non_existent_app");
-		} catch (RuntimeException e) {
-			throw new RuntimeException("Failed to connect to deployment manager. Check username/password and permissions (failed operation which required Monitor role)", e);
+		this.workers = workers;
+		distributionMonitor = new DistributionMonitor(am, adminClient, scheduler);
+		AdminClientPool.addReconnectListener(adminClient, reconnectListener);
+		// Test connection (for missing permissions for example), once per AdminClient
+		if (!testedClients.contains(adminClient)) {
+			try {
+				am.checkIfAppExists("non_existent_app");
+			} catch (RuntimeException e) {
+				throw new RuntimeException("Failed to connect to deployment manager. Check username/password and permissions (failed operation which required Monitor role)", e);
+			}
+			testedClients.add(adminClient);
 		}
 	}
 
@@ -43,6 +141,25 @@ public class AppManager {
 	 */
 	public boolean isStarted(String appName) {
 		logger.debug("Checking if application {} is started", appName);
+		AppStateRegistry registry = stateRegistry;
+		if (registry != null) {
+			Set<String> appTargets = getTargets(appName);
+			if (appTargets.isEmpty() || !registry.getRunningServers(appName).containsAll(appTargets)) {
+				logger.debug("Application {} is not started", appName);
+				return false;
+			}
+			// The registry may list servers on a lost node, see AppStateRegistry
+			logger.debug("Application {} is started according to the registry, confirming", appName);
+			if (!queryStarted(appName)) {
+				registry.invalidate();
+				return false;
+			}
+			return true;
+		}
+		return queryStarted(appName);
+	}
+
+	private boolean queryStarted(String appName) {
 		ObjectName query;
 		try {
 			query = new ObjectName("WebSphere:type=Application,name=" + appName + ",*");
@@ -72,6 +189,98 @@ public class AppManager {
 		}
 	}
 
+	/**
+	 * Status of all applications installed in the cell
+	 * 
+	 * @return status by application name
+	 * @see #getStatus(Collection)
+	 */
+	public Map<String, AppStatus> getStatus() {
+		return getStatus(null);
+	}
+
+	/**
+	 * Status of the given applications
+	 * 
+	 * Lists the installed applications and queries all running Application
+	 * MBeans, or uses the state registry if enabled. The deployment targets
+	 * of an application are only looked up the first time it is seen
+	 * running, so a sweep costs two remote calls once the targets are
+	 * cached.
+	 * 
+	 * @param appNames Application names, or null for all installed applications
+	 * @return status by application name, in the order given
+	 */
+	public Map<String, AppStatus> getStatus(Collection<String> appNames) {
+		Set<String> installed = am.listApplications();
+		targets.keySet().retainAll(installed);
+		Collection<String> wanted = appNames == null ? new TreeSet<>(installed) : appNames;
+		AppStateRegistry registry = stateRegistry;
+		Map<String, Set<String>> running = new HashMap<>();
+		if (registry == null) {
+			try {
+				for (Object application : adminClient.queryNames(new ObjectName("WebSphere:type=Application,*"), null)) {
+					AppStateRegistry.add(running, (ObjectName) application);
+				}
+			} catch (MalformedObjectNameException e) {
+				throw new RuntimeException("Could not query MBean", e);
+			} catch (ConnectorException e) {
+				throw new RuntimeException("An error occured in the communication with the deployment manager", e);
+			}
+		}
+		Map<String, AppStatus> status = new LinkedHashMap<>();
+		for (String appName : wanted) {
+			Set<String> servers = registry == null ? running.get(appName) : registry.getRunningServers(appName);
+			if (!installed.contains(appName)) {
+				status.put(appName, AppStatus.NOT_INSTALLED);
+			} else if (servers == null || servers.isEmpty()) {
+				status.put(appName, AppStatus.STOPPED);
+			} else if (servers.containsAll(getTargets(appName))) {
+				status.put(appName, AppStatus.STARTED);
+			} else {
+				status.put(appName, AppStatus.PARTIALLY_STARTED);
+			}
+		}
+		return status;
+	}
+
+	/**
+	 * Deployment targets of an application, cached until it is installed or
+	 * uninstalled by this manager
+	 */
+	private Set<String> getTargets(String appName) {
+		Set<String> appTargets = targets.get(appName);
+		if (appTargets == null) {
+			appTargets = am.getAppAssociation(appName);
+			logger.debug("Found deployment targets for application {}: {}", appName, appTargets);
+			targets.put(appName, appTargets);
+		}
+		return appTargets;
+	}
+
+	/**
+	 * Answer {@link #isStarted(String)} from a local {@link AppStateRegistry}
+	 * instead of querying the deployment manager
+	 * 
+	 * An application the registry lists as started is confirmed by a query,
+	 * since the registry is not notified when a whole node is lost.
+	 * 
+	 * The deployment targets of each application are cached as well, until
+	 * the application is installed or uninstalled by this manager.
+	 */
+	public synchronized void enableStateRegistry() {
+		if (stateRegistry == null) {
+			stateRegistry = new AppStateRegistry(adminClient);
+		}
+	}
+
+	/**
+	 * @return the state registry, or null if not enabled
+	 */
+	public AppStateRegistry getStateRegistry() {
+		return stateRegistry;
+	}
+
 	/**
 	 * Start application on all deployment targets, if not already running
 	 * 
@@ -104,6 +313,203 @@ public class AppManager {
 		logger.info("Application {} started", appName);
 	}
 
+	/**
+	 * Start application on all deployment targets, if not already running
+	 * 
+	 * Runs {@link #startApp(String)} on a worker thread, which it blocks
+	 * until the application is started.
+	 * 
+	 * @param appName
+	 * @return future completed when the application is started
+	 * @see #startApp(String)
+	 */
+	public SettableFuture<Void> startAppAsync(final String appName) {
+		final SettableFuture<Void> result = new SettableFuture<>();
+		execute(result, new Runnable() {
+			@Override
+			public void run() {
+				startApp(appName);
+				result.set(null);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Start application on its deployment targets a few servers at a time
+	 *
+	 * Each server is started through its own ApplicationManager MBean, and
+	 * the next server is started when the application is running on one of
+	 * the servers being started. Servers already running the application are
+	 * skipped. If starting on a server fails, the remaining servers are left
+	 * as they are.
+	 *
+	 * Requires administrator role Operator, Deployer or Administrator
+	 *
+	 * @param appName
+	 * @param concurrency Maximum number of servers starting at a time
+	 */
+	public void startAppRolling(String appName, int concurrency) {
+		await(startAppRollingAsync(appName, concurrency));
+	}
+
+	/**
+	 * Start application on its deployment targets a few servers at a time
+	 *
+	 * @param appName
+	 * @param concurrency Maximum number of servers starting at a time
+	 * @return future completed when the application is started on all servers
+	 * @see #startAppRolling(String, int)
+	 */
+	public SettableFuture<Void> startAppRollingAsync(String appName, int concurrency) {
+		return rollingAsync(appName, concurrency, false);
+	}
+
+	/**
+	 * Restart application on its deployment targets a few servers at a time,
+	 * so the others keep serving requests
+	 *
+	 * The application is stopped and started on each server in turn, as for
+	 * {@link #startAppRolling(String, int)}. Servers not running the
+	 * application are only started.
+	 *
+	 * Requires administrator role Operator, Deployer or Administrator
+	 *
+	 * @param appName
+	 * @param concurrency Maximum number of servers restarting at a time
+	 */
+	public void restartAppRolling(String appName, int concurrency) {
+		await(restartAppRollingAsync(appName, concurrency));
+	}
+
+	/**
+	 * Restart application on its deployment targets a few servers at a time
+	 *
+	 * @param appName
+	 * @param concurrency Maximum number of servers restarting at a time
+	 * @return future completed when the application is restarted on all servers
+	 * @see #restartAppRolling(String, int)
+	 */
+	public SettableFuture<Void> restartAppRollingAsync(String appName, int concurrency) {
+		return rollingAsync(appName, concurrency, true);
+	}
+
+	private SettableFuture<Void> rollingAsync(final String appName, final int concurrency, final boolean restart) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("Concurrency must be at least 1, was " + concurrency);
+		}
+		final SettableFuture<Void> result = new SettableFuture<>();
+		execute(result, new Runnable() {
+			@Override
+			public void run() {
+				Set<String> servers = new TreeSet<>(getTargets(appName));
+				if (servers.isEmpty()) {
+					throw new RuntimeException("Application " + appName + " has no deployment targets");
+				}
+				logger.debug("{} application {} on {}, {} at a time", restart ? "Restarting" : "Starting", appName, servers, concurrency);
+				new Rolling(appName, servers.iterator(), concurrency, restart, result).next();
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Start (or restart) application on one server, through the
+	 * ApplicationManager MBean of the server
+	 *
+	 * The MBean operation returns when the application is started. The
+	 * Application MBean of the server is queried afterwards to make sure.
+	 *
+	 * @param server Deployment target string of the server
+	 * @see AppManagementClient#createServerString(ObjectName)
+	 */
+	private void startOnServer(String appName, String server, boolean restart) {
+		try {
+			ObjectName serverON = new ObjectName(server);
+			String node = serverON.getKeyProperty("node");
+			String process = serverON.getKeyProperty("server");
+			Set<?> applicationManagers = adminClient.queryNames(new ObjectName("WebSphere:type=ApplicationManager,node=" + node + ",process=" + process + ",*"), null);
+			if (applicationManagers.isEmpty()) {
+				throw new RuntimeException("Server " + process + " on node " + node + " is not running");
+			}
+			ObjectName applicationManager = (ObjectName) applicationManagers.iterator().next();
+			ObjectName application = new ObjectName("WebSphere:type=Application,name=" + appName + ",node=" + node + ",process=" + process + ",*");
+			Object[] params = new Object[] { appName };
+			String[] signature = new String[] { "java.lang.String" };
+			if (!adminClient.queryNames(application, null).isEmpty()) {
+				if (!restart) {
+					logger.debug("Application {} is already running on {}", appName, server);
+					return;
+				}
+				logger.debug("Stopping application {} on {}", appName, server);
+				adminClient.invoke(applicationManager, "stopApplication", params, signature);
+			}
+			logger.debug("Starting application {} on {}", appName, server);
+			adminClient.invoke(applicationManager, "startApplication", params, signature);
+			if (adminClient.queryNames(application, null).isEmpty()) {
+				throw new RuntimeException("Application " + appName + " did not start on " + server);
+			}
+			logger.info("Application {} started on {}", appName, server);
+		} catch (MalformedObjectNameException e) {
+			throw new RuntimeException("Could not query MBean", e);
+		} catch (InstanceNotFoundException | MBeanException | ReflectionException e) {
+			throw new RuntimeException("An error occured while starting application " + appName + " on " + server, e);
+		} catch (ConnectorException e) {
+			throw new RuntimeException("An error occured in the communication with the deployment manager", e);
+		}
+	}
+
+	/**
+	 * A rolling start, keeping up to concurrency servers starting until all
+	 * are started
+	 */
+	private class Rolling {
+
+		private final String appName;
+		private final Iterator<String> servers;
+		private final int concurrency;
+		private final boolean restart;
+		private final SettableFuture<Void> result;
+		/** Servers being started, guarded by this */
+		private int starting;
+
+		Rolling(String appName, Iterator<String> servers, int concurrency, boolean restart, SettableFuture<Void> result) {
+			this.appName = appName;
+			this.servers = servers;
+			this.concurrency = concurrency;
+			this.restart = restart;
+			this.result = result;
+		}
+
+		/**
+		 * Start servers until concurrency are starting, or complete the
+		 * result if all are started
+		 */
+		synchronized void next() {
+			while (starting < concurrency && servers.hasNext()) {
+				final String server = servers.next();
+				starting++;
+				execute(result, new Runnable() {
+					@Override
+					public void run() {
+						startOnServer(appName, server, restart);
+						started();
+					}
+				});
+			}
+			if (starting == 0) {
+				logger.info("Application {} {}started on all servers", appName, restart ? "re" : "");
+				result.set(null);
+			}
+		}
+
+		private synchronized void started() {
+			starting--;
+			next();
+		}
+
+	}
+
 	/**
 	 * Stop application on all deployment targets, if not already stopped
 	 *
@@ -166,31 +572,613 @@ public class AppManager {
 	 * @param cluster Deploy to this cluster. Must be set if more than one clusters/servers.
 	 */
 	public void deploy(File earFile, String appName, String cluster) {
-		if (appName == null) {
-			appName = extractAppName(earFile);
+		deploy(earFile, appName, cluster, false);
+	}
+
+	/**
+	 * Deploy application, unless the same EAR is recorded in the ledger as
+	 * deployed and the application is running
+	 * 
+	 * @param earFile
+	 * @param appName Application name. If not set, uses display-name in application.xml.
+	 * @param cluster Deploy to this cluster. Must be set if more than one clusters/servers.
+	 * @param force Deploy even if unchanged
+	 * @see #setLedger(DeploymentLedger)
+	 */
+	public void deploy(File earFile, String appName, String cluster, boolean force) {
+		await(deployAsync(earFile, appName, cluster, force));
+	}
+
+	/**
+	 * Deploy application asynchronously
+	 * 
+	 * The phases are the same as for {@link #deploy(File, String, String)}.
+	 * Each phase is started when the previous one is notified as done, and
+	 * the application is started as soon as the last node has it
+	 * distributed. Cancelling the future stops the deployment before the
+	 * next phase.
+	 * 
+	 * The start phase blocks a worker thread while the application
+	 * starts, see {@link #startAppAsync(String)}.
+	 * 
+	 * @param earFile
+	 * @param appName Application name. If not set, uses display-name in application.xml.
+	 * @param cluster Deploy to this cluster. Must be set if more than one clusters/servers.
+	 * @return future completed when the application is started
+	 */
+	public SettableFuture<Void> deployAsync(File earFile, String appName, String cluster) {
+		return deployAsync(earFile, appName, cluster, false);
+	}
+
+	/**
+	 * Deploy application asynchronously, unless unchanged
+	 * 
+	 * @param earFile
+	 * @param appName Application name. If not set, uses display-name in application.xml.
+	 * @param cluster Deploy to this cluster. Must be set if more than one clusters/servers.
+	 * @param force Deploy even if unchanged
+	 * @return future completed when the application is started
+	 * @see #deploy(File, String, String, boolean)
+	 */
+	public SettableFuture<Void> deployAsync(final File earFile, final String appName, final String cluster, final boolean force) {
+		final long begin = System.currentTimeMillis();
+		final SettableFuture<Void> result = new SettableFuture<>();
+		execute(result, new Runnable() {
+			@Override
+			public void run() {
+				final String name = resolveAppName(earFile, appName);
+				reportWhenDone(name, DeployPhase.TOTAL, begin, result);
+				install(earFile, name, cluster, force).addCallback(new SettableFuture.Callback<Void>() {
+					@Override
+					public void onSuccess(Void value) {
+						execute(result, new Runnable() {
+							@Override
+							public void run() {
+								if (isStarted(name)) {
+									logger.info("Application {} deployed successfully", name);
+									result.set(null);
+								} else if (pipelinedStart) {
+									startWhenDistributed(name, result);
+								} else {
+									whenDistributed(name, result, new Runnable() {
+										@Override
+										public void run() {
+											long startBegin = System.currentTimeMillis();
+											try {
+												am.startApplication(name);
+											} catch (RuntimeException e) {
+												report(name, DeployPhase.START, startBegin, e);
+												throw e;
+											}
+											report(name, DeployPhase.START, startBegin, null);
+											logger.info("Application {} deployed successfully", name);
+											result.set(null);
+										}
+									});
+								}
+							}
+						});
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+						result.setException(t);
+					}
+				});
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Install or update application asynchronously, without starting it
+	 * 
+	 * An application which was running before an update may be restarted by
+	 * the deployment manager. If a ledger is set, an unchanged and running
+	 * application is not updated.
+	 * 
+	 * @param earFile
+	 * @param appName Application name. If not set, uses display-name in application.xml.
+	 * @param cluster Deploy to this cluster. Must be set if more than one clusters/servers.
+	 * @return future completed when the application is distributed to all nodes
+	 * @see #startAppAsync(String)
+	 */
+	public SettableFuture<Void> installAsync(final File earFile, final String appName, final String cluster) {
+		final SettableFuture<Void> result = new SettableFuture<>();
+		execute(result, new Runnable() {
+			@Override
+			public void run() {
+				final String name = resolveAppName(earFile, appName);
+				install(earFile, name, cluster, false).addCallback(new SettableFuture.Callback<Void>() {
+					@Override
+					public void onSuccess(Void value) {
+						whenDistributed(name, result, new Runnable() {
+							@Override
+							public void run() {
+								logger.info("Application {} installed successfully", name);
+								result.set(null);
+							}
+						});
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+						result.setException(t);
+					}
+				});
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * @return application name, extracted from the EAR if not given
+	 */
+	private String resolveAppName(File earFile, String appName) {
+		if (appName != null) {
+			return appName;
 		}
+		long begin = System.currentTimeMillis();
+		String name;
+		try {
+			name = extractAppName(earFile);
+		} catch (RuntimeException e) {
+			report(earFile.getName(), DeployPhase.EXTRACT_NAME, begin, e);
+			throw e;
+		}
+		report(name, DeployPhase.EXTRACT_NAME, begin, null);
+		return name;
+	}
+
+	/**
+	 * Upload the EAR and begin installation, unless unchanged
+	 * 
+	 * @return future completed when the deployment manager has installed the
+	 *         application
+	 * @see #startInstall(File, String, String, boolean)
+	 */
+	private SettableFuture<Void> install(File earFile, String appName, String cluster, boolean force) {
+		long begin = System.currentTimeMillis();
+		SettableFuture<Void> installed;
+		try {
+			installed = startInstall(earFile, appName, cluster, force);
+		} catch (RuntimeException e) {
+			report(appName, DeployPhase.INSTALL, begin, e);
+			throw e;
+		}
+		reportWhenDone(appName, DeployPhase.INSTALL, begin, installed);
+		return installed;
+	}
+
+	/**
+	 * Upload the EAR and begin installation, unless unchanged
+	 * 
+	 * If the ledger shows that only some modules changed since the last
+	 * deployment to the same target, only those modules are updated.
+	 * 
+	 * @return future completed when the deployment manager has installed the
+	 *         application
+	 */
+	private SettableFuture<Void> startInstall(File earFile, final String appName, String cluster, boolean force) {
 		logger.debug("Deploying {}", appName);
 		boolean appExists = am.checkIfAppExists(appName);
-		if (cluster == null) {
-			am.installApplication(earFile.getPath(), appExists, appName);
-		} else {
-			ObjectName clusterON = am.lookupCluster(cluster);
-			String clusterId = AppManagementClient.createClusterString(clusterON);
-			am.installApplication(earFile.getPath(), appExists, appName, clusterId);
+		final DeploymentLedger currentLedger = ledger;
+		final String cell = currentLedger == null ? null : getCell();
+		final String digest = currentLedger == null ? null : Digests.sha256(earFile) + (cluster == null ? "" : "@" + cluster);
+		String recorded = appExists && currentLedger != null ? currentLedger.getDigest(cell, appName) : null;
+		if (!force && digest != null && digest.equals(recorded) && isStarted(appName)) {
+			logger.info("Application {} is unchanged and running, not deploying {}", appName, earFile);
+			SettableFuture<Void> unchanged = new SettableFuture<>();
+			unchanged.set(null);
+			return unchanged;
 		}
-		if (!isStarted(appName)) {
-			int pollInterval = 1000;
-			while (!am.isAppReady(appName)) {
+		targets.remove(appName);
+		final EarModules modules = currentLedger == null ? null : new EarModules(earFile);
+		SettableFuture<Void> installed = null;
+		if (!force && recorded != null && sameTarget(recorded, digest)) {
+			List<String> changed = modules.changedModules(currentLedger.getModuleDigests(cell, appName));
+			if (changed != null && !changed.isEmpty()) {
+				logger.info("Updating changed modules {} of application {}", changed, appName);
+				installed = updateModules(appName, modules, changed.iterator());
+			}
+		}
+		if (installed == null) {
+			EarStage currentStage = stage;
+			String clusterId = cluster == null ? null : AppManagementClient.createClusterString(am.lookupCluster(cluster));
+			if (currentStage != null) {
+				installed = installStaged(currentStage, earFile, appExists, appName, clusterId);
+			} else if (clusterId == null) {
+				installed = am.installApplicationAsync(earFile.getPath(), appExists, appName);
+			} else {
+				installed = am.installApplicationAsync(earFile.getPath(), appExists, appName, clusterId);
+			}
+		}
+		if (digest != null) {
+			installed.addCallback(new SettableFuture.Callback<Void>() {
+				@Override
+				public void onSuccess(Void value) {
+					try {
+						currentLedger.record(cell, appName, digest, modules.getDigests());
+					} catch (RuntimeException e) {
+						logger.warn("Unable to record deployment of {} in ledger {}", appName, currentLedger, e);
+					}
+				}
+
+				@Override
+				public void onFailure(Throwable t) {
+				}
+			});
+		}
+		return installed;
+	}
+
+	/**
+	 * Install from the stage, and if that fails, stage the EAR again and
+	 * retry once, since the deployment manager may have removed the staged
+	 * file
+	 * 
+	 * @return future completed when the deployment manager has installed the
+	 *         application
+	 */
+	private SettableFuture<Void> installStaged(final EarStage currentStage, final File earFile, final boolean appExists, final String appName,
+			final String clusterId) {
+		final String stagedEar = currentStage.stage(earFile);
+		final SettableFuture<Void> result = new SettableFuture<>();
+		SettableFuture<Void> installed;
+		try {
+			installed = am.installStagedAsync(stagedEar, appExists, appName, clusterId);
+		} catch (RuntimeException e) {
+			installed = new SettableFuture<>();
+			installed.setException(e);
+		}
+		installed.addCallback(new SettableFuture.Callback<Void>() {
+			@Override
+			public void onSuccess(Void value) {
+				result.set(null);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				if (t instanceof CancellationException) {
+					result.setException(t);
+					return;
+				}
+				logger.warn("Installation of {} from {} failed, staging {} again and retrying: {}", appName, stagedEar, earFile, t.toString());
+				currentStage.forget(stagedEar);
+				execute(result, new Runnable() {
+					@Override
+					public void run() {
+						result.setFuture(am.installStagedAsync(currentStage.stage(earFile), appExists, appName, clusterId));
+					}
+				});
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * @return true if two ledger digests are for the same target cluster.
+	 *         The digests are a SHA-256 in hex, followed by the target.
+	 */
+	private static boolean sameTarget(String digest1, String digest2) {
+		return digest1.length() >= 64 && digest1.substring(64).equals(digest2.substring(64));
+	}
+
+	/**
+	 * Update modules one at a time, since updates of the same application
+	 * can not run concurrently
+	 * 
+	 * @return future completed when all modules are updated
+	 */
+	private SettableFuture<Void> updateModules(String appName, EarModules modules, Iterator<String> moduleUris) {
+		SettableFuture<Void> result = new SettableFuture<>();
+		updateNextModule(appName, modules, moduleUris, result);
+		return result;
+	}
+
+	private void updateNextModule(final String appName, final EarModules modules, final Iterator<String> moduleUris, final SettableFuture<Void> result) {
+		if (!moduleUris.hasNext()) {
+			result.set(null);
+			return;
+		}
+		final String moduleUri = moduleUris.next();
+		execute(result, new Runnable() {
+			@Override
+			public void run() {
+				final File moduleFile;
+				try {
+					moduleFile = File.createTempFile("wsdeploy", "-" + new File(moduleUri).getName());
+				} catch (IOException e) {
+					throw new RuntimeException("Unable to create temporary file for module " + moduleUri, e);
+				}
+				SettableFuture<Void> updated;
 				try {
-					logger.debug("App distribution not ready, waiting {} ms", pollInterval);
-					Thread.sleep(pollInterval);
-				} catch (InterruptedException e) {
-					logger.debug("Interrupted when waiting from app ready. Continuing...");
+					modules.extract(moduleUri, moduleFile);
+					updated = am.updateModuleAsync(appName, moduleUri, moduleFile.getPath());
+				} catch (RuntimeException e) {
+					moduleFile.delete();
+					throw e;
+				}
+				updated.addCallback(new SettableFuture.Callback<Void>() {
+					@Override
+					public void onSuccess(Void value) {
+						moduleFile.delete();
+						updateNextModule(appName, modules, moduleUris, result);
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+						moduleFile.delete();
+						result.setException(t);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Skip deploying EARs which are recorded in the ledger as deployed, when
+	 * the application is running
+	 * 
+	 * The digest recorded is of the EAR file and the target cluster. Digests
+	 * of the modules are recorded as well, so that when only modules changed
+	 * since the last deployment, only those modules are uploaded and
+	 * restarted.
+	 * 
+	 * @param ledger Ledger, or null to always deploy
+	 */
+	public void setLedger(DeploymentLedger ledger) {
+		this.ledger = ledger;
+	}
+
+	/**
+	 * Start a deployed application on each server as soon as the node of the
+	 * server has it distributed, instead of on all servers when all nodes
+	 * have it
+	 * 
+	 * The slowest node then only delays its own servers. Each server is
+	 * started through its own ApplicationManager MBean.
+	 * 
+	 * @param pipelinedStart
+	 */
+	public void setPipelinedStart(boolean pipelinedStart) {
+		this.pipelinedStart = pipelinedStart;
+	}
+
+	/**
+	 * Install EARs from the staging location of the deployment manager,
+	 * uploading each EAR only once
+	 * 
+	 * A failed installation from the stage is retried once with the EAR
+	 * staged again.
+	 * 
+	 * @param stage Stage, or null to upload the EAR with each installation
+	 */
+	public void setStage(EarStage stage) {
+		this.stage = stage;
+	}
+
+	/**
+	 * Report the timing of each deployment phase to a listener, e.g.
+	 * {@link DeployMetrics}
+	 * 
+	 * @param listener
+	 */
+	public void addListener(DeployListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(DeployListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Tell the listeners that a phase completed
+	 * 
+	 * @param begin Time the phase began
+	 * @param failure Cause if the phase failed, otherwise null
+	 */
+	private void report(String appName, DeployPhase phase, long begin, Throwable failure) {
+		long millis = System.currentTimeMillis() - begin;
+		logger.debug("Phase {} of {} {} after {} ms", phase, appName, failure == null ? "completed" : "failed", millis);
+		if (listeners.isEmpty()) {
+			return;
+		}
+		String cell = getCellIfKnown();
+		for (DeployListener listener : listeners) {
+			try {
+				listener.phaseCompleted(cell, appName, phase, millis, failure);
+			} catch (RuntimeException e) {
+				logger.warn("Deploy listener {} failed", listener, e);
+			}
+		}
+	}
+
+	/**
+	 * Report a phase when its future is done
+	 */
+	private void reportWhenDone(final String appName, final DeployPhase phase, final long begin, SettableFuture<?> future) {
+		future.addCallback(new SettableFuture.Callback<Object>() {
+			@Override
+			public void onSuccess(Object value) {
+				report(appName, phase, begin, null);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				report(appName, phase, begin, t);
+			}
+		});
+	}
+
+	/**
+	 * Report distribution when done, unless the wait is cancelled
+	 */
+	private void reportWhenDistributed(final String appName, final long begin, SettableFuture<Integer> distributed) {
+		distributed.addCallback(new SettableFuture.Callback<Integer>() {
+			@Override
+			public void onSuccess(Integer checks) {
+				report(appName, DeployPhase.DISTRIBUTION, begin, null);
+				String cell = listeners.isEmpty() ? null : getCellIfKnown();
+				for (DeployListener listener : listeners) {
+					try {
+						listener.distributionChecked(cell, appName, checks);
+					} catch (RuntimeException e) {
+						logger.warn("Deploy listener {} failed", listener, e);
+					}
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				if (!(t instanceof CancellationException)) {
+					report(appName, DeployPhase.DISTRIBUTION, begin, t);
+				}
+			}
+		});
+	}
+
+	private String getCellIfKnown() {
+		try {
+			return getCell();
+		} catch (RuntimeException e) {
+			logger.debug("Unable to look up cell", e);
+			return null;
+		}
+	}
+
+	private String getCell() {
+		return am.getTopology().getAppManagement().getKeyProperty("cell");
+	}
+
+	/**
+	 * Wait until the application is distributed to all nodes, then run the
+	 * next phase
+	 */
+	private void whenDistributed(final String appName, final SettableFuture<?> result, final Runnable next) {
+		final SettableFuture<Integer> distributed = distributionMonitor.awaitDistribution(appName);
+		reportWhenDistributed(appName, System.currentTimeMillis(), distributed);
+		distributed.addCallback(new SettableFuture.Callback<Integer>() {
+			@Override
+			public void onSuccess(Integer checks) {
+				execute(result, next);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				result.setException(t);
+			}
+		});
+		result.addCallback(new SettableFuture.Callback<Object>() {
+			@Override
+			public void onSuccess(Object value) {
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				distributed.cancel(false);
+			}
+		});
+	}
+
+	/**
+	 * Start application on each server as soon as its node has the
+	 * application distributed
+	 */
+	private void startWhenDistributed(String appName, SettableFuture<Void> result) {
+		long begin = System.currentTimeMillis();
+		PipelinedStart start = new PipelinedStart(appName, getTargets(appName), result);
+		reportWhenDone(appName, DeployPhase.START, begin, result);
+		final SettableFuture<Integer> distributed = distributionMonitor.awaitDistribution(appName, start);
+		reportWhenDistributed(appName, begin, distributed);
+		distributed.addCallback(start);
+		result.addCallback(new SettableFuture.Callback<Void>() {
+			@Override
+			public void onSuccess(Void value) {
+				distributed.cancel(false);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				distributed.cancel(false);
+			}
+		});
+	}
+
+	/**
+	 * Starts servers as their nodes are found to have the application. When
+	 * all nodes have it, any servers left are started as well.
+	 */
+	private class PipelinedStart implements DistributionMonitor.NodeListener, SettableFuture.Callback<Integer> {
+
+		private final String appName;
+		private final SettableFuture<Void> result;
+		/** Servers not started yet, guarded by this */
+		private final Set<String> waiting;
+		/** Servers being started, guarded by this */
+		private int starting;
+
+		PipelinedStart(String appName, Set<String> servers, SettableFuture<Void> result) {
+			if (servers.isEmpty()) {
+				throw new RuntimeException("Application " + appName + " has no deployment targets");
+			}
+			this.appName = appName;
+			this.waiting = new TreeSet<>(servers);
+			this.result = result;
+		}
+
+		@Override
+		public synchronized void distributed(Set<String> nodes) {
+			for (Iterator<String> iter = waiting.iterator(); iter.hasNext();) {
+				String server = iter.next();
+				if (nodes.contains(getNode(server))) {
+					iter.remove();
+					start(server);
 				}
-			};
-			am.startApplication(appName);
+			}
+		}
+
+		@Override
+		public synchronized void onSuccess(Integer checks) {
+			for (String server : waiting) {
+				start(server);
+			}
+			waiting.clear();
+		}
+
+		@Override
+		public void onFailure(Throwable t) {
+			result.setException(t);
+		}
+
+		private void start(final String server) {
+			logger.debug("Application {} is distributed to {}", appName, server);
+			starting++;
+			execute(result, new Runnable() {
+				@Override
+				public void run() {
+					startOnServer(appName, server, false);
+					started();
+				}
+			});
+		}
+
+		private synchronized void started() {
+			starting--;
+			if (starting == 0 && waiting.isEmpty()) {
+				logger.info("Application {} deployed successfully", appName);
+				result.set(null);
+			}
+		}
+
+	}
+
+	private static String getNode(String server) {
+		try {
+			return new ObjectName(server).getKeyProperty("node");
+		} catch (MalformedObjectNameException e) {
+			throw new RuntimeException("Invalid deployment target " + server, e);
 		}
-		logger.info("Application {} deployed successfully", appName);
 	}
 
 	/**
@@ -214,12 +1202,141 @@ public class AppManager {
 	 * @param appName
 	 */
 	public void undeploy(String appName) {
-		logger.debug("Undeploying {}", appName);
-		boolean appExists = am.checkIfAppExists(appName);
-		if (appExists) {
-			am.uninstallApplication(appName);
+		await(undeployAsync(appName));
+	}
+
+	/**
+	 * Undeploy application asynchronously
+	 * 
+	 * @param appName
+	 * @return future completed when the application is uninstalled
+	 * @see #undeploy(String)
+	 */
+	public SettableFuture<Void> undeployAsync(final String appName) {
+		final SettableFuture<Void> result = new SettableFuture<>();
+		execute(result, new Runnable() {
+			@Override
+			public void run() {
+				logger.debug("Undeploying {}", appName);
+				if (!am.checkIfAppExists(appName)) {
+					logger.info("Application {} undeployed successfully", appName);
+					result.set(null);
+					return;
+				}
+				am.uninstallApplicationAsync(appName).addCallback(new SettableFuture.Callback<Void>() {
+					@Override
+					public void onSuccess(Void value) {
+						targets.remove(appName);
+						DeploymentLedger currentLedger = ledger;
+						if (currentLedger != null) {
+							try {
+								currentLedger.remove(getCell(), appName);
+							} catch (RuntimeException e) {
+								logger.warn("Unable to remove {} from ledger {}", appName, currentLedger, e);
+							}
+						}
+						logger.info("Application {} undeployed successfully", appName);
+						result.set(null);
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+						result.setException(t);
+					}
+				});
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Run a phase of an asynchronous operation on a worker thread
+	 * 
+	 * The phase is skipped if the operation is already done, e.g. cancelled.
+	 * If it fails, the operation fails.
+	 */
+	private void execute(final SettableFuture<?> result, final Runnable phase) {
+		Runnable guarded = new Runnable() {
+			@Override
+			public void run() {
+				if (result.isDone()) {
+					return;
+				}
+				try {
+					phase.run();
+				} catch (RuntimeException e) {
+					result.setException(e);
+				}
+			}
+		};
+		try {
+			workers.execute(guarded);
+		} catch (RejectedExecutionException e) {
+			result.setException(e);
+		}
+	}
+
+	/**
+	 * Wait for an asynchronous operation, rethrowing its failure
+	 */
+	private static void await(SettableFuture<Void> result) {
+		try {
+			result.get();
+		} catch (InterruptedException e) {
+			result.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for the deployment manager", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException("An error occured in the communication with the deployment manager", e.getCause());
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getDefaultScheduler() {
+		if (defaultScheduler == null) {
+			defaultScheduler = Executors.newScheduledThreadPool(4, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "wsdeploy-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return defaultScheduler;
+	}
+
+	private static synchronized ExecutorService getDefaultWorkers() {
+		if (defaultWorkers == null) {
+			defaultWorkers = Executors.newFixedThreadPool(DEFAULT_WORKERS, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "wsdeploy-worker-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return defaultWorkers;
+	}
+
+	/**
+	 * Stop listening for notifications from the deployment manager
+	 */
+	public synchronized void close() {
+		AdminClientPool.removeReconnectListener(adminClient, reconnectListener);
+		if (stateRegistry != null) {
+			stateRegistry.close();
+			stateRegistry = null;
 		}
-		logger.info("Application {} undeployed successfully", appName);
+		distributionMonitor.close();
+		am.close();
 	}
 
 	/**
@@ -0,0 +1,231 @@
+package net.gisnas.oystein.ibm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.websphere.management.AdminClient;
+import com.ibm.websphere.management.NotificationConstants;
+import com.ibm.websphere.management.exception.ConnectorException;
+
+/**
+ * Local view of which servers each application is running on
+ *
+ * Seeded by one query for all Application MBeans in the cell, and kept
+ * current by the J2EE state notifications of the Application MBeans. Lookups
+ * make no remote calls, except after a server has stopped or failed.
+ *
+ * A server which crashes sends no state notifications for its applications.
+ * The node agents notify when a server process stops or fails, and the
+ * registry is then queried again on the next lookup. If a whole node is lost,
+ * its node agent can not notify either, and the registry keeps listing the
+ * applications of its servers as running. Callers which must not act on a
+ * stale entry should confirm that an application is running by a query.
+ *
+ * Notifications sent while the connection to the deployment manager is lost
+ * are missed. Call {@link #reconnected()} after reconnecting.
+ *
+ * Thread safe.
+ */
+public class AppStateRegistry implements NotificationListener {
+
+	private static final Logger logger = LoggerFactory.getLogger(AppStateRegistry.class);
+
+	private final AdminClient adminClient;
+	private final Object refreshLock = new Object();
+	/** Servers each application is running on, guarded by this */
+	private Map<String, Set<String>> running = new HashMap<>();
+	/** Notifications received while seeding, or null if not seeding. Guarded by this */
+	private List<Notification> pending;
+	/** Set when a server process has stopped or failed, so the next lookup queries again */
+	private volatile boolean stale;
+
+	/**
+	 * Start listening for state changes and seed the registry
+	 *
+	 * @param adminClient
+	 */
+	public AppStateRegistry(AdminClient adminClient) {
+		this.adminClient = adminClient;
+		subscribe();
+		try {
+			refresh();
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param appName
+	 * @return servers the application is running on, as deployment target
+	 *         strings
+	 * @see AppManagementClient#createServerString(ObjectName)
+	 */
+	public Set<String> getRunningServers(String appName) {
+		if (stale) {
+			refresh();
+		}
+		synchronized (this) {
+			Set<String> servers = running.get(appName);
+			return servers == null ? Collections.<String> emptySet() : new HashSet<>(servers);
+		}
+	}
+
+	/**
+	 * Query all Application MBeans again
+	 *
+	 * State changes notified while querying are applied on top of the query
+	 * result.
+	 */
+	public void refresh() {
+		synchronized (refreshLock) {
+			synchronized (this) {
+				pending = new ArrayList<>();
+			}
+			stale = false;
+			Map<String, Set<String>> seed = new HashMap<>();
+			try {
+				for (Object application : adminClient.queryNames(applicationQuery(), null)) {
+					add(seed, (ObjectName) application);
+				}
+			} catch (ConnectorException | RuntimeException e) {
+				synchronized (this) {
+					pending = null;
+				}
+				stale = true;
+				throw new RuntimeException("An error occured while querying applications", e);
+			}
+			synchronized (this) {
+				running = seed;
+				for (Notification notification : pending) {
+					apply(notification);
+				}
+				pending = null;
+				logger.debug("Seeded running applications: {}", running);
+			}
+		}
+	}
+
+	/**
+	 * Query all Application MBeans again on the next lookup, e.g. when an
+	 * application listed as running is found not to be
+	 */
+	void invalidate() {
+		stale = true;
+	}
+
+	/**
+	 * Listen for state changes again and query all Application MBeans, after
+	 * the AdminClient has connected again
+	 */
+	public void reconnected() {
+		close();
+		subscribe();
+		refresh();
+	}
+
+	private void subscribe() {
+		NotificationFilterSupport filter = new NotificationFilterSupport();
+		filter.enableType(NotificationConstants.TYPE_J2EE_STATE_RUNNING);
+		filter.enableType(NotificationConstants.TYPE_J2EE_STATE_STOPPED);
+		filter.enableType(NotificationConstants.TYPE_J2EE_STATE_FAILED);
+		NotificationFilterSupport processFilter = new NotificationFilterSupport();
+		processFilter.enableType(NotificationConstants.TYPE_PROCESS_STOPPED);
+		processFilter.enableType(NotificationConstants.TYPE_PROCESS_FAILED);
+		try {
+			adminClient.addNotificationListenerExtended(applicationQuery(), this, filter, null);
+			adminClient.addNotificationListenerExtended(query("WebSphere:type=NodeAgent,*"), this, processFilter, null);
+		} catch (ConnectorException e) {
+			throw new RuntimeException("An error occured in the communication with the deployment manager", e);
+		}
+	}
+
+	/**
+	 * Stop listening for state changes
+	 */
+	public void close() {
+		try {
+			adminClient.removeNotificationListenerExtended(this);
+		} catch (Exception e) {
+			logger.warn("Unable to remove notification listener: {}", e);
+		}
+	}
+
+	@Override
+	public synchronized void handleNotification(Notification notification, Object handback) {
+		if (NotificationConstants.TYPE_PROCESS_STOPPED.equals(notification.getType()) || NotificationConstants.TYPE_PROCESS_FAILED.equals(notification.getType())) {
+			logger.debug("{} {}, querying applications again on next lookup", notification.getType(), notification.getSource());
+			stale = true;
+		} else if (pending != null) {
+			pending.add(notification);
+		} else {
+			apply(notification);
+		}
+	}
+
+	private void apply(Notification notification) {
+		if (!(notification.getSource() instanceof ObjectName)) {
+			return;
+		}
+		ObjectName application = (ObjectName) notification.getSource();
+		logger.debug("{} {}", notification.getType(), application);
+		if (NotificationConstants.TYPE_J2EE_STATE_RUNNING.equals(notification.getType())) {
+			add(running, application);
+		} else {
+			Set<String> servers = running.get(application.getKeyProperty("name"));
+			if (servers != null) {
+				servers.remove(serverString(application));
+			}
+		}
+	}
+
+	/**
+	 * Add the server an Application MBean runs in to the running servers of
+	 * the application
+	 */
+	static void add(Map<String, Set<String>> running, ObjectName application) {
+		String appName = application.getKeyProperty("name");
+		Set<String> servers = running.get(appName);
+		if (servers == null) {
+			servers = new HashSet<>();
+			running.put(appName, servers);
+		}
+		servers.add(serverString(application));
+	}
+
+	/**
+	 * @return deployment target string of the server an Application MBean
+	 *         runs in
+	 */
+	private static String serverString(ObjectName application) {
+		return "WebSphere:cell=" + application.getKeyProperty("cell") + ",node=" + application.getKeyProperty("node") + ",server="
+				+ application.getKeyProperty("process");
+	}
+
+	private static ObjectName applicationQuery() {
+		return query("WebSphere:type=Application,*");
+	}
+
+	private static ObjectName query(String name) {
+		try {
+			return new ObjectName(name);
+		} catch (MalformedObjectNameException e) {
+			throw new RuntimeException("Could not query MBean", e);
+		}
+	}
+
+}
@@ -0,0 +1,22 @@
+package net.gisnas.oystein.ibm;
+
+/**
+ * Run state of an application in a cell
+ *
+ * @see AppManager#getStatus()
+ */
+public enum AppStatus {
+
+	/** Not installed in the cell */
+	NOT_INSTALLED,
+
+	/** Installed, not running on any deployment target */
+	STOPPED,
+
+	/** Running on some, but not all deployment targets */
+	PARTIALLY_STARTED,
+
+	/** Running on all deployment targets */
+	STARTED
+
+}
@@ -0,0 +1,108 @@
+package net.gisnas.oystein.ibm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timings and failures from rewriting a batch of EARs
+ *
+ * Contains one result per analysed EAR and one per written variant.
+ *
+ * @see ScaUtil#modifyWsImports(List, java.util.concurrent.ExecutorService)
+ */
+public class BatchReport {
+
+	private final List<Result> results = new ArrayList<>();
+
+	synchronized void add(Result result) {
+		results.add(result);
+	}
+
+	/**
+	 * @return results in order of completion
+	 */
+	public synchronized List<Result> getResults() {
+		return new ArrayList<>(results);
+	}
+
+	/**
+	 * @return results with a failure
+	 */
+	public synchronized List<Result> getFailures() {
+		List<Result> failures = new ArrayList<>();
+		for (Result result : results) {
+			if (result.getFailure() != null) {
+				failures.add(result);
+			}
+		}
+		return failures;
+	}
+
+	public boolean isSuccessful() {
+		return getFailures().isEmpty();
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Result result : results) {
+			sb.append(result).append('\n');
+		}
+		return sb.toString();
+	}
+
+	public static class Result {
+
+		private File earFile;
+		private String environment;
+		private File targetFile;
+		private long millis;
+		private Throwable failure;
+
+		Result(File earFile, String environment, File targetFile, long millis, Throwable failure) {
+			this.earFile = earFile;
+			this.environment = environment;
+			this.targetFile = targetFile;
+			this.millis = millis;
+			this.failure = failure;
+		}
+
+		public File getEarFile() {
+			return earFile;
+		}
+
+		/**
+		 * @return variant environment, or null for the analysis of the EAR
+		 */
+		public String getEnvironment() {
+			return environment;
+		}
+
+		/**
+		 * @return written file, or null for the analysis of the EAR
+		 */
+		public File getTargetFile() {
+			return targetFile;
+		}
+
+		/**
+		 * @return time spent analysing the EAR or writing the variant
+		 */
+		public long getMillis() {
+			return millis;
+		}
+
+		public Throwable getFailure() {
+			return failure;
+		}
+
+		@Override
+		public String toString() {
+			String what = environment == null ? "analysed " + earFile : "wrote " + environment + " variant of " + earFile + " to " + targetFile;
+			return what + " in " + millis + " ms" + (failure == null ? "" : ", failed: " + failure);
+		}
+
+	}
+
+}
@@ -0,0 +1,83 @@
+package net.gisnas.oystein.ibm;
+
+/**
+ * Sets an attribute in the SCDL file of an import or export
+ *
+ * The attribute path is relative to the root element of the SCDL file, with
+ * elements separated by / and the attribute last, e.g.
+ * <code>esbBinding/@endpoint</code> or
+ * <code>esbBinding/connection/@target</code>. Elements and attributes are
+ * matched by local name. The value is set on every element matching the
+ * path.
+ *
+ * If a binding type is given, the rule only applies inside an esbBinding
+ * element of that xsi:type, e.g. <code>JMSImportBinding</code>. The
+ * namespace prefix of the type is ignored.
+ *
+ * @see ScaUtil#modifyBindings(BindingRule[], java.io.File, java.io.File)
+ */
+public class BindingRule {
+
+	private String name;
+	private String bindingType;
+	private String attributePath;
+	private String value;
+	private String[] elementPath;
+	private String attribute;
+
+	/**
+	 * @param name Name of the import or export
+	 * @param bindingType xsi:type of the esbBinding, or null for any binding
+	 * @param attributePath Path of the attribute to set
+	 * @param value New attribute value
+	 */
+	public BindingRule(String name, String bindingType, String attributePath, String value) {
+		int at = attributePath.lastIndexOf("/@");
+		if (at < 0 && !attributePath.startsWith("@")) {
+			throw new IllegalArgumentException("Attribute path must end with /@attribute: " + attributePath);
+		}
+		this.name = name;
+		this.bindingType = bindingType;
+		this.attributePath = attributePath;
+		this.value = value;
+		this.elementPath = at < 0 ? new String[0] : attributePath.substring(0, at).split("/");
+		this.attribute = attributePath.substring(at < 0 ? 1 : at + 2);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getBindingType() {
+		return bindingType;
+	}
+
+	public String getAttributePath() {
+		return attributePath;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * @return local names of the elements leading to the attribute, below the
+	 *         root element
+	 */
+	String[] getElementPath() {
+		return elementPath;
+	}
+
+	/**
+	 * @return local name of the attribute
+	 */
+	String getAttribute() {
+		return attribute;
+	}
+
+	@Override
+	public String toString() {
+		return name + (bindingType == null ? "" : "[" + bindingType + "]") + ":" + attributePath + "=" + value;
+	}
+
+}
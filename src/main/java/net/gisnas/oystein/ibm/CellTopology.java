@@ -0,0 +1,274 @@
+package net.gisnas.oystein.ibm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanServerNotification;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.websphere.management.AdminClient;
+import com.ibm.websphere.management.exception.ConnectorException;
+import com.ibm.websphere.management.wlm.ClusterMemberData;
+
+/**
+ * Cache of the AppManagement MBean, clusters, cluster members and running
+ * servers of a cell
+ *
+ * Each part is queried from the deployment manager the first time it is
+ * needed, and kept until it is older than the time to live. Registration
+ * and unregistration of AppManagement, Cluster and Server MBeans, e.g. when
+ * a server is started or stopped, drops the whole cache. If the deployment
+ * manager does not deliver registration notifications, the time to live
+ * alone bounds how stale the cache gets.
+ *
+ * Thread safe. Concurrent misses may query the same part twice.
+ */
+public class CellTopology implements NotificationListener {
+
+	private static final Logger logger = LoggerFactory.getLogger(CellTopology.class);
+	/** Default time to live, in milliseconds */
+	public static final long DEFAULT_TTL = 300000;
+	private static final Set<String> TOPOLOGY_TYPES = new HashSet<>(Arrays.asList("AppManagement", "Cluster", "Server"));
+
+	private final AdminClient adminClient;
+	private final long ttl;
+	private volatile Snapshot snapshot;
+	/** Guarded by this */
+	private boolean subscribed;
+
+	/**
+	 * @param adminClient
+	 * @param ttl Time to live in milliseconds
+	 */
+	public CellTopology(AdminClient adminClient, long ttl) {
+		this.adminClient = adminClient;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * @return object name of the AppManagement MBean
+	 */
+	public ObjectName getAppManagement() {
+		Snapshot current = current();
+		if (current.appManagement == null) {
+			Iterator<?> iter = query("WebSphere:type=AppManagement,*").iterator();
+			if (!iter.hasNext()) {
+				throw new RuntimeException("AppManagement MBean not found");
+			}
+			current.appManagement = (ObjectName) iter.next();
+		}
+		return current.appManagement;
+	}
+
+	/**
+	 * @return object names of all clusters
+	 */
+	public Set<ObjectName> getClusters() {
+		Snapshot current = current();
+		if (current.clusters == null) {
+			current.clusters = query("WebSphere:type=Cluster,*");
+		}
+		return current.clusters;
+	}
+
+	/**
+	 * @return object names of running managed servers
+	 */
+	public Set<ObjectName> getManagedServers() {
+		Snapshot current = current();
+		if (current.managedServers == null) {
+			current.managedServers = query("WebSphere:type=Server,processType=ManagedProcess,*");
+		}
+		return current.managedServers;
+	}
+
+	/**
+	 * @return object names of running unmanaged servers
+	 */
+	public Set<ObjectName> getUnmanagedServers() {
+		Snapshot current = current();
+		if (current.unmanagedServers == null) {
+			current.unmanagedServers = query("WebSphere:type=Server,processType=UnManagedProcess,*");
+		}
+		return current.unmanagedServers;
+	}
+
+	/**
+	 * Find a cluster by name
+	 *
+	 * A cluster which is not cached causes one refresh, in case it was
+	 * created since the clusters were queried.
+	 *
+	 * @param cluster Cluster name
+	 * @return object name of the cluster
+	 * @throws RuntimeException if the cluster does not exist
+	 */
+	public ObjectName lookupCluster(String cluster) {
+		ObjectName clusterON = findCluster(cluster);
+		if (clusterON == null) {
+			logger.debug("Cluster {} not cached, refreshing topology", cluster);
+			refresh();
+			clusterON = findCluster(cluster);
+		}
+		if (clusterON == null) {
+			throw new RuntimeException("Cluster " + cluster + " not found");
+		}
+		return clusterON;
+	}
+
+	private ObjectName findCluster(String cluster) {
+		for (ObjectName clusterON : getClusters()) {
+			if (cluster.equals(clusterON.getKeyProperty("name"))) {
+				return clusterON;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param cluster Cluster name
+	 * @return members of the cluster, as deployment target strings
+	 * @see AppManagementClient#createServerString(ObjectName)
+	 */
+	public Set<String> getClusterMembers(String cluster) {
+		Snapshot current = current();
+		Set<String> members = current.clusterMembers.get(cluster);
+		if (members == null) {
+			members = queryClusterMembers(lookupCluster(cluster));
+			current.clusterMembers.put(cluster, members);
+		}
+		return members;
+	}
+
+	private Set<String> queryClusterMembers(ObjectName clusterON) {
+		try {
+			ClusterMemberData[] clusterMemberData = (ClusterMemberData[]) adminClient.invoke(clusterON, "getClusterMembers", null, null);
+			Set<String> clusterMembers = new HashSet<>(clusterMemberData.length);
+			for (ClusterMemberData c : clusterMemberData) {
+				clusterMembers.add(AppManagementClient.createServerString(c.memberObjectName));
+			}
+			return Collections.unmodifiableSet(clusterMembers);
+		} catch (InstanceNotFoundException | MBeanException | ReflectionException e) {
+			throw new RuntimeException("An error occured while querying cluster " + clusterON, e);
+		} catch (ConnectorException e) {
+			throw new RuntimeException("An error occured in the communication with the deployment manager", e);
+		}
+	}
+
+	/**
+	 * Drop everything cached, so it is queried again when next needed
+	 */
+	public void refresh() {
+		snapshot = null;
+	}
+
+	/**
+	 * Stop listening for registration notifications
+	 *
+	 * The topology can still be used, and listens again when it is next
+	 * queried.
+	 */
+	public synchronized void close() {
+		if (subscribed) {
+			subscribed = false;
+			try {
+				adminClient.removeNotificationListener(delegateName(), this);
+			} catch (Exception e) {
+				logger.warn("Unable to remove notification listener: {}", e);
+			}
+		}
+	}
+
+	@Override
+	public void handleNotification(Notification notification, Object handback) {
+		if (notification instanceof MBeanServerNotification) {
+			ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+			if (TOPOLOGY_TYPES.contains(name.getKeyProperty("type"))) {
+				logger.debug("Topology changed ({} {}), dropping cache", notification.getType(), name);
+				refresh();
+			}
+		}
+	}
+
+	private Snapshot current() {
+		Snapshot current = snapshot;
+		if (current == null || System.currentTimeMillis() - current.created > ttl) {
+			subscribe();
+			current = new Snapshot();
+			snapshot = current;
+		}
+		return current;
+	}
+
+	/**
+	 * Listen for MBean registrations, once. Failure is logged, and leaves the
+	 * cache to expire by time to live.
+	 */
+	private synchronized void subscribe() {
+		if (subscribed) {
+			return;
+		}
+		subscribed = true;
+		MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+		filter.enableAllObjectNames();
+		try {
+			adminClient.addNotificationListener(delegateName(), this, filter, null);
+		} catch (InstanceNotFoundException | ConnectorException | RuntimeException e) {
+			logger.debug("Unable to listen for MBean registrations, topology cache relies on time to live", e);
+		}
+	}
+
+	private static ObjectName delegateName() {
+		try {
+			return new ObjectName("JMImplementation:type=MBeanServerDelegate");
+		} catch (MalformedObjectNameException e) {
+			throw new RuntimeException("Invalid MBean server delegate name", e);
+		}
+	}
+
+	private Set<ObjectName> query(String name) {
+		try {
+			ObjectName query = new ObjectName(name);
+			logger.debug("Querying {}", query);
+			Set<ObjectName> result = new HashSet<>();
+			for (Object o : adminClient.queryNames(query, null)) {
+				result.add((ObjectName) o);
+			}
+			return Collections.unmodifiableSet(result);
+		} catch (MalformedObjectNameException e) {
+			throw new RuntimeException("Could not query MBean", e);
+		} catch (ConnectorException e) {
+			throw new RuntimeException("An error occured in the communication with the deployment manager", e);
+		}
+	}
+
+	/**
+	 * Parts of the topology queried since the cache was last dropped
+	 */
+	private static class Snapshot {
+
+		private final long created = System.currentTimeMillis();
+		private volatile ObjectName appManagement;
+		private volatile Set<ObjectName> clusters;
+		private volatile Set<ObjectName> managedServers;
+		private volatile Set<ObjectName> unmanagedServers;
+		private final Map<String, Set<String>> clusterMembers = new ConcurrentHashMap<>();
+
+	}
+
+}
@@ -0,0 +1,32 @@
+package net.gisnas.oystein.ibm;
+
+/**
+ * Receives the timing of each phase of the deployments made by an
+ * {@link AppManager}
+ *
+ * Called on the thread completing the phase, which may be a notification
+ * thread. Implementations should be quick and thread safe.
+ *
+ * @see AppManager#addListener(DeployListener)
+ * @see DeployMetrics
+ */
+public interface DeployListener {
+
+	/**
+	 * @param cell Cell deployed to, or null if not known
+	 * @param appName
+	 * @param phase
+	 * @param millis Time taken by the phase
+	 * @param failure Cause if the phase failed, otherwise null
+	 */
+	void phaseCompleted(String cell, String appName, DeployPhase phase, long millis, Throwable failure);
+
+	/**
+	 * @param cell Cell deployed to, or null if not known
+	 * @param appName
+	 * @param checks Number of distribution status checks made before the
+	 *        application was distributed to all nodes
+	 */
+	void distributionChecked(String cell, String appName, int checks);
+
+}
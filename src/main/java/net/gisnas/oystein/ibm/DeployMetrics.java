@@ -0,0 +1,198 @@
+package net.gisnas.oystein.ibm;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts and times of deployment phases, in total and by application
+ *
+ * Percentiles are computed from the most recent SAMPLES times of each phase.
+ * Register with {@link AppManager#addListener(DeployListener)}, and with the
+ * platform MBean server by {@link #register(String)} to read it over JMX.
+ *
+ * Thread safe.
+ */
+public class DeployMetrics implements DeployListener, DeployMetricsMBean {
+
+	/** Number of recent times kept for each phase */
+	static final int SAMPLES = 1024;
+
+	private final Map<DeployPhase, Stats> total = newStats();
+	/** Stats by cell/application */
+	private final ConcurrentMap<String, Map<DeployPhase, Stats>> applications = new ConcurrentHashMap<>();
+	private final AtomicLong distributionChecks = new AtomicLong();
+	/** Guarded by this */
+	private ObjectName registeredName;
+
+	@Override
+	public void phaseCompleted(String cell, String appName, DeployPhase phase, long millis, Throwable failure) {
+		total.get(phase).add(millis, failure != null);
+		String application = cell + "/" + appName;
+		Map<DeployPhase, Stats> stats = applications.get(application);
+		if (stats == null) {
+			stats = newStats();
+			Map<DeployPhase, Stats> existing = applications.putIfAbsent(application, stats);
+			if (existing != null) {
+				stats = existing;
+			}
+		}
+		stats.get(phase).add(millis, failure != null);
+	}
+
+	@Override
+	public void distributionChecked(String cell, String appName, int checks) {
+		distributionChecks.addAndGet(checks);
+	}
+
+	/**
+	 * Register with the platform MBean server
+	 *
+	 * @param name Distinguishes several instances in one JVM
+	 * @return name the MBean is registered as
+	 */
+	public synchronized ObjectName register(String name) {
+		try {
+			ObjectName objectName = new ObjectName(getClass().getPackage().getName() + ":type=DeployMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			registeredName = objectName;
+			return objectName;
+		} catch (JMException e) {
+			throw new RuntimeException("Unable to register deploy metrics MBean " + name, e);
+		}
+	}
+
+	/**
+	 * Unregister from the platform MBean server, if registered
+	 */
+	public synchronized void unregister() {
+		if (registeredName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+			} catch (JMException e) {
+				throw new RuntimeException("Unable to unregister deploy metrics MBean " + registeredName, e);
+			}
+			registeredName = null;
+		}
+	}
+
+	@Override
+	public String[] getApplications() {
+		return new TreeSet<>(applications.keySet()).toArray(new String[0]);
+	}
+
+	@Override
+	public long getCount(String phase) {
+		return total.get(DeployPhase.valueOf(phase)).getCount();
+	}
+
+	@Override
+	public long getFailures(String phase) {
+		return total.get(DeployPhase.valueOf(phase)).getFailures();
+	}
+
+	@Override
+	public long getPercentile(String phase, double percentile) {
+		return total.get(DeployPhase.valueOf(phase)).getPercentile(percentile);
+	}
+
+	@Override
+	public long getApplicationCount(String application, String phase) {
+		Stats stats = getStats(application, phase);
+		return stats == null ? 0 : stats.getCount();
+	}
+
+	@Override
+	public long getApplicationFailures(String application, String phase) {
+		Stats stats = getStats(application, phase);
+		return stats == null ? 0 : stats.getFailures();
+	}
+
+	@Override
+	public long getApplicationPercentile(String application, String phase, double percentile) {
+		Stats stats = getStats(application, phase);
+		return stats == null ? -1 : stats.getPercentile(percentile);
+	}
+
+	@Override
+	public long getDistributionChecks() {
+		return distributionChecks.get();
+	}
+
+	@Override
+	public void reset() {
+		for (Stats stats : total.values()) {
+			stats.reset();
+		}
+		applications.clear();
+		distributionChecks.set(0);
+	}
+
+	private Stats getStats(String application, String phase) {
+		Map<DeployPhase, Stats> stats = applications.get(application);
+		return stats == null ? null : stats.get(DeployPhase.valueOf(phase));
+	}
+
+	private static Map<DeployPhase, Stats> newStats() {
+		Map<DeployPhase, Stats> stats = new EnumMap<>(DeployPhase.class);
+		for (DeployPhase phase : DeployPhase.values()) {
+			stats.put(phase, new Stats());
+		}
+		return stats;
+	}
+
+	/**
+	 * Counts and recent times of one phase
+	 */
+	private static class Stats {
+
+		private long count;
+		private long failures;
+		private final long[] samples = new long[SAMPLES];
+		private int next;
+
+		synchronized void add(long millis, boolean failed) {
+			count++;
+			if (failed) {
+				failures++;
+			}
+			samples[next] = millis;
+			next = (next + 1) % SAMPLES;
+		}
+
+		synchronized long getCount() {
+			return count;
+		}
+
+		synchronized long getFailures() {
+			return failures;
+		}
+
+		synchronized long getPercentile(double percentile) {
+			int size = (int) Math.min(count, SAMPLES);
+			if (size == 0) {
+				return -1;
+			}
+			long[] sorted = Arrays.copyOf(samples, size);
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percentile / 100 * size) - 1;
+			return sorted[Math.max(0, Math.min(index, size - 1))];
+		}
+
+		synchronized void reset() {
+			count = 0;
+			failures = 0;
+			next = 0;
+		}
+
+	}
+
+}
@@ -0,0 +1,59 @@
+package net.gisnas.oystein.ibm;
+
+/**
+ * Management interface of {@link DeployMetrics}
+ *
+ * Phases are named as in {@link DeployPhase}. Applications are named
+ * cell/application.
+ */
+public interface DeployMetricsMBean {
+
+	/**
+	 * @return applications with recorded deployments
+	 */
+	String[] getApplications();
+
+	/**
+	 * @return number of times the phase completed, including failures
+	 */
+	long getCount(String phase);
+
+	/**
+	 * @return number of times the phase failed
+	 */
+	long getFailures(String phase);
+
+	/**
+	 * @param percentile Between 0 and 100, e.g. 50 for the median
+	 * @return percentile of the recent times of the phase in milliseconds, or
+	 *         -1 if none
+	 */
+	long getPercentile(String phase, double percentile);
+
+	/**
+	 * @return number of times the phase completed for the application
+	 */
+	long getApplicationCount(String application, String phase);
+
+	/**
+	 * @return number of times the phase failed for the application
+	 */
+	long getApplicationFailures(String application, String phase);
+
+	/**
+	 * @return percentile of the recent times of the phase for the application
+	 *         in milliseconds, or -1 if none
+	 */
+	long getApplicationPercentile(String application, String phase, double percentile);
+
+	/**
+	 * @return total number of distribution status checks
+	 */
+	long getDistributionChecks();
+
+	/**
+	 * Forget everything recorded
+	 */
+	void reset();
+
+}
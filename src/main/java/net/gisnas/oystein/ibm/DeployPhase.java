@@ -0,0 +1,28 @@
+package net.gisnas.oystein.ibm;
+
+/**
+ * Phase of a deployment, as reported to a {@link DeployListener}
+ *
+ * @see AppManager#deployAsync(java.io.File, String, String, boolean)
+ */
+public enum DeployPhase {
+
+	/** Reading the application name from application.xml in the EAR */
+	EXTRACT_NAME,
+
+	/** Uploading the EAR and installing it on the deployment manager */
+	INSTALL,
+
+	/** Waiting for the application to be distributed to all nodes */
+	DISTRIBUTION,
+
+	/**
+	 * Starting the application. With pipelined start, from when distribution
+	 * is awaited until started on all servers.
+	 */
+	START,
+
+	/** The whole deployment */
+	TOTAL
+
+}
@@ -0,0 +1,181 @@
+package net.gisnas.oystein.ibm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local record of the EAR digest last deployed for each application
+ *
+ * Digests of the modules of the EAR may be recorded along with it, for
+ * updating only the modules which changed.
+ *
+ * Used by {@link AppManager} to skip deploying an EAR which is already
+ * installed and running. Entries are keyed by cell and application name, so
+ * one ledger can serve several cells.
+ *
+ * The ledger only knows about deployments made through it. If an
+ * application may have been deployed by other means, e.g. the admin
+ * console, deploy with force.
+ *
+ * The file may be shared by several JVMs. Updates are made under a file
+ * lock and written atomically.
+ */
+public class DeploymentLedger {
+
+	private static final Logger logger = LoggerFactory.getLogger(DeploymentLedger.class);
+	/** File locks are held by the JVM, so threads must also be serialised */
+	private static final Object updateMonitor = new Object();
+	private static final String MODULE_SEPARATOR = "!";
+
+	private final File file;
+
+	/**
+	 * @param file Ledger file, created when the first deployment is recorded
+	 */
+	public DeploymentLedger(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return digest last recorded for the application, or null if none
+	 */
+	public String getDigest(String cell, String appName) {
+		return load().getProperty(key(cell, appName));
+	}
+
+	/**
+	 * @return digests last recorded for the modules of the application, by
+	 *         module URI. Empty if none.
+	 */
+	public Map<String, String> getModuleDigests(String cell, String appName) {
+		Properties properties = load();
+		String prefix = key(cell, appName) + MODULE_SEPARATOR;
+		Map<String, String> moduleDigests = new TreeMap<>();
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(prefix)) {
+				moduleDigests.put(key.substring(prefix.length()), properties.getProperty(key));
+			}
+		}
+		return moduleDigests;
+	}
+
+	/**
+	 * Record the digest of a deployed application
+	 */
+	public void record(String cell, String appName, String digest) {
+		record(cell, appName, digest, Collections.<String, String> emptyMap());
+	}
+
+	/**
+	 * Record the digests of a deployed application and its modules
+	 * 
+	 * Replaces all digests recorded for the application.
+	 */
+	public void record(String cell, String appName, String digest, Map<String, String> moduleDigests) {
+		update(cell, appName, digest, moduleDigests);
+	}
+
+	/**
+	 * Forget an application, e.g. when it is uninstalled
+	 */
+	public void remove(String cell, String appName) {
+		update(cell, appName, null, Collections.<String, String> emptyMap());
+	}
+
+	private void update(String cell, String appName, String digest, Map<String, String> moduleDigests) {
+		synchronized (updateMonitor) {
+			RandomAccessFile lockFile = null;
+			try {
+				File parent = file.getAbsoluteFile().getParentFile();
+				FileUtils.forceMkdir(parent);
+				lockFile = new RandomAccessFile(new File(parent, file.getName() + ".lock"), "rw");
+				FileLock lock = lockFile.getChannel().lock();
+				try {
+					Properties properties = load();
+					String key = key(cell, appName);
+					properties.remove(key);
+					for (String name : properties.stringPropertyNames()) {
+						if (name.startsWith(key + MODULE_SEPARATOR)) {
+							properties.remove(name);
+						}
+					}
+					if (digest != null) {
+						properties.setProperty(key, digest);
+						for (Map.Entry<String, String> moduleDigest : moduleDigests.entrySet()) {
+							properties.setProperty(key + MODULE_SEPARATOR + moduleDigest.getKey(), moduleDigest.getValue());
+						}
+					}
+					store(properties, parent);
+				} finally {
+					lock.release();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to update deployment ledger " + file, e);
+			} finally {
+				IOUtils.closeQuietly(lockFile);
+			}
+		}
+	}
+
+	private Properties load() {
+		Properties properties = new Properties();
+		InputStream is = null;
+		try {
+			is = Files.newInputStream(file.toPath());
+			properties.load(is);
+		} catch (NoSuchFileException e) {
+			// Nothing recorded yet
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read deployment ledger " + file, e);
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+		return properties;
+	}
+
+	private void store(Properties properties, File directory) throws IOException {
+		File tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+		try {
+			OutputStream os = Files.newOutputStream(tempFile.toPath());
+			try {
+				properties.store(os, "Deployed EAR digests by cell/application");
+			} finally {
+				os.close();
+			}
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			logger.debug("Updated deployment ledger {}", file);
+		} finally {
+			FileUtils.deleteQuietly(tempFile);
+		}
+	}
+
+	private static String key(String cell, String appName) {
+		return cell + "/" + appName;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+
+}
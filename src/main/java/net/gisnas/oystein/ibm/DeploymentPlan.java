@@ -0,0 +1,395 @@
+package net.gisnas.oystein.ibm;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A release of several applications, with dependencies between them
+ *
+ * Applications are installed concurrently, at most parallelism at a time,
+ * with dependencies installed first. Each application is started as soon as
+ * it is installed and all its dependencies are running. If an application
+ * fails, applications depending on it are not installed or started, while
+ * the rest of the plan is carried out.
+ *
+ * <pre>
+ * DeploymentPlan plan = new DeploymentPlan();
+ * plan.add("SharedLib", sharedLibEar, "AppCluster");
+ * plan.add("OrderModule", orderModuleEar, "AppCluster", "SharedLib");
+ * plan.add("OrderWeb", orderWebEar, "WebCluster", "OrderModule");
+ * DeploymentReport report = plan.execute(appManager, 4);
+ * </pre>
+ */
+public class DeploymentPlan {
+
+	private static final Logger logger = LoggerFactory.getLogger(DeploymentPlan.class);
+
+	private final Map<String, App> apps = new LinkedHashMap<>();
+
+	/**
+	 * @param appName Application name. If not set, uses display-name in application.xml.
+	 * @param earFile
+	 * @param cluster Deploy to this cluster. Must be set if more than one clusters/servers.
+	 * @param dependencies Names of applications which must be running before this is started
+	 * @return this
+	 */
+	public DeploymentPlan add(String appName, File earFile, String cluster, String... dependencies) {
+		String name = appName == null ? AppManager.extractAppName(earFile) : appName;
+		if (apps.containsKey(name)) {
+			throw new IllegalArgumentException("Application " + name + " is already in the plan");
+		}
+		apps.put(name, new App(name, earFile, cluster, Arrays.asList(dependencies)));
+		return this;
+	}
+
+	public List<App> getApps() {
+		return new ArrayList<>(apps.values());
+	}
+
+	/**
+	 * Deploy and start all applications in the plan
+	 *
+	 * @param appManager
+	 * @param parallelism Maximum number of applications installed at the same time
+	 * @return timings and failures, and the critical path of the deployment
+	 */
+	public DeploymentReport execute(final AppManager appManager, int parallelism) {
+		return execute(new Deployer() {
+			@Override
+			public SettableFuture<Void> install(App app) {
+				return appManager.installAsync(app.getEarFile(), app.getAppName(), app.getCluster());
+			}
+
+			@Override
+			public SettableFuture<Void> start(App app) {
+				return appManager.startAppAsync(app.getAppName());
+			}
+		}, parallelism);
+	}
+
+	DeploymentReport execute(Deployer deployer, int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1, was " + parallelism);
+		}
+		Execution execution = new Execution(deployer, parallelism, sort());
+		execution.begin();
+		DeploymentReport report;
+		try {
+			report = execution.done.get();
+		} catch (InterruptedException e) {
+			execution.cancel();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while executing deployment plan", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Deployment plan failed", e.getCause());
+		}
+		logger.info("Deployment plan finished in {} ms, critical path: {}", report.getMillis(), report.getCriticalPath());
+		for (DeploymentReport.Result failure : report.getFailures()) {
+			logger.error("{}", failure);
+		}
+		return report;
+	}
+
+	/**
+	 * @return applications with dependencies before dependants, otherwise in
+	 *         the order they were added
+	 */
+	List<App> sort() {
+		List<App> sorted = new ArrayList<>();
+		Map<String, Boolean> visited = new HashMap<>();
+		for (App app : apps.values()) {
+			visit(app, visited, sorted);
+		}
+		return sorted;
+	}
+
+	private void visit(App app, Map<String, Boolean> visited, List<App> sorted) {
+		Boolean done = visited.get(app.getAppName());
+		if (Boolean.TRUE.equals(done)) {
+			return;
+		}
+		if (Boolean.FALSE.equals(done)) {
+			throw new IllegalArgumentException("Dependency cycle through application " + app.getAppName());
+		}
+		visited.put(app.getAppName(), false);
+		for (String dependency : app.getDependencies()) {
+			App dependencyApp = apps.get(dependency);
+			if (dependencyApp == null) {
+				throw new IllegalArgumentException("Application " + app.getAppName() + " depends on " + dependency + ", which is not in the plan");
+			}
+			visit(dependencyApp, visited, sorted);
+		}
+		visited.put(app.getAppName(), true);
+		sorted.add(app);
+	}
+
+	/**
+	 * Application in a deployment plan
+	 */
+	public static class App {
+
+		private String appName;
+		private File earFile;
+		private String cluster;
+		private List<String> dependencies;
+
+		App(String appName, File earFile, String cluster, List<String> dependencies) {
+			this.appName = appName;
+			this.earFile = earFile;
+			this.cluster = cluster;
+			this.dependencies = Collections.unmodifiableList(dependencies);
+		}
+
+		public String getAppName() {
+			return appName;
+		}
+
+		public File getEarFile() {
+			return earFile;
+		}
+
+		public String getCluster() {
+			return cluster;
+		}
+
+		public List<String> getDependencies() {
+			return dependencies;
+		}
+
+		@Override
+		public String toString() {
+			return appName + (dependencies.isEmpty() ? "" : " " + dependencies);
+		}
+
+	}
+
+	/**
+	 * Carries out the phases of each application
+	 */
+	interface Deployer {
+
+		/**
+		 * @return future completed when the application is installed and
+		 *         distributed
+		 */
+		SettableFuture<Void> install(App app);
+
+		/**
+		 * @return future completed when the application is running
+		 */
+		SettableFuture<Void> start(App app);
+
+	}
+
+	private enum State {
+		PENDING, INSTALLING, INSTALLED, STARTING, RUNNING, FAILED, SKIPPED
+	}
+
+	/**
+	 * State of an executing plan
+	 *
+	 * Callbacks from the deployer may come on any thread, so all state is
+	 * guarded by the execution.
+	 */
+	private static class Execution {
+
+		private final Deployer deployer;
+		private final int parallelism;
+		private final Deque<App> pending;
+		private final Map<String, State> states = new HashMap<>();
+		private final Map<String, List<App>> dependants = new HashMap<>();
+		private final Map<String, DeploymentReport.Result> results = new LinkedHashMap<>();
+		private final List<SettableFuture<Void>> inFlight = new ArrayList<>();
+		private final SettableFuture<DeploymentReport> done = new SettableFuture<>();
+		private final long begin = System.nanoTime();
+		private int installing;
+		private int remaining;
+
+		Execution(Deployer deployer, int parallelism, List<App> apps) {
+			this.deployer = deployer;
+			this.parallelism = parallelism;
+			this.pending = new ArrayDeque<>(apps);
+			this.remaining = apps.size();
+			for (App app : apps) {
+				states.put(app.getAppName(), State.PENDING);
+				results.put(app.getAppName(), new DeploymentReport.Result(app));
+				dependants.put(app.getAppName(), new ArrayList<App>());
+			}
+			for (App app : apps) {
+				for (String dependency : app.getDependencies()) {
+					dependants.get(dependency).add(app);
+				}
+			}
+		}
+
+		synchronized void begin() {
+			if (remaining == 0) {
+				finish();
+			}
+			installNext();
+		}
+
+		synchronized void cancel() {
+			for (SettableFuture<Void> future : inFlight) {
+				future.cancel(false);
+			}
+		}
+
+		private void installNext() {
+			while (installing < parallelism && !pending.isEmpty()) {
+				final App app = pending.poll();
+				if (states.get(app.getAppName()) != State.PENDING) {
+					continue;
+				}
+				logger.debug("Installing {}", app.getAppName());
+				states.put(app.getAppName(), State.INSTALLING);
+				results.get(app.getAppName()).installBegin = now();
+				installing++;
+				track(deployer.install(app), new SettableFuture.Callback<Void>() {
+					@Override
+					public void onSuccess(Void value) {
+						installed(app);
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+						installFailed(app, t);
+					}
+				});
+			}
+		}
+
+		private synchronized void installed(App app) {
+			installing--;
+			results.get(app.getAppName()).installEnd = now();
+			if (states.get(app.getAppName()) == State.INSTALLING) {
+				states.put(app.getAppName(), State.INSTALLED);
+				startIfReady(app);
+			}
+			installNext();
+		}
+
+		private synchronized void installFailed(App app, Throwable t) {
+			installing--;
+			results.get(app.getAppName()).installEnd = now();
+			if (states.get(app.getAppName()) == State.INSTALLING) {
+				fail(app, t);
+			}
+			installNext();
+		}
+
+		private void startIfReady(final App app) {
+			if (states.get(app.getAppName()) != State.INSTALLED) {
+				return;
+			}
+			for (String dependency : app.getDependencies()) {
+				if (states.get(dependency) != State.RUNNING) {
+					return;
+				}
+			}
+			logger.debug("Starting {}", app.getAppName());
+			states.put(app.getAppName(), State.STARTING);
+			results.get(app.getAppName()).startBegin = now();
+			track(deployer.start(app), new SettableFuture.Callback<Void>() {
+				@Override
+				public void onSuccess(Void value) {
+					started(app);
+				}
+
+				@Override
+				public void onFailure(Throwable t) {
+					startFailed(app, t);
+				}
+			});
+		}
+
+		private synchronized void started(App app) {
+			results.get(app.getAppName()).running = now();
+			states.put(app.getAppName(), State.RUNNING);
+			for (App dependant : dependants.get(app.getAppName())) {
+				startIfReady(dependant);
+			}
+			finished();
+		}
+
+		private synchronized void startFailed(App app, Throwable t) {
+			fail(app, t);
+		}
+
+		private void fail(App app, Throwable t) {
+			logger.debug("Application {} failed", app.getAppName(), t);
+			states.put(app.getAppName(), State.FAILED);
+			DeploymentReport.Result result = results.get(app.getAppName());
+			result.failure = t;
+			result.running = now();
+			skipDependants(app);
+			finished();
+		}
+
+		/**
+		 * Leave out applications depending on a failed application, also
+		 * if they are being installed
+		 */
+		private void skipDependants(App app) {
+			for (App dependant : dependants.get(app.getAppName())) {
+				State state = states.get(dependant.getAppName());
+				if (state == State.FAILED || state == State.SKIPPED) {
+					continue;
+				}
+				states.put(dependant.getAppName(), State.SKIPPED);
+				results.get(dependant.getAppName()).failure = new IllegalStateException("Not started, dependency " + app.getAppName() + " failed");
+				skipDependants(dependant);
+				finished();
+			}
+		}
+
+		private void track(final SettableFuture<Void> future, SettableFuture.Callback<Void> callback) {
+			inFlight.add(future);
+			future.addCallback(new SettableFuture.Callback<Void>() {
+				@Override
+				public void onSuccess(Void value) {
+					untrack(future);
+				}
+
+				@Override
+				public void onFailure(Throwable t) {
+					untrack(future);
+				}
+			});
+			future.addCallback(callback);
+		}
+
+		private synchronized void untrack(SettableFuture<Void> future) {
+			inFlight.remove(future);
+		}
+
+		private void finished() {
+			remaining--;
+			if (remaining == 0) {
+				finish();
+			}
+		}
+
+		private void finish() {
+			done.set(new DeploymentReport(new ArrayList<>(results.values()), now()));
+		}
+
+		private long now() {
+			return (System.nanoTime() - begin) / 1000000;
+		}
+
+	}
+
+}
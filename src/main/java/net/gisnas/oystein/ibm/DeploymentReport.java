@@ -0,0 +1,166 @@
+package net.gisnas.oystein.ibm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timings and failures from executing a deployment plan
+ *
+ * Times are in milliseconds from the start of the plan, or -1 if the phase
+ * was not reached.
+ *
+ * @see DeploymentPlan#execute(AppManager, int)
+ */
+public class DeploymentReport {
+
+	private final List<Result> results;
+	private final long millis;
+
+	DeploymentReport(List<Result> results, long millis) {
+		this.results = Collections.unmodifiableList(results);
+		this.millis = millis;
+	}
+
+	/**
+	 * @return results in dependency order
+	 */
+	public List<Result> getResults() {
+		return results;
+	}
+
+	/**
+	 * @return results of applications which failed or were not started
+	 */
+	public List<Result> getFailures() {
+		List<Result> failures = new ArrayList<>();
+		for (Result result : results) {
+			if (result.getFailure() != null) {
+				failures.add(result);
+			}
+		}
+		return failures;
+	}
+
+	public boolean isSuccessful() {
+		return getFailures().isEmpty();
+	}
+
+	/**
+	 * @return time spent executing the plan
+	 */
+	public long getMillis() {
+		return millis;
+	}
+
+	/**
+	 * The chain of applications which decided how long the plan took
+	 *
+	 * Starts with the application finishing last, and follows the dependency
+	 * it was waiting for before it could start, until an application which
+	 * was only waiting for its own installation.
+	 *
+	 * @return applications on the critical path, first to last
+	 */
+	public List<Result> getCriticalPath() {
+		Map<String, Result> byName = new HashMap<>();
+		Result last = null;
+		for (Result result : results) {
+			byName.put(result.getAppName(), result);
+			if (result.getRunning() >= 0 && (last == null || result.getRunning() >= last.getRunning())) {
+				last = result;
+			}
+		}
+		List<Result> path = new ArrayList<>();
+		while (last != null) {
+			path.add(last);
+			Result waitedFor = null;
+			for (String dependency : last.getApp().getDependencies()) {
+				Result result = byName.get(dependency);
+				if (result.getRunning() >= last.getInstallEnd() && (waitedFor == null || result.getRunning() > waitedFor.getRunning())) {
+					waitedFor = result;
+				}
+			}
+			last = waitedFor;
+		}
+		Collections.reverse(path);
+		return path;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Result result : results) {
+			sb.append(result).append('\n');
+		}
+		sb.append("Finished in ").append(millis).append(" ms, critical path: ").append(getCriticalPath());
+		return sb.toString();
+	}
+
+	public static class Result {
+
+		private DeploymentPlan.App app;
+		long installBegin = -1;
+		long installEnd = -1;
+		long startBegin = -1;
+		long running = -1;
+		Throwable failure;
+
+		Result(DeploymentPlan.App app) {
+			this.app = app;
+		}
+
+		public DeploymentPlan.App getApp() {
+			return app;
+		}
+
+		public String getAppName() {
+			return app.getAppName();
+		}
+
+		/**
+		 * @return time the upload began
+		 */
+		public long getInstallBegin() {
+			return installBegin;
+		}
+
+		/**
+		 * @return time the application was installed and distributed
+		 */
+		public long getInstallEnd() {
+			return installEnd;
+		}
+
+		/**
+		 * @return time the start began, after the dependencies were running
+		 */
+		public long getStartBegin() {
+			return startBegin;
+		}
+
+		/**
+		 * @return time the application was running, or failed
+		 */
+		public long getRunning() {
+			return running;
+		}
+
+		/**
+		 * @return failure, or null if the application is running
+		 */
+		public Throwable getFailure() {
+			return failure;
+		}
+
+		@Override
+		public String toString() {
+			String timings = app.getAppName() + ": installed " + installBegin + "-" + installEnd + " ms, started " + startBegin + "-" + running + " ms";
+			return timings + (failure == null ? "" : ", failed: " + failure);
+		}
+
+	}
+
+}
@@ -0,0 +1,63 @@
+package net.gisnas.oystein.ibm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * SHA-256 digests of files and streams, as lower case hex
+ */
+class Digests {
+
+	private Digests() {
+	}
+
+	static String sha256(File file) {
+		InputStream is = null;
+		try {
+			is = Files.newInputStream(file.toPath());
+			return sha256(is);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read " + file, e);
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+
+	/**
+	 * Digest the rest of a stream. The stream is not closed.
+	 */
+	static String sha256(InputStream in) throws IOException {
+		MessageDigest md = sha256();
+		InputStream is = new DigestInputStream(in, md);
+		byte[] buffer = new byte[64 * 1024];
+		while (is.read(buffer) != -1) {
+		}
+		return toHex(md.digest());
+	}
+
+	static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 not supported", e);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		char[] digits = "0123456789abcdef".toCharArray();
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = digits[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+}
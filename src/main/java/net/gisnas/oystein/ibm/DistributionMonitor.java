@@ -0,0 +1,321 @@
+package net.gisnas.oystein.ibm;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.websphere.management.AdminClient;
+import com.ibm.websphere.management.NotificationConstants;
+
+/**
+ * Detects when applications are distributed to all nodes
+ *
+ * Applications are distributed to the nodes by node synchronization. The
+ * distribution status of every awaited application is checked when a node
+ * agent reports a completed synchronization, so the last node is noticed
+ * as soon as it is done. In case a notification is missed, or there are no
+ * node agents, the status is also polled, starting at MIN_POLL_INTERVAL and
+ * backing off to MAX_POLL_INTERVAL.
+ *
+ * Node agents are listened to while applications are awaited. Each wait
+ * looks for node agents started since the last one, and the listeners are
+ * removed when no application is awaited.
+ *
+ * A {@link NodeListener} can be told about each node as soon as it has the
+ * application, for starting it there before the other nodes are done.
+ */
+class DistributionMonitor implements NotificationListener {
+
+	private static final Logger logger = LoggerFactory.getLogger(DistributionMonitor.class);
+	private static final long MIN_POLL_INTERVAL = 250;
+	private static final long MAX_POLL_INTERVAL = 8000;
+
+	private final AppManagementClient am;
+	private final AdminClient adminClient;
+	private final ScheduledExecutorService scheduler;
+	private final Set<Wait> waits = Collections.newSetFromMap(new ConcurrentHashMap<Wait, Boolean>());
+	/** NodeSync MBeans listened to, or null if not subscribed. Guarded by this */
+	private Set<ObjectName> subscriptions;
+
+	DistributionMonitor(AppManagementClient am, AdminClient adminClient, ScheduledExecutorService scheduler) {
+		this.am = am;
+		this.adminClient = adminClient;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * @return future completed with the number of status checks made, when
+	 *         the application is distributed to all nodes. Cancel it to stop
+	 *         waiting.
+	 */
+	SettableFuture<Integer> awaitDistribution(String appName) {
+		return awaitDistribution(appName, null);
+	}
+
+	/**
+	 * @param listener Told about the nodes the application is distributed
+	 *        to, on every check until all are done
+	 * @return future completed with the number of status checks made, when
+	 *         the application is distributed to all nodes, after the listener
+	 *         is told. Cancel it to stop waiting.
+	 */
+	SettableFuture<Integer> awaitDistribution(String appName, NodeListener listener) {
+		final Wait wait = new Wait(appName, listener);
+		// Added before subscribing, so the listeners are not removed as idle
+		waits.add(wait);
+		subscribe();
+		wait.distributed.addCallback(new SettableFuture.Callback<Integer>() {
+			@Override
+			public void onSuccess(Integer checks) {
+				waits.remove(wait);
+				closeIfIdle();
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				waits.remove(wait);
+				wait.cancelPoll();
+				closeIfIdle();
+			}
+		});
+		wait.check();
+		return wait.distributed;
+	}
+
+	@Override
+	public void handleNotification(Notification notification, Object handback) {
+		logger.debug("Node synchronization completed: {}", notification.getSource());
+		for (Wait wait : waits) {
+			wait.check();
+		}
+	}
+
+	/**
+	 * Listen for completed synchronizations from all node agents not already
+	 * listened to. Failure is logged, and leaves the waits to polling.
+	 */
+	private synchronized void subscribe() {
+		if (subscriptions == null) {
+			subscriptions = new HashSet<>();
+		}
+		NotificationFilterSupport filter = new NotificationFilterSupport();
+		filter.enableType(NotificationConstants.TYPE_NODESYNC_COMPLETE);
+		try {
+			for (Object nodeSync : adminClient.queryNames(new ObjectName("WebSphere:type=NodeSync,*"), null)) {
+				if (!subscriptions.contains(nodeSync)) {
+					adminClient.addNotificationListener((ObjectName) nodeSync, this, filter, null);
+					subscriptions.add((ObjectName) nodeSync);
+					logger.debug("Listening for node synchronization from {}", nodeSync);
+				}
+			}
+		} catch (Exception e) {
+			logger.debug("Unable to listen for node synchronization, distribution status is polled", e);
+		}
+	}
+
+	/**
+	 * Listen for node synchronization again after the AdminClient has
+	 * connected again, and check the waits in case a synchronization was
+	 * missed
+	 */
+	void reconnected() {
+		close();
+		if (!waits.isEmpty()) {
+			subscribe();
+		}
+		for (Wait wait : waits) {
+			wait.check();
+		}
+	}
+
+	/**
+	 * Stop listening when no application is awaited, so node agents
+	 * restarted in the meantime are listened to again by the next wait
+	 */
+	private synchronized void closeIfIdle() {
+		if (waits.isEmpty()) {
+			close();
+		}
+	}
+
+	/**
+	 * Stop listening for node synchronization
+	 *
+	 * Listening starts again with the next wait, to pick up node agents
+	 * started in the meantime.
+	 */
+	synchronized void close() {
+		if (subscriptions == null) {
+			return;
+		}
+		for (ObjectName nodeSync : subscriptions) {
+			try {
+				adminClient.removeNotificationListener(nodeSync, this);
+			} catch (Exception e) {
+				logger.debug("Unable to remove notification listener from {}: {}", nodeSync, e);
+			}
+		}
+		subscriptions = null;
+	}
+
+	/**
+	 * An application waiting for distribution
+	 *
+	 * At most one status check runs at a time. A check asked for while one
+	 * is running is done when it returns, since the notification may have
+	 * come after the status was read.
+	 */
+	private class Wait {
+
+		private final String appName;
+		private final NodeListener listener;
+		private final SettableFuture<Integer> distributed = new SettableFuture<>();
+		private long pollInterval = MIN_POLL_INTERVAL;
+		/** Guarded by this */
+		private int checks;
+		/** Guarded by this */
+		private boolean checking;
+		/** Guarded by this */
+		private boolean recheck;
+		/** Guarded by this */
+		private ScheduledFuture<?> poll;
+
+		Wait(String appName, NodeListener listener) {
+			this.appName = appName;
+			this.listener = listener;
+		}
+
+		/**
+		 * Check the distribution status on the scheduler, as soon as any
+		 * running check is done
+		 */
+		synchronized void check() {
+			if (distributed.isDone()) {
+				return;
+			}
+			if (checking) {
+				recheck = true;
+				return;
+			}
+			checking = true;
+			checks++;
+			cancelPoll();
+			try {
+				scheduler.execute(new Runnable() {
+					@Override
+					public void run() {
+						checkNow();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				distributed.setException(e);
+			}
+		}
+
+		synchronized void cancelPoll() {
+			if (poll != null) {
+				poll.cancel(false);
+				poll = null;
+			}
+		}
+
+		private void checkNow() {
+			if (distributed.isDone()) {
+				return;
+			}
+			try {
+				if (listener == null) {
+					am.isAppReadyAsync(appName).addCallback(new SettableFuture.Callback<Boolean>() {
+						@Override
+						public void onSuccess(Boolean ready) {
+							checked(ready);
+						}
+
+						@Override
+						public void onFailure(Throwable t) {
+							distributed.setException(t);
+						}
+					});
+				} else {
+					am.getNodeDistributionAsync(appName).addCallback(new SettableFuture.Callback<Map<String, Boolean>>() {
+						@Override
+						public void onSuccess(Map<String, Boolean> nodeStatus) {
+							Set<String> nodes = new HashSet<>();
+							for (Map.Entry<String, Boolean> entry : nodeStatus.entrySet()) {
+								if (entry.getValue()) {
+									nodes.add(entry.getKey());
+								}
+							}
+							try {
+								listener.distributed(nodes);
+							} catch (RuntimeException e) {
+								distributed.setException(e);
+								return;
+							}
+							checked(!nodeStatus.isEmpty() && nodes.size() == nodeStatus.size());
+						}
+
+						@Override
+						public void onFailure(Throwable t) {
+							distributed.setException(t);
+						}
+					});
+				}
+			} catch (RuntimeException e) {
+				distributed.setException(e);
+			}
+		}
+
+		private synchronized void checked(boolean ready) {
+			checking = false;
+			if (ready) {
+				logger.debug("Application {} is distributed to all nodes", appName);
+				distributed.set(checks);
+			} else if (recheck) {
+				recheck = false;
+				check();
+			} else {
+				logger.debug("Application {} not distributed, polling again in {} ms", appName, pollInterval);
+				try {
+					poll = scheduler.schedule(new Runnable() {
+						@Override
+						public void run() {
+							check();
+						}
+					}, pollInterval, TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException e) {
+					distributed.setException(e);
+				}
+				pollInterval = Math.min(pollInterval * 2, MAX_POLL_INTERVAL);
+			}
+		}
+
+	}
+
+	/**
+	 * Receives the nodes an application is distributed to
+	 */
+	interface NodeListener {
+
+		/**
+		 * @param nodes All nodes the application is distributed to so far
+		 */
+		void distributed(Set<String> nodes);
+
+	}
+
+}
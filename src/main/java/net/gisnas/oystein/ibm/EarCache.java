@@ -0,0 +1,331 @@
+package net.gisnas.oystein.ibm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk cache of rewritten EARs, addressed by content
+ *
+ * The key is the SHA-256 of the source EAR combined with a digest of the
+ * endpoints, so an EAR is only rewritten once for each set of endpoints. A
+ * hit is hard linked to the target file, or copied if linking is not
+ * possible. Entries are read-only, and so are linked target files.
+ * {@link #breakLink(File)} replaces a linked file with a private copy before
+ * it is modified in place.
+ *
+ * The cache directory may be shared by several JVMs. Entries are written to
+ * a temporary file and atomically renamed, and eviction is done under a file
+ * lock. The least recently used entries are evicted when the total size
+ * exceeds maxBytes. Use of an entry is recorded by touching an empty marker
+ * file next to it, since touching the entry itself would also change the
+ * modification time of the files linked to it.
+ */
+public class EarCache {
+
+	private static Logger log = LoggerFactory.getLogger(EarCache.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SUFFIX = ".ear";
+	private static final String USED_SUFFIX = ".used";
+	private static final String LOCK_FILE = ".lock";
+	/** File locks are held by the JVM, so threads must also be serialised */
+	private static final Object evictionMonitor = new Object();
+
+	private final File directory;
+	private final long maxBytes;
+	/** Source EAR digests, by file key, length and modification time */
+	private final Map<String, String> earDigests = new ConcurrentHashMap<>();
+	private volatile boolean atomicMoveWarned;
+
+	/**
+	 * @param directory Cache directory, created if missing
+	 * @param maxBytes Maximum total size of cached EARs
+	 */
+	public EarCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		try {
+			FileUtils.forceMkdir(directory);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to create cache directory " + directory, e);
+		}
+	}
+
+	/**
+	 * Create targetFile from a cached EAR if present
+	 *
+	 * @return true on a hit
+	 */
+	boolean get(String key, File targetFile) {
+		File entry = getEntryFile(key);
+		try {
+			Files.deleteIfExists(targetFile.toPath());
+			try {
+				Files.createLink(targetFile.toPath(), entry.toPath());
+			} catch (NoSuchFileException e) {
+				return false;
+			} catch (UnsupportedOperationException | IOException e) {
+				log.debug("Unable to link {} to {} - copying", targetFile, entry, e);
+				Files.copy(entry.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				targetFile.setWritable(true);
+			}
+		} catch (NoSuchFileException e) {
+			// Evicted by another process
+			return false;
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to create " + targetFile + " from cache", e);
+		}
+		markUsed(key);
+		log.info("Created {} from cached {}", targetFile, entry);
+		return true;
+	}
+
+	/**
+	 * Add a copy of an EAR to the cache, and evict entries if the cache is full
+	 */
+	void put(String key, File earFile) {
+		File entry = getEntryFile(key);
+		File tempFile = null;
+		try {
+			tempFile = File.createTempFile(key, ".tmp", directory);
+			Files.copy(earFile.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			tempFile.setReadOnly();
+			try {
+				move(tempFile, entry);
+			} catch (FileAlreadyExistsException e) {
+				// Another process has added the same content
+				log.debug("Not replacing {}", entry, e);
+			}
+		} catch (IOException e) {
+			log.warn("Unable to add {} to cache", earFile, e);
+		} finally {
+			FileUtils.deleteQuietly(tempFile);
+		}
+		evict();
+	}
+
+	/**
+	 * Rename a complete entry into place, atomically if the file system
+	 * supports it
+	 */
+	private void move(File tempFile, File entry) throws IOException {
+		try {
+			Files.move(tempFile.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			if (!atomicMoveWarned) {
+				atomicMoveWarned = true;
+				log.warn("Atomic move not supported in cache directory {} - entries may be seen incomplete by other processes", directory, e);
+			}
+			Files.move(tempFile.toPath(), entry.toPath());
+		}
+	}
+
+	private void markUsed(String key) {
+		try {
+			FileUtils.touch(getUsedFile(key));
+		} catch (IOException e) {
+			log.debug("Unable to mark {} as used", key, e);
+		}
+	}
+
+	/**
+	 * @return when the entry was added or last used
+	 */
+	private long lastUsed(File entry) {
+		return Math.max(entry.lastModified(), getUsedFile(keyOf(entry)).lastModified());
+	}
+
+	/**
+	 * Delete least recently used entries until the cache is within maxBytes
+	 */
+	public void evict() {
+		synchronized (evictionMonitor) {
+			RandomAccessFile lockFile = null;
+			try {
+				lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+				FileChannel channel = lockFile.getChannel();
+				FileLock lock = channel.lock();
+				try {
+					evictLocked();
+				} finally {
+					lock.release();
+				}
+			} catch (IOException e) {
+				log.warn("Unable to evict entries from cache {}", directory, e);
+			} finally {
+				IOUtils.closeQuietly(lockFile);
+			}
+		}
+	}
+
+	private void evictLocked() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		List<File> entries = new ArrayList<>();
+		final Map<File, Long> lastUsed = new HashMap<>();
+		long size = 0;
+		for (File file : files) {
+			if (file.getName().endsWith(SUFFIX)) {
+				entries.add(file);
+				lastUsed.put(file, lastUsed(file));
+				size += file.length();
+			}
+		}
+		Collections.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				long m1 = lastUsed.get(f1);
+				long m2 = lastUsed.get(f2);
+				return m1 < m2 ? -1 : m1 == m2 ? 0 : 1;
+			}
+		});
+		for (File entry : entries) {
+			if (size <= maxBytes) {
+				break;
+			}
+			long length = entry.length();
+			if (entry.delete() || (entry.setWritable(true) && entry.delete())) {
+				FileUtils.deleteQuietly(getUsedFile(keyOf(entry)));
+				log.debug("Evicted {} from cache", entry);
+				size -= length;
+			}
+		}
+	}
+
+	/**
+	 * Replace a file created from the cache with a private, writable copy
+	 *
+	 * Does nothing if the file is not linked to other files. Where the number
+	 * of links is not known, a read-only file is taken to be linked.
+	 */
+	static void breakLink(File file) throws IOException {
+		Path path = file.toPath();
+		boolean linked;
+		try {
+			linked = (Integer) Files.getAttribute(path, "unix:nlink") > 1;
+		} catch (UnsupportedOperationException | IllegalArgumentException e) {
+			linked = !file.canWrite();
+		}
+		if (!linked) {
+			return;
+		}
+		File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			Files.copy(path, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			tempFile.setWritable(true);
+			Files.move(tempFile.toPath(), path, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			FileUtils.deleteQuietly(tempFile);
+		}
+		log.debug("Replaced {} with a copy not linked to the cache", file);
+	}
+
+	/**
+	 * @return cache key of earFile rewritten with importEndpoints
+	 */
+	String key(File earFile, ImportEndpoint[] importEndpoints) {
+		return earDigest(earFile) + "-" + endpointsDigest(importEndpoints);
+	}
+
+	/**
+	 * SHA-256 of the EAR, remembered as long as the same file has the same
+	 * length and modification time
+	 *
+	 * The file is identified by its file key where available, so an EAR
+	 * replaced by another file is digested again.
+	 */
+	private String earDigest(File earFile) {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(earFile.toPath(), BasicFileAttributes.class);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read attributes of " + earFile, e);
+		}
+		Object fileKey = attributes.fileKey() != null ? attributes.fileKey() : earFile.getAbsolutePath();
+		String id = fileKey + ":" + attributes.size() + ":" + attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+		String digest = earDigests.get(id);
+		if (digest == null) {
+			digest = Digests.sha256(earFile);
+			earDigests.put(id, digest);
+		}
+		return digest;
+	}
+
+	/**
+	 * SHA-256 of the endpoints in canonical form
+	 *
+	 * Imports are sorted by name. When an import is given more than once, the
+	 * last endpoint is used, as when the EAR is rewritten.
+	 */
+	static String endpointsDigest(ImportEndpoint[] importEndpoints) {
+		Map<String, String> canonical = new TreeMap<>();
+		for (ImportEndpoint importEndpoint : importEndpoints) {
+			canonical.put(importEndpoint.importName, importEndpoint.endpointUrl);
+		}
+		MessageDigest md = Digests.sha256();
+		for (Map.Entry<String, String> entry : canonical.entrySet()) {
+			update(md, entry.getKey());
+			update(md, entry.getValue());
+		}
+		return Digests.toHex(md.digest());
+	}
+
+	/**
+	 * Length prefixed, so that no two endpoint lists give the same input
+	 */
+	private static void update(MessageDigest md, String value) {
+		byte[] bytes = value == null ? new byte[0] : value.getBytes(UTF8);
+		int length = value == null ? -1 : bytes.length;
+		md.update(new byte[] { (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length });
+		md.update(bytes);
+	}
+
+	private File getEntryFile(String key) {
+		return new File(directory, key + SUFFIX);
+	}
+
+	private File getUsedFile(String key) {
+		return new File(directory, key + USED_SUFFIX);
+	}
+
+	private static String keyOf(File entry) {
+		return entry.getName().substring(0, entry.getName().length() - SUFFIX.length());
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	@Override
+	public String toString() {
+		return directory.toString();
+	}
+
+}
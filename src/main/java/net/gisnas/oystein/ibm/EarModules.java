@@ -0,0 +1,179 @@
+package net.gisnas.oystein.ibm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Digests of the modules of an EAR, for finding the modules which changed
+ * between two versions
+ *
+ * Modules are the web, EJB, client and connector modules listed in
+ * META-INF/application.xml. Everything else in the EAR, including
+ * application.xml and shared libraries, is digested together under
+ * {@link #OTHER}.
+ */
+class EarModules {
+
+	/** Key of the digest of all entries which are not modules */
+	static final String OTHER = "*";
+	private static final Set<String> MODULE_URI_ELEMENTS = new HashSet<>(Arrays.asList("web-uri", "ejb", "java", "connector"));
+
+	private final File earFile;
+	private final Map<String, String> digests;
+
+	/**
+	 * Read and digest the EAR
+	 */
+	EarModules(File earFile) {
+		this.earFile = earFile;
+		ZipFile zipFile = null;
+		try {
+			zipFile = new ZipFile(earFile);
+			this.digests = Collections.unmodifiableMap(digest(zipFile));
+		} catch (IOException | XMLStreamException e) {
+			throw new RuntimeException("Unable to read modules of " + earFile, e);
+		} finally {
+			IOUtils.closeQuietly(zipFile);
+		}
+	}
+
+	/**
+	 * @return digest by module URI, and of the other entries by {@link #OTHER}
+	 */
+	Map<String, String> getDigests() {
+		return digests;
+	}
+
+	/**
+	 * Modules which changed since a previous version
+	 *
+	 * @param previous Digests of the previous version
+	 * @return URIs of the changed modules, or null if modules were added or
+	 *         removed or anything besides modules changed
+	 */
+	List<String> changedModules(Map<String, String> previous) {
+		if (!previous.keySet().equals(digests.keySet()) || !previous.get(OTHER).equals(digests.get(OTHER))) {
+			return null;
+		}
+		List<String> changed = new ArrayList<>();
+		for (Map.Entry<String, String> entry : digests.entrySet()) {
+			if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+				changed.add(entry.getKey());
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Write a module to a file
+	 */
+	void extract(String moduleUri, File targetFile) {
+		ZipFile zipFile = null;
+		OutputStream os = null;
+		try {
+			zipFile = new ZipFile(earFile);
+			ZipEntry entry = zipFile.getEntry(moduleUri);
+			if (entry == null) {
+				throw new RuntimeException("Module " + moduleUri + " not found in " + earFile);
+			}
+			os = Files.newOutputStream(targetFile.toPath());
+			IOUtils.copy(zipFile.getInputStream(entry), os);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to extract " + moduleUri + " from " + earFile, e);
+		} finally {
+			IOUtils.closeQuietly(os);
+			IOUtils.closeQuietly(zipFile);
+		}
+	}
+
+	private static Map<String, String> digest(ZipFile zipFile) throws IOException, XMLStreamException {
+		Set<String> moduleUris = readModuleUris(zipFile);
+		Map<String, String> digests = new TreeMap<>();
+		// Other entries are digested by name and content, in name order
+		Map<String, ZipEntry> others = new TreeMap<>();
+		Enumeration<? extends ZipEntry> entries = zipFile.entries();
+		while (entries.hasMoreElements()) {
+			ZipEntry entry = entries.nextElement();
+			if (moduleUris.contains(entry.getName())) {
+				digests.put(entry.getName(), digest(zipFile, entry));
+			} else if (!entry.isDirectory()) {
+				others.put(entry.getName(), entry);
+			}
+		}
+		MessageDigest md = Digests.sha256();
+		for (ZipEntry entry : others.values()) {
+			md.update(entry.getName().getBytes("UTF-8"));
+			md.update(digest(zipFile, entry).getBytes("UTF-8"));
+		}
+		digests.put(OTHER, Digests.toHex(md.digest()));
+		return digests;
+	}
+
+	private static String digest(ZipFile zipFile, ZipEntry entry) throws IOException {
+		InputStream is = zipFile.getInputStream(entry);
+		try {
+			return Digests.sha256(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * @return URIs of the modules in META-INF/application.xml
+	 */
+	private static Set<String> readModuleUris(ZipFile zipFile) throws IOException, XMLStreamException {
+		Set<String> moduleUris = new HashSet<>();
+		ZipEntry applicationXml = zipFile.getEntry("META-INF/application.xml");
+		if (applicationXml == null) {
+			return moduleUris;
+		}
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		InputStream is = zipFile.getInputStream(applicationXml);
+		try {
+			XMLStreamReader reader = factory.createXMLStreamReader(is);
+			boolean inModule = false;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = reader.getLocalName();
+					if ("module".equals(name)) {
+						inModule = true;
+					} else if (inModule && MODULE_URI_ELEMENTS.contains(name)) {
+						moduleUris.add(reader.getElementText().trim());
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT && "module".equals(reader.getLocalName())) {
+					inModule = false;
+				}
+			}
+			reader.close();
+		} finally {
+			is.close();
+		}
+		return moduleUris;
+	}
+
+}
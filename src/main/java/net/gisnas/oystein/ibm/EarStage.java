@@ -0,0 +1,240 @@
+package net.gisnas.oystein.ibm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.websphere.management.AdminClient;
+import com.ibm.websphere.management.filetransfer.client.FileTransferClient;
+import com.ibm.websphere.management.filetransfer.client.TransferFailedException;
+import com.ibm.ws.management.filetransfer.client.FileTransferFactory;
+
+/**
+ * EARs uploaded to the staging location of the deployment manager, for
+ * installing from there instead of uploading with each installation
+ *
+ * Each EAR is uploaded once by the file transfer service, to a file named by
+ * its SHA-256 digest. Installing the same EAR again, e.g. under another
+ * application name or after a failed installation, refers to the staged
+ * file. The EAR is digested again after uploading, so a file changed while
+ * uploading is not staged under the old digest. The staged file is then
+ * downloaded and digested once, and a failed or corrupted upload is retried.
+ *
+ * Staged files are kept until {@link #clear()}, but the deployment manager
+ * may clean its staging location. A staged file is reused without being
+ * verified again; call {@link #forget(String)} when an installation from it
+ * fails, so the EAR is uploaded again.
+ *
+ * Thread safe. The same EAR is only uploaded by one thread at a time.
+ */
+public class EarStage {
+
+	private static final Logger logger = LoggerFactory.getLogger(EarStage.class);
+	private static final String DIRECTORY = "wsdeploy/";
+	private static final int MAX_ATTEMPTS = 3;
+	private static final long RETRY_DELAY = 1000;
+
+	private final FileTransferClient client;
+	/** Staged files relative to the staging location, by digest */
+	private final ConcurrentMap<String, String> staged = new ConcurrentHashMap<>();
+	/** Locks of the digests being staged. Guarded by itself */
+	private final Map<String, UploadLock> uploadLocks = new HashMap<>();
+	private String stagingLocation;
+
+	/**
+	 * @param adminClient Connection to the deployment manager
+	 */
+	public EarStage(AdminClient adminClient) {
+		this(FileTransferFactory.getFileTransferClient(adminClient));
+	}
+
+	EarStage(FileTransferClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Upload an EAR, unless already staged
+	 *
+	 * @param earFile
+	 * @return path of the staged EAR on the deployment manager
+	 */
+	public String stage(File earFile) {
+		String digest = Digests.sha256(earFile);
+		String remote = staged.get(digest);
+		if (remote == null) {
+			UploadLock lock = lock(digest);
+			try {
+				synchronized (lock) {
+					remote = staged.get(digest);
+					if (remote == null) {
+						remote = upload(earFile, digest);
+						staged.put(digest, remote);
+					}
+				}
+			} finally {
+				unlock(digest, lock);
+			}
+		} else {
+			logger.debug("{} is already staged as {}", earFile, remote);
+		}
+		return getStagingLocation() + "/" + remote;
+	}
+
+	/**
+	 * Stage the EAR again on the next {@link #stage(File)}, e.g. after an
+	 * installation from the staged file failed
+	 *
+	 * @param stagedPath path returned by {@link #stage(File)}
+	 */
+	public void forget(String stagedPath) {
+		for (Map.Entry<String, String> entry : staged.entrySet()) {
+			if (stagedPath.equals(getStagingLocation() + "/" + entry.getValue())) {
+				logger.debug("Forgetting staged file {}", stagedPath);
+				staged.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private UploadLock lock(String digest) {
+		synchronized (uploadLocks) {
+			UploadLock lock = uploadLocks.get(digest);
+			if (lock == null) {
+				lock = new UploadLock();
+				uploadLocks.put(digest, lock);
+			}
+			lock.users++;
+			return lock;
+		}
+	}
+
+	private void unlock(String digest, UploadLock lock) {
+		synchronized (uploadLocks) {
+			if (--lock.users == 0) {
+				uploadLocks.remove(digest);
+			}
+		}
+	}
+
+	/**
+	 * Number of locks held or waited for, for tests
+	 */
+	int getLockCount() {
+		synchronized (uploadLocks) {
+			return uploadLocks.size();
+		}
+	}
+
+	private String upload(File earFile, String digest) {
+		String remote = DIRECTORY + digest + ".ear";
+		long delay = RETRY_DELAY;
+		for (int attempt = 1;; attempt++) {
+			try {
+				logger.debug("Uploading {} to {}", earFile, remote);
+				client.uploadFile(earFile, remote);
+			} catch (TransferFailedException | RuntimeException e) {
+				delay = retry(earFile, attempt, delay, e);
+				continue;
+			}
+			if (!digest.equals(Digests.sha256(earFile))) {
+				delete(remote);
+				throw new RuntimeException(earFile + " changed while uploading");
+			}
+			if (isStaged(remote, digest)) {
+				break;
+			}
+			delay = retry(earFile, attempt, delay, new RuntimeException("Staged file " + remote + " is missing or differs from " + earFile));
+		}
+		logger.info("Staged {} on the deployment manager", earFile);
+		return remote;
+	}
+
+	/**
+	 * Wait before the next attempt to upload, or give up
+	 *
+	 * @return delay before the attempt after the next
+	 */
+	private static long retry(File earFile, int attempt, long delay, Exception e) {
+		if (attempt == MAX_ATTEMPTS) {
+			throw new RuntimeException("Unable to upload " + earFile + " to the deployment manager", e);
+		}
+		logger.warn("Upload of {} failed, retrying in {} ms: {}", earFile, delay, e.toString());
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while uploading " + earFile, ie);
+		}
+		return delay * 2;
+	}
+
+	/**
+	 * Download a staged file and compare its digest
+	 *
+	 * @return false if the file is missing or has other content
+	 */
+	private boolean isStaged(String remote, String digest) {
+		File tempFile = null;
+		try {
+			tempFile = File.createTempFile("wsdeploy", ".ear");
+			client.downloadFile(remote, tempFile);
+			return digest.equals(Digests.sha256(tempFile));
+		} catch (TransferFailedException e) {
+			logger.debug("Unable to download staged file {}", remote, e);
+			return false;
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to create temporary file for verifying " + remote, e);
+		} finally {
+			FileUtils.deleteQuietly(tempFile);
+		}
+	}
+
+	private synchronized String getStagingLocation() {
+		if (stagingLocation == null) {
+			try {
+				stagingLocation = client.getServerStagingLocation();
+			} catch (TransferFailedException e) {
+				throw new RuntimeException("Unable to get staging location of the deployment manager", e);
+			}
+		}
+		return stagingLocation;
+	}
+
+	/**
+	 * Delete the EARs staged by this instance from the deployment manager
+	 */
+	public void clear() {
+		for (String digest : new ArrayList<>(staged.keySet())) {
+			String remote = staged.remove(digest);
+			if (remote != null) {
+				delete(remote);
+			}
+		}
+	}
+
+	private void delete(String remote) {
+		try {
+			client.deleteFile(remote);
+		} catch (TransferFailedException | RuntimeException e) {
+			logger.warn("Unable to delete staged file {}: {}", remote, e.toString());
+		}
+	}
+
+	/**
+	 * Serialises the uploads of one digest. Removed when no thread uses it.
+	 */
+	private static class UploadLock {
+
+		/** Guarded by uploadLocks */
+		private int users;
+
+	}
+
+}
@@ -0,0 +1,77 @@
+package net.gisnas.oystein.ibm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An EAR and the variants to create from it, typically one per environment
+ *
+ * @see ScaUtil#modifyWsImports(List, java.util.concurrent.ExecutorService)
+ */
+public class EarVariants {
+
+	private File earFile;
+	private List<Variant> variants = new ArrayList<>();
+
+	public EarVariants(File earFile) {
+		this.earFile = earFile;
+	}
+
+	/**
+	 * @param environment Name of the variant, used in the report
+	 * @param importEndpoints Endpoints to set in this variant
+	 * @param targetFile File to write the variant to
+	 * @return this
+	 */
+	public EarVariants addVariant(String environment, ImportEndpoint[] importEndpoints, File targetFile) {
+		variants.add(new Variant(environment, importEndpoints, targetFile));
+		return this;
+	}
+
+	public File getEarFile() {
+		return earFile;
+	}
+
+	public List<Variant> getVariants() {
+		return Collections.unmodifiableList(variants);
+	}
+
+	@Override
+	public String toString() {
+		return earFile + " " + variants;
+	}
+
+	public static class Variant {
+
+		private String environment;
+		private ImportEndpoint[] importEndpoints;
+		private File targetFile;
+
+		public Variant(String environment, ImportEndpoint[] importEndpoints, File targetFile) {
+			this.environment = environment;
+			this.importEndpoints = importEndpoints;
+			this.targetFile = targetFile;
+		}
+
+		public String getEnvironment() {
+			return environment;
+		}
+
+		public ImportEndpoint[] getImportEndpoints() {
+			return importEndpoints;
+		}
+
+		public File getTargetFile() {
+			return targetFile;
+		}
+
+		@Override
+		public String toString() {
+			return environment + "=" + targetFile;
+		}
+
+	}
+
+}
@@ -4,42 +4,64 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
-import org.w3c.dom.Document;
-
+/**
+ * SCDL import (or export) files of an SCA module, indexed by name and by
+ * entry name in the module jar
+ *
+ * Content is only held for imports which have been read or rewritten. For
+ * the others, only the entry name is kept.
+ */
 public class ImportSet {
 
-	private Map<String, Document> name2Document;
-	private Map<String, Document> entryName2Document;
+	private Map<String, String> name2EntryName;
+	private Map<String, byte[]> entryName2Content;
 
 	public ImportSet() {
-		name2Document = new HashMap<>();
-		entryName2Document = new HashMap<>();
+		name2EntryName = new HashMap<>();
+		entryName2Content = new HashMap<>();
+	}
+
+	public void put(String name, String entryName) {
+		name2EntryName.put(name, entryName);
 	}
 
-	public void put(String name, String entryName, Document doc) {
-		name2Document.put(name, doc);
-		entryName2Document.put(entryName, doc);
+	public void put(String name, String entryName, byte[] content) {
+		name2EntryName.put(name, entryName);
+		entryName2Content.put(entryName, content);
 	}
 
 	public Set<String> nameKeySet() {
-		return name2Document.keySet();
+		return name2EntryName.keySet();
+	}
+
+	public String getEntryName(String importName) {
+		return name2EntryName.get(importName);
 	}
 
-	public Document getByName(String importName) {
-		return name2Document.get(importName);
+	public boolean isEmpty() {
+		return name2EntryName.isEmpty();
 	}
 
-	public Set<String> entryNameKeySet() {
-		return entryName2Document.keySet();
+	/**
+	 * @param importName
+	 * @return content, or null if the import has not been read
+	 */
+	public byte[] getByName(String importName) {
+		String entryName = name2EntryName.get(importName);
+		return entryName == null ? null : entryName2Content.get(entryName);
 	}
 
-	public Document getByEntryName(String entryName) {
-		return entryName2Document.get(entryName);
+	/**
+	 * @param entryName
+	 * @return content, or null if the import has not been read
+	 */
+	public byte[] getByEntryName(String entryName) {
+		return entryName2Content.get(entryName);
 	}
 
 	@Override
 	public String toString() {
-		return name2Document.toString() + entryName2Document.toString();
+		return name2EntryName.toString();
 	}
 
 }
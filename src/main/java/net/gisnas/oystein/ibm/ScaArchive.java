@@ -0,0 +1,61 @@
+package net.gisnas.oystein.ibm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * EAR with its SCA modules and their imports indexed, ready to be written
+ * with different endpoints
+ *
+ * Once opened, variants can be written from several threads concurrently.
+ * All reads are positional, and the indexes are not modified.
+ */
+class ScaArchive implements Closeable {
+
+	private final File earFile;
+	private final ZipFile zipFile;
+	private final RandomAccessFile earAccess;
+	private final ZipDirectory directory;
+	private final List<ScaModule> scaModules;
+
+	ScaArchive(File earFile, ZipFile zipFile, RandomAccessFile earAccess, ZipDirectory directory, List<ScaModule> scaModules) {
+		this.earFile = earFile;
+		this.zipFile = zipFile;
+		this.earAccess = earAccess;
+		this.directory = directory;
+		this.scaModules = Collections.unmodifiableList(scaModules);
+	}
+
+	File getEarFile() {
+		return earFile;
+	}
+
+	ZipDirectory getDirectory() {
+		return directory;
+	}
+
+	List<ScaModule> getScaModules() {
+		return scaModules;
+	}
+
+	@Override
+	public void close() {
+		for (ScaModule scaModule : scaModules) {
+			scaModule.close();
+		}
+		IOUtils.closeQuietly(earAccess);
+		IOUtils.closeQuietly(zipFile);
+	}
+
+	@Override
+	public String toString() {
+		return earFile.toString();
+	}
+
+}
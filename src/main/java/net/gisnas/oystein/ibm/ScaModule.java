@@ -0,0 +1,146 @@
+package net.gisnas.oystein.ibm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SCA module jar in an EAR, with random access to its entries and an index
+ * of its imports and exports
+ *
+ * A stored module is read in place. A deflated module is inflated to a
+ * temporary file, which is deleted on {@link #close()}.
+ */
+class ScaModule implements Closeable {
+
+	private static Logger log = LoggerFactory.getLogger(ScaModule.class);
+
+	private final String name;
+	private final ZipDirectory directory;
+	private final File tempFile;
+	private final RandomAccessFile tempAccess;
+	private final ImportSet imports;
+	private final ImportSet exports;
+
+	private ScaModule(String name, ZipDirectory directory, File tempFile, RandomAccessFile tempAccess) throws IOException {
+		this.name = name;
+		this.directory = directory;
+		this.tempFile = tempFile;
+		this.tempAccess = tempAccess;
+		this.imports = findScdl(directory, ".import");
+		this.exports = findScdl(directory, ".export");
+	}
+
+	/**
+	 * @param zipFile EAR
+	 * @param ear central directory of the same EAR
+	 * @param entry SCA module entry in the EAR
+	 */
+	static ScaModule open(ZipFile zipFile, ZipDirectory ear, ZipDirectory.Entry entry) throws IOException {
+		if (entry.getMethod() == ZipEntry.STORED) {
+			return new ScaModule(entry.getName(), ZipDirectory.read(ear.getChannel(), ear.getStart() + ear.getDataOffset(entry), entry.getSize()), null, null);
+		}
+		File tempFile = inflateToTempFile(zipFile, zipFile.getEntry(entry.getName()));
+		RandomAccessFile tempAccess = null;
+		try {
+			tempAccess = new RandomAccessFile(tempFile, "r");
+			return new ScaModule(entry.getName(), ZipDirectory.read(tempAccess.getChannel(), 0, tempAccess.length()), tempFile, tempAccess);
+		} catch (IOException | RuntimeException e) {
+			IOUtils.closeQuietly(tempAccess);
+			FileUtils.deleteQuietly(tempFile);
+			throw e;
+		}
+	}
+
+	/**
+	 * Index the SCDL files with the given suffix by name
+	 *
+	 * Each file is inflated just far enough to find the name of its root
+	 * element. Contents are not kept.
+	 */
+	private static ImportSet findScdl(ZipDirectory directory, String suffix) throws IOException {
+		ImportSet index = new ImportSet();
+		for (ZipDirectory.Entry entry : directory.getEntries()) {
+			if (entry.getName().endsWith(suffix)) {
+				InputStream is = directory.openContent(entry);
+				try {
+					index.put(ScdlPatcher.readName(is), entry.getName());
+				} catch (IllegalArgumentException e) {
+					log.warn("Unable to parse {} - skipping", entry.getName(), e);
+				} finally {
+					IOUtils.closeQuietly(is);
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Inflate a nested archive to a temporary file, so its entries can be
+	 * accessed randomly
+	 */
+	private static File inflateToTempFile(ZipFile zipFile, ZipEntry entry) throws IOException {
+		File tempFile = File.createTempFile("wsdeploy", ".jar");
+		InputStream is = zipFile.getInputStream(entry);
+		OutputStream os = new FileOutputStream(tempFile);
+		try {
+			IOUtils.copyLarge(is, os);
+		} catch (IOException e) {
+			IOUtils.closeQuietly(os);
+			FileUtils.deleteQuietly(tempFile);
+			throw e;
+		} finally {
+			IOUtils.closeQuietly(is);
+			IOUtils.closeQuietly(os);
+		}
+		return tempFile;
+	}
+
+	/**
+	 * @return entry name of the module in the EAR
+	 */
+	String getName() {
+		return name;
+	}
+
+	ZipDirectory getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return index of the module's imports
+	 */
+	ImportSet getImports() {
+		return imports;
+	}
+
+	/**
+	 * @return index of the module's exports
+	 */
+	ImportSet getExports() {
+		return exports;
+	}
+
+	@Override
+	public void close() {
+		IOUtils.closeQuietly(tempAccess);
+		FileUtils.deleteQuietly(tempFile);
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+}
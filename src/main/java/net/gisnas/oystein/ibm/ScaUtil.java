@@ -1,194 +1,611 @@
 package net.gisnas.oystein.ibm;
 
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Enumeration;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.xml.sax.SAXException;
 
 public class ScaUtil {
 
 	private static Logger log = LoggerFactory.getLogger(ScaUtil.class);
+	private static final ForkJoinPool discoveryPool = new ForkJoinPool();
 
 	public static void modifyWsImports(ImportEndpoint[] importEndpoints, File earFile, File targetFile) throws ZipException, IOException {
-		ZipFile zipFile = new ZipFile(earFile);
+		ScaArchive archive = openArchive(earFile);
 		try {
-			ZipEntry scaModuleEntry = findScaModule(zipFile);
-			ImportSet importXmls = findWsImports(zipFile, scaModuleEntry);
-			modifyEndpoints(importXmls, importEndpoints);
-			writeArchive(importXmls, zipFile, targetFile, scaModuleEntry);
+			modifyWsImports(archive, importEndpoints, targetFile);
 		} finally {
-			IOUtils.closeQuietly(zipFile);
+			archive.close();
 		}
 	}
 
-	private static ZipEntry findScaModule(ZipFile zipFile) throws IOException {
-		Enumeration<? extends ZipEntry> entries = zipFile.entries();
-		while (entries.hasMoreElements()) {
-			ZipEntry entry = entries.nextElement();
-			if (entry.getName().endsWith(".jar")) {
-				ZipInputStream is = new ZipInputStream(zipFile.getInputStream(entry));
-				try {
-					if (isScaModule(is)) {
-						return entry;
-					}
-				} finally {
-					IOUtils.closeQuietly(is);
-				}
+	/**
+	 * Apply binding rules to imports and exports, e.g. to set JMS, HTTP or MQ
+	 * binding properties
+	 * 
+	 * All rules are applied in a single pass: the EAR is read and written once,
+	 * and each affected SCDL file is rewritten once with all its rules.
+	 * 
+	 * @see BindingRule
+	 */
+	public static void modifyBindings(BindingRule[] rules, File earFile, File targetFile) throws ZipException, IOException {
+		ScaArchive archive = openArchive(earFile);
+		try {
+			Map<String, ImportSet> modifiedScdl = applyRules(archive.getScaModules(), rules, true);
+			writeArchive(modifiedScdl, archive.getScaModules(), archive.getDirectory(), targetFile);
+		} finally {
+			archive.close();
+		}
+	}
+
+	/**
+	 * Set endpoints in the EAR itself, by appending the modified SCA modules
+	 * 
+	 * The modified modules and a new central directory are appended to the
+	 * archive. All other entries are left untouched, and the replaced modules
+	 * remain as unused space until the archive is compacted with
+	 * {@link #compactArchive(File)}. If writing fails, the archive is
+	 * truncated to its original length.
+	 * 
+	 * A file created from an {@link EarCache} is first replaced by a copy, so
+	 * the cached EAR is not modified.
+	 */
+	public static void modifyWsImportsInPlace(ImportEndpoint[] importEndpoints, File earFile) throws ZipException, IOException {
+		EarCache.breakLink(earFile);
+		ScaArchive archive = openArchive(earFile);
+		try {
+			Map<String, ImportSet> modifiedImports = modifyEndpoints(archive.getScaModules(), importEndpoints);
+			if (modifiedImports.isEmpty()) {
+				log.info("No imports to modify in {}", earFile);
+				return;
 			}
+			appendArchive(modifiedImports, archive.getScaModules(), archive.getDirectory(), earFile);
+		} finally {
+			archive.close();
 		}
-		throw new RuntimeException("No SCA module found in " + zipFile.getName());
 	}
 
-	private static boolean isScaModule(ZipInputStream is) throws IOException {
-		ZipEntry e;
-		while ((e = is.getNextEntry()) != null) {
-			if (e.getName().endsWith(".module") || e.getName().endsWith(".MODULE")) {
-				return true;
+	/**
+	 * Remove unused space left by {@link #modifyWsImportsInPlace(ImportEndpoint[], File)}
+	 * 
+	 * The archive is rewritten to a temporary file which then replaces it.
+	 * Entries are copied without being inflated.
+	 */
+	public static void compactArchive(File earFile) throws ZipException, IOException {
+		File tempFile = File.createTempFile(earFile.getName(), ".tmp", earFile.getAbsoluteFile().getParentFile());
+		RandomAccessFile earAccess = new RandomAccessFile(earFile, "r");
+		try {
+			ZipDirectory ear = ZipDirectory.read(earAccess.getChannel(), 0, earAccess.length());
+			long used = 0;
+			for (ZipDirectory.Entry entry : ear.getEntries()) {
+				used += ear.getRecordLength(entry);
+			}
+			if (used == ear.getCentralDirectoryOffset()) {
+				log.info("No unused space in {}", earFile);
+				return;
+			}
+			log.info("Compacting {}, removing {} unused bytes", earFile, ear.getCentralDirectoryOffset() - used);
+			ZipWriter destZip = new ZipWriter(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			try {
+				for (ZipDirectory.Entry entry : ear.getEntries()) {
+					destZip.copyEntry(ear, entry);
+				}
+				destZip.finish(ear.getComment());
+			} finally {
+				IOUtils.closeQuietly(destZip);
 			}
+			earAccess.close();
+			Files.move(tempFile.toPath(), earFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			IOUtils.closeQuietly(earAccess);
+			FileUtils.deleteQuietly(tempFile);
 		}
-		return false;
 	}
 
-	private static ImportSet findWsImports(ZipFile zipFile, ZipEntry scaModuleEntry) throws IOException {
+	/**
+	 * Rewrite the EAR as {@link #modifyWsImports(ImportEndpoint[], File, File)},
+	 * reusing an earlier result from cache if the same EAR has been rewritten
+	 * with the same endpoints
+	 * 
+	 * @see EarCache
+	 */
+	public static void modifyWsImports(ImportEndpoint[] importEndpoints, File earFile, File targetFile, EarCache cache) throws ZipException, IOException {
+		String key = cache.key(earFile, importEndpoints);
+		if (cache.get(key, targetFile)) {
+			return;
+		}
+		modifyWsImports(importEndpoints, earFile, targetFile);
+		cache.put(key, targetFile);
+	}
+
+	/**
+	 * Write several variants of several EARs, using a fixed pool of nThreads
+	 * 
+	 * @see #modifyWsImports(List, ExecutorService)
+	 */
+	public static BatchReport modifyWsImports(List<EarVariants> ears, int nThreads) {
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
 		try {
-			DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-			ImportSet imports = new ImportSet();
-			ZipInputStream is = new ZipInputStream(zipFile.getInputStream(scaModuleEntry));
+			return modifyWsImports(ears, executor);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Write several variants of several EARs
+	 * 
+	 * Each EAR is analysed only once, and all its variants are then written
+	 * concurrently from the same analysis. The number of EARs and variants
+	 * processed at the same time is bounded by the executor. A failing EAR
+	 * or variant does not stop the others, but is recorded in the report.
+	 * 
+	 * Returns when all EARs and variants are done. The executor is not shut
+	 * down.
+	 * 
+	 * @return timings and failures per EAR and variant
+	 */
+	public static BatchReport modifyWsImports(List<EarVariants> ears, ExecutorService executor) {
+		long start = System.currentTimeMillis();
+		BatchReport report = new BatchReport();
+		Phaser pending = new Phaser(1);
+		for (EarVariants ear : ears) {
+			submit(executor, pending, report, new AnalyseTask(executor, pending, report, ear), ear.getEarFile(), null, null);
+		}
+		pending.arriveAndAwaitAdvance();
+		List<BatchReport.Result> failures = report.getFailures();
+		if (failures.isEmpty()) {
+			log.info("Wrote variants of {} ear files in {} ms", ears.size(), System.currentTimeMillis() - start);
+		} else {
+			log.error("Wrote variants of {} ear files in {} ms, with {} failures: {}", ears.size(), System.currentTimeMillis() - start, failures.size(), failures);
+		}
+		return report;
+	}
+
+	/**
+	 * Run task on executor, and keep track of it until it completes
+	 * 
+	 * If the executor rejects the task, a failure is recorded instead.
+	 * 
+	 * @return false if the executor rejected the task
+	 */
+	private static boolean submit(Executor executor, final Phaser pending, BatchReport report, final Runnable task, File earFile, String environment, File targetFile) {
+		pending.register();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						pending.arriveAndDeregister();
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			report.add(new BatchReport.Result(earFile, environment, targetFile, 0, e));
+			pending.arriveAndDeregister();
+			return false;
+		}
+	}
+
+	/**
+	 * Analyses an EAR, and submits a task for each of its variants
+	 * 
+	 * The archive is closed by the last variant to complete.
+	 */
+	private static class AnalyseTask implements Runnable {
+
+		private final Executor executor;
+		private final Phaser pending;
+		private final BatchReport report;
+		private final EarVariants ear;
+
+		AnalyseTask(Executor executor, Phaser pending, BatchReport report, EarVariants ear) {
+			this.executor = executor;
+			this.pending = pending;
+			this.report = report;
+			this.ear = ear;
+		}
+
+		@Override
+		public void run() {
+			long start = System.currentTimeMillis();
+			final ScaArchive archive;
 			try {
-				ZipEntry entry;
-				while ((entry = is.getNextEntry()) != null) {
-					if (entry.getName().endsWith(".import")) {
+				archive = openArchive(ear.getEarFile());
+			} catch (IOException | RuntimeException e) {
+				long millis = System.currentTimeMillis() - start;
+				report.add(new BatchReport.Result(ear.getEarFile(), null, null, millis, e));
+				for (EarVariants.Variant variant : ear.getVariants()) {
+					report.add(new BatchReport.Result(ear.getEarFile(), variant.getEnvironment(), variant.getTargetFile(), 0, e));
+				}
+				return;
+			}
+			report.add(new BatchReport.Result(ear.getEarFile(), null, null, System.currentTimeMillis() - start, null));
+			if (ear.getVariants().isEmpty()) {
+				archive.close();
+				return;
+			}
+			final AtomicInteger remaining = new AtomicInteger(ear.getVariants().size());
+			for (final EarVariants.Variant variant : ear.getVariants()) {
+				Runnable variantTask = new Runnable() {
+					@Override
+					public void run() {
 						try {
-							byte[] content = IOUtils.toByteArray(is);
-							Document doc = db.parse(new ByteArrayInputStream(content));
-							String name = doc.getDocumentElement().getAttribute("name");
-							imports.put(name, entry.getName(), doc);
-						} catch (SAXException e) {
-							log.warn("Unable to parse {} - skipping", entry.getName(), e);
+							writeVariant(archive, variant, report);
+						} finally {
+							if (remaining.decrementAndGet() == 0) {
+								archive.close();
+							}
 						}
 					}
+				};
+				if (!submit(executor, pending, report, variantTask, ear.getEarFile(), variant.getEnvironment(), variant.getTargetFile())
+						&& remaining.decrementAndGet() == 0) {
+					archive.close();
 				}
-			} finally {
-				IOUtils.closeQuietly(is);
 			}
-			return imports;
-		} catch (ParserConfigurationException e) {
-			throw new RuntimeException("Unable to create document builder", e);
 		}
+
+	}
+
+	private static void writeVariant(ScaArchive archive, EarVariants.Variant variant, BatchReport report) {
+		long start = System.currentTimeMillis();
+		Throwable failure = null;
+		try {
+			modifyWsImports(archive, variant.getImportEndpoints(), variant.getTargetFile());
+		} catch (RuntimeException e) {
+			failure = e;
+		}
+		report.add(new BatchReport.Result(archive.getEarFile(), variant.getEnvironment(), variant.getTargetFile(), System.currentTimeMillis() - start, failure));
+	}
+
+	/**
+	 * Open an EAR and index its SCA modules and their imports
+	 * 
+	 * The archive must be closed by the caller.
+	 */
+	static ScaArchive openArchive(File earFile) throws ZipException, IOException {
+		ZipFile zipFile = new ZipFile(earFile);
+		RandomAccessFile earAccess = null;
+		List<ScaModule> scaModules = new ArrayList<>();
+		try {
+			earAccess = new RandomAccessFile(earFile, "r");
+			ZipDirectory ear = ZipDirectory.read(earAccess.getChannel(), 0, earAccess.length());
+			for (ZipDirectory.Entry scaModuleEntry : findScaModules(zipFile, ear)) {
+				scaModules.add(ScaModule.open(zipFile, ear, scaModuleEntry));
+			}
+			return new ScaArchive(earFile, zipFile, earAccess, ear, scaModules);
+		} catch (IOException | RuntimeException e) {
+			for (ScaModule scaModule : scaModules) {
+				scaModule.close();
+			}
+			IOUtils.closeQuietly(earAccess);
+			IOUtils.closeQuietly(zipFile);
+			throw e;
+		}
+	}
+
+	/**
+	 * Write a variant of an opened EAR with the given endpoints
+	 * 
+	 * May be called concurrently for the same archive.
+	 */
+	static void modifyWsImports(ScaArchive archive, ImportEndpoint[] importEndpoints, File targetFile) {
+		Map<String, ImportSet> modifiedImports = modifyEndpoints(archive.getScaModules(), importEndpoints);
+		writeArchive(modifiedImports, archive.getScaModules(), archive.getDirectory(), targetFile);
+	}
+
+	/**
+	 * Find all SCA modules in the EAR
+	 * 
+	 * The jars are examined concurrently, and only the central directory of
+	 * each jar is read.
+	 * 
+	 * @return SCA module entries, in EAR order
+	 */
+	static List<ZipDirectory.Entry> findScaModules(ZipFile zipFile, ZipDirectory ear) {
+		List<ScaModuleTask> tasks = new ArrayList<>();
+		for (ZipDirectory.Entry entry : ear.getEntries()) {
+			if (entry.getName().endsWith(".jar")) {
+				ScaModuleTask task = new ScaModuleTask(zipFile, ear, entry);
+				discoveryPool.execute(task);
+				tasks.add(task);
+			}
+		}
+		List<ZipDirectory.Entry> scaModules = new ArrayList<>();
+		for (ScaModuleTask task : tasks) {
+			if (task.join()) {
+				scaModules.add(task.entry);
+			}
+		}
+		if (scaModules.isEmpty()) {
+			throw new RuntimeException("No SCA module found in " + zipFile.getName());
+		}
+		log.debug("Found SCA modules {} in {}", scaModules, zipFile.getName());
+		return scaModules;
+	}
+
+	/**
+	 * Checks if a jar in the EAR contains a .module file
+	 */
+	private static class ScaModuleTask extends RecursiveTask<Boolean> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ZipFile zipFile;
+		private final ZipDirectory ear;
+		private final ZipDirectory.Entry entry;
+
+		ScaModuleTask(ZipFile zipFile, ZipDirectory ear, ZipDirectory.Entry entry) {
+			this.zipFile = zipFile;
+			this.ear = ear;
+			this.entry = entry;
+		}
+
+		@Override
+		protected Boolean compute() {
+			try {
+				List<ZipDirectory.Entry> jarEntries;
+				if (entry.getMethod() == ZipEntry.STORED) {
+					jarEntries = ZipDirectory.read(ear.getChannel(), ear.getStart() + ear.getDataOffset(entry), entry.getSize()).getEntries();
+				} else {
+					jarEntries = ZipDirectory.readEntries(zipFile, zipFile.getEntry(entry.getName()));
+				}
+				for (ZipDirectory.Entry jarEntry : jarEntries) {
+					if (jarEntry.getName().endsWith(".module") || jarEntry.getName().endsWith(".MODULE")) {
+						return true;
+					}
+				}
+				return false;
+			} catch (ZipException e) {
+				log.warn("Unable to read {} - skipping", entry.getName(), e);
+				return false;
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to read " + entry.getName(), e);
+			}
+		}
+
 	}
 
-	private static void modifyEndpoints(ImportSet importXmls, ImportEndpoint[] importEndpoints) {
-		Set<String> importEndpointsSet = new HashSet<>();
-		for (ImportEndpoint importEndpoint : importEndpoints) {
-			importEndpointsSet.add(importEndpoint.importName);
+	/**
+	 * Set endpoint addresses of the imports in all SCA modules containing them
+	 * 
+	 * Only the imports named in importEndpoints are read and rewritten.
+	 * 
+	 * @return rewritten imports by SCA module name
+	 */
+	static Map<String, ImportSet> modifyEndpoints(List<ScaModule> scaModules, ImportEndpoint[] importEndpoints) {
+		BindingRule[] rules = new BindingRule[importEndpoints.length];
+		for (int i = 0; i < importEndpoints.length; i++) {
+			rules[i] = new BindingRule(importEndpoints[i].importName, null, "esbBinding/@endpoint", importEndpoints[i].endpointUrl);
 		}
-		Set<String> imports = importXmls.nameKeySet();
-		if (!imports.containsAll(importEndpointsSet)) {
-			log.error("Mismatch between found and specified import names. {} was specified, but only found {} in SCDL files.", importEndpointsSet, imports);
-			throw new RuntimeException("Mismatch between found and specified import names");
+		return applyRules(scaModules, rules, false);
+	}
+
+	/**
+	 * Apply rules to the imports, and optionally exports, in all SCA modules
+	 * containing them
+	 * 
+	 * Each SCDL file is read and rewritten once, with all the rules for it.
+	 * 
+	 * @return rewritten SCDL files by SCA module name
+	 */
+	static Map<String, ImportSet> applyRules(List<ScaModule> scaModules, BindingRule[] rules, boolean exports) {
+		Set<String> ruleNames = new HashSet<>();
+		for (BindingRule rule : rules) {
+			ruleNames.add(rule.getName());
+		}
+		Set<String> names = new HashSet<>();
+		for (ScaModule scaModule : scaModules) {
+			names.addAll(scaModule.getImports().nameKeySet());
+			if (exports) {
+				names.addAll(scaModule.getExports().nameKeySet());
+			}
+		}
+		if (!names.containsAll(ruleNames)) {
+			String kind = exports ? "import and export" : "import";
+			log.error("Mismatch between found and specified {} names. {} was specified, but only found {} in SCDL files.", kind, ruleNames, names);
+			throw new RuntimeException("Mismatch between found and specified " + kind + " names");
 		}
-		for (ImportEndpoint importEndpoint : importEndpoints) {
-			Document doc = importXmls.getByName(importEndpoint.importName);
-			doc.getDocumentElement().getElementsByTagName("esbBinding").item(0).getAttributes().getNamedItem("endpoint")
-					.setNodeValue(importEndpoint.endpointUrl);
+		Map<String, ImportSet> modifiedScdl = new LinkedHashMap<>();
+		for (ScaModule scaModule : scaModules) {
+			Map<String, List<BindingRule>> rulesByEntryName = new LinkedHashMap<>();
+			ImportSet rewritten = new ImportSet();
+			for (BindingRule rule : rules) {
+				addRule(rulesByEntryName, scaModule.getImports().getEntryName(rule.getName()), rule);
+				if (exports) {
+					addRule(rulesByEntryName, scaModule.getExports().getEntryName(rule.getName()), rule);
+				}
+			}
+			for (Map.Entry<String, List<BindingRule>> entry : rulesByEntryName.entrySet()) {
+				String entryName = entry.getKey();
+				List<BindingRule> entryRules = entry.getValue();
+				try {
+					byte[] content = ScdlPatcher.setAttributes(readScdl(scaModule, entryName), entryRules);
+					rewritten.put(entryRules.get(0).getName(), entryName, content);
+				} catch (IllegalArgumentException e) {
+					throw new RuntimeException("Unable to apply " + entryRules + " to " + entryName + " in " + scaModule, e);
+				}
+			}
+			if (!rewritten.isEmpty()) {
+				modifiedScdl.put(scaModule.getName(), rewritten);
+			}
+		}
+		log.debug("Applied {} rules to SCDL files in {}", rules.length, modifiedScdl.keySet());
+		return modifiedScdl;
+	}
+
+	private static void addRule(Map<String, List<BindingRule>> rulesByEntryName, String entryName, BindingRule rule) {
+		if (entryName == null) {
+			return;
+		}
+		List<BindingRule> entryRules = rulesByEntryName.get(entryName);
+		if (entryRules == null) {
+			entryRules = new ArrayList<>();
+			rulesByEntryName.put(entryName, entryRules);
+		}
+		entryRules.add(rule);
+	}
+
+	private static byte[] readScdl(ScaModule scaModule, String entryName) {
+		try {
+			ZipDirectory directory = scaModule.getDirectory();
+			return directory.readContent(directory.getEntry(entryName));
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read " + entryName + " in " + scaModule, e);
 		}
-		log.debug("Set endpoint address for {} imports", imports.size());
 	}
 
-	private static void writeArchive(ImportSet importXmls, ZipFile zipFile, File destZipFile, ZipEntry scaModuleEntry) {
+	/**
+	 * Write the EAR to a temporary file which then replaces destZipFile
+	 * 
+	 * destZipFile is replaced rather than overwritten, since it may be
+	 * linked to an {@link EarCache} entry.
+	 */
+	static void writeArchive(Map<String, ImportSet> modifiedImports, List<ScaModule> scaModules, ZipDirectory ear, File destZipFile) {
 		log.info("Writing modified ear file to {}", destZipFile);
+		Map<String, ScaModule> scaModulesByName = new HashMap<>();
+		for (ScaModule scaModule : scaModules) {
+			scaModulesByName.put(scaModule.getName(), scaModule);
+		}
+		File tempFile = null;
 		try {
-			final ZipOutputStream destZip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(destZipFile)));
+			tempFile = File.createTempFile(destZipFile.getName(), ".tmp", destZipFile.getAbsoluteFile().getParentFile());
+			ZipWriter destZip = new ZipWriter(new BufferedOutputStream(new FileOutputStream(tempFile)));
 			try {
-				Enumeration<? extends ZipEntry> entries = zipFile.entries();
-				while (entries.hasMoreElements()) {
-					ZipEntry entry = entries.nextElement();
-					if (entry.getName().equals(scaModuleEntry.getName())) {
-						destZip.putNextEntry(new ZipEntry(scaModuleEntry.getName()));
-						byte[] scaModuleJar = createScaModuleJar(zipFile, entry, importXmls);
-						IOUtils.write(scaModuleJar, destZip);
+				for (ZipDirectory.Entry entry : ear.getEntries()) {
+					ImportSet importXmls = modifiedImports.get(entry.getName());
+					if (importXmls != null) {
+						OutputStream out = destZip.putNextEntry(entry.getName(), System.currentTimeMillis());
+						writeScaModuleJar(scaModulesByName.get(entry.getName()), importXmls, out);
 					} else {
-						destZip.putNextEntry(entry);
-						InputStream is = zipFile.getInputStream(entry);
-						try {
-							IOUtils.copy(is, destZip);
-						} finally {
-							IOUtils.closeQuietly(is);
-						}
+						destZip.copyEntry(ear, entry);
 					}
 				}
+				destZip.finish(ear.getComment());
 			} finally {
 				IOUtils.closeQuietly(destZip);
 			}
+			Files.move(tempFile.toPath(), destZipFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
 		} catch (IOException e) {
 			throw new RuntimeException("An error occured while creating " + destZipFile, e);
+		} finally {
+			FileUtils.deleteQuietly(tempFile);
 		}
 	}
 
-	private static byte[] createScaModuleJar(ZipFile zipFile, ZipEntry scaEntry, ImportSet importXmls) {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+	/**
+	 * Append the modified SCA modules and a new central directory to the EAR
+	 * 
+	 * The central directory keeps the original order, with the modified
+	 * modules pointing to their new location.
+	 */
+	private static void appendArchive(Map<String, ImportSet> modifiedImports, List<ScaModule> scaModules, ZipDirectory ear, File earFile) {
+		log.info("Appending modified SCA modules {} to {}", modifiedImports.keySet(), earFile);
+		Map<String, ScaModule> scaModulesByName = new HashMap<>();
+		for (ScaModule scaModule : scaModules) {
+			scaModulesByName.put(scaModule.getName(), scaModule);
+		}
+		long originalLength = ear.getLength();
+		boolean completed = false;
 		try {
-			ZipInputStream origJar = new ZipInputStream(zipFile.getInputStream(scaEntry));
-			final ZipOutputStream destZip = new ZipOutputStream(baos);
-			ZipEntry entry;
+			ZipWriter destZip = new ZipWriter(new BufferedOutputStream(new FileOutputStream(earFile, true)), originalLength);
 			try {
-				while ((entry = origJar.getNextEntry()) != null) {
-					if (importXmls.entryNameKeySet().contains(entry.getName())) {
-						try {
-							Transformer transformer = TransformerFactory.newInstance().newTransformer();
-							Document doc = importXmls.getByEntryName(entry.getName());
-							ByteArrayOutputStream out = new ByteArrayOutputStream();
-							try {
-								transformer.transform(new DOMSource(doc), new StreamResult(out));
-							} finally {
-								IOUtils.closeQuietly(out);
-							}
-							destZip.putNextEntry(new ZipEntry(entry.getName()));
-							IOUtils.write(out.toByteArray(), destZip);
-						} catch (TransformerFactoryConfigurationError | TransformerException e) {
-							throw new RuntimeException("Unable to serialize XML document", e);
-						}
+				for (ZipDirectory.Entry entry : ear.getEntries()) {
+					ImportSet importXmls = modifiedImports.get(entry.getName());
+					if (importXmls != null) {
+						OutputStream out = destZip.putNextEntry(entry.getName(), System.currentTimeMillis());
+						writeScaModuleJar(scaModulesByName.get(entry.getName()), importXmls, out);
 					} else {
-						destZip.putNextEntry(entry);
-						IOUtils.copy(origJar, destZip);
+						destZip.keepEntry(entry);
 					}
 				}
+				destZip.finish(ear.getComment());
+				completed = true;
 			} finally {
-				IOUtils.closeQuietly(origJar);
+				if (!completed) {
+					destZip.abandon();
+				}
 				IOUtils.closeQuietly(destZip);
 			}
-			return baos.toByteArray();
 		} catch (IOException e) {
-			throw new RuntimeException("Unable to create SCA module archive", e);
+			throw new RuntimeException("An error occured while appending to " + earFile, e);
+		} finally {
+			if (!completed) {
+				truncate(earFile, originalLength);
+			}
+		}
+	}
+
+	private static void truncate(File file, long length) {
+		RandomAccessFile access = null;
+		try {
+			access = new RandomAccessFile(file, "rw");
+			access.setLength(length);
+		} catch (IOException e) {
+			log.error("Unable to restore {} to its original length {}", file, length, e);
 		} finally {
-			IOUtils.closeQuietly(baos);
+			IOUtils.closeQuietly(access);
+		}
+	}
+
+	/**
+	 * Write the SCA module jar with modified imports directly to out
+	 * 
+	 * The jar is streamed entry by entry, so memory usage does not depend on
+	 * the size of the module. Entries other than the modified imports are
+	 * copied without being inflated. out is left open.
+	 */
+	private static void writeScaModuleJar(ScaModule scaModule, ImportSet importXmls, OutputStream out) {
+		try {
+			ZipDirectory module = scaModule.getDirectory();
+			ZipWriter destZip = new ZipWriter(new CloseShieldOutputStream(out));
+			try {
+				for (ZipDirectory.Entry entry : module.getEntries()) {
+					byte[] content = importXmls.getByEntryName(entry.getName());
+					if (content != null) {
+						destZip.putNextEntry(entry.getName(), System.currentTimeMillis()).write(content);
+					} else {
+						destZip.copyEntry(module, entry);
+					}
+				}
+				destZip.finish(module.getComment());
+			} finally {
+				IOUtils.closeQuietly(destZip);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to create SCA module archive", e);
 		}
 	}
 
@@ -0,0 +1,424 @@
+package net.gisnas.oystein.ibm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLStreamConstants;
+
+/**
+ * Reads and patches attributes in SCDL files (.import, .export) without
+ * parsing them into a DOM
+ *
+ * The document is scanned as a stream of element events. Only the attribute
+ * value being set is replaced, every other byte of the document is kept as
+ * is.
+ */
+class ScdlPatcher {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Initial number of bytes read to find the name of the root element */
+	private static final int NAME_READ_SIZE = 1024;
+	private static final Pattern ENCODING = Pattern.compile("^<\\?xml[^>]*encoding\\s*=\\s*[\"']([A-Za-z0-9._:-]+)[\"']");
+
+	/**
+	 * @param scdl
+	 * @return name attribute of the root element, or null if not set
+	 */
+	static String readName(byte[] scdl) {
+		Scanner scanner = new Scanner(new String(scdl, charsetOf(scdl)));
+		if (scanner.next() != XMLStreamConstants.START_ELEMENT) {
+			throw new IllegalArgumentException("No root element found");
+		}
+		int[] value = scanner.findAttribute("name");
+		return value == null ? null : unescape(scanner.text.substring(value[0], value[1]));
+	}
+
+	/**
+	 * Read just far enough to find the name attribute of the root element
+	 *
+	 * @param scdl stream of the document, not closed
+	 * @return name attribute of the root element, or null if not set
+	 */
+	static String readName(InputStream scdl) throws IOException {
+		byte[] buf = new byte[NAME_READ_SIZE];
+		int length = 0;
+		while (true) {
+			int n = scdl.read(buf, length, buf.length - length);
+			if (n < 0) {
+				return readName(Arrays.copyOf(buf, length));
+			}
+			length += n;
+			if (length == buf.length) {
+				try {
+					return readName(buf);
+				} catch (IllegalArgumentException e) {
+					// Root start tag not complete yet
+				}
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			}
+		}
+	}
+
+	/**
+	 * Set endpoint attribute of the esbBinding element
+	 *
+	 * @param scdl
+	 * @param endpointUrl
+	 * @return patched document
+	 */
+	static byte[] setEndpoint(byte[] scdl, String endpointUrl) {
+		return setAttributes(scdl, Collections.singletonList(new BindingRule(null, null, "esbBinding/@endpoint", endpointUrl)));
+	}
+
+	/**
+	 * Apply all rules in a single scan of the document
+	 *
+	 * The name of the rules is not checked. If several rules set the same
+	 * attribute, the last one wins.
+	 *
+	 * @param scdl
+	 * @param rules
+	 * @return patched document
+	 * @throws IllegalArgumentException if a rule matches no attribute
+	 */
+	static byte[] setAttributes(byte[] scdl, List<BindingRule> rules) {
+		Charset charset = charsetOf(scdl);
+		String text = new String(scdl, charset);
+		Scanner scanner = new Scanner(text);
+		List<String> path = new ArrayList<>();
+		List<String> bindingTypes = new ArrayList<>();
+		Map<Integer, Replacement> replacements = new TreeMap<>();
+		boolean[] matched = new boolean[rules.size()];
+		int event;
+		while ((event = scanner.next()) != XMLStreamConstants.END_DOCUMENT) {
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				path.remove(path.size() - 1);
+				bindingTypes.remove(bindingTypes.size() - 1);
+				continue;
+			}
+			String localName = scanner.getLocalName();
+			String bindingType = bindingTypes.isEmpty() ? null : bindingTypes.get(bindingTypes.size() - 1);
+			if ("esbBinding".equals(localName)) {
+				int[] type = scanner.findAttribute("type");
+				bindingType = type == null ? null : text.substring(type[0], type[1]);
+			}
+			path.add(localName);
+			bindingTypes.add(bindingType);
+			for (int i = 0; i < rules.size(); i++) {
+				BindingRule rule = rules.get(i);
+				if (matches(rule, path, bindingType)) {
+					int[] value = scanner.findAttribute(rule.getAttribute());
+					if (value != null) {
+						replacements.put(value[0], new Replacement(value[0], value[1], rule.getValue()));
+						matched[i] = true;
+					}
+				}
+			}
+		}
+		for (int i = 0; i < rules.size(); i++) {
+			if (!matched[i]) {
+				BindingRule rule = rules.get(i);
+				throw new IllegalArgumentException("No " + rule.getAttributePath() + (rule.getBindingType() == null ? "" : " in " + rule.getBindingType()) + " found");
+			}
+		}
+		StringBuilder patched = new StringBuilder(text.length() + 64);
+		int pos = 0;
+		for (Replacement replacement : replacements.values()) {
+			char quote = text.charAt(replacement.start - 1);
+			patched.append(text, pos, replacement.start).append(escape(replacement.value, quote));
+			pos = replacement.end;
+		}
+		patched.append(text, pos, text.length());
+		return patched.toString().getBytes(charset);
+	}
+
+	/**
+	 * @param path local names of the current element and its ancestors,
+	 *        starting with the root element
+	 * @param bindingType xsi:type of the enclosing esbBinding, if any
+	 */
+	private static boolean matches(BindingRule rule, List<String> path, String bindingType) {
+		String[] elementPath = rule.getElementPath();
+		if (path.size() != elementPath.length + 1) {
+			return false;
+		}
+		for (int i = 0; i < elementPath.length; i++) {
+			if (!elementPath[i].equals(path.get(i + 1))) {
+				return false;
+			}
+		}
+		if (rule.getBindingType() == null) {
+			return true;
+		}
+		return bindingType != null && localPart(bindingType).equals(localPart(rule.getBindingType()));
+	}
+
+	private static String localPart(String qName) {
+		return qName.substring(qName.indexOf(':') + 1);
+	}
+
+	/**
+	 * A UTF-16 document is decoded with the byte order of its BOM, which is
+	 * kept as the first character, so it is encoded again in the same order
+	 */
+	private static Charset charsetOf(byte[] xml) {
+		if (xml.length >= 2 && xml[0] == (byte) 0xfe && xml[1] == (byte) 0xff) {
+			return Charset.forName("UTF-16BE");
+		}
+		if (xml.length >= 2 && xml[0] == (byte) 0xff && xml[1] == (byte) 0xfe) {
+			return Charset.forName("UTF-16LE");
+		}
+		String prolog = new String(xml, 0, Math.min(xml.length, 256), Charset.forName("ISO-8859-1"));
+		if (prolog.startsWith("\u00ef\u00bb\u00bf")) {
+			return UTF8;
+		}
+		Matcher matcher = ENCODING.matcher(prolog);
+		return matcher.find() ? Charset.forName(matcher.group(1)) : UTF8;
+	}
+
+	private static String escape(String value, char quote) {
+		StringBuilder sb = new StringBuilder(value.length() + 16);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '"':
+				sb.append(quote == '"' ? "&quot;" : "\"");
+				break;
+			case '\'':
+				sb.append(quote == '\'' ? "&apos;" : "'");
+				break;
+			case '\t':
+				sb.append("&#9;");
+				break;
+			case '\n':
+				sb.append("&#10;");
+				break;
+			case '\r':
+				sb.append("&#13;");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String unescape(String value) {
+		if (value.indexOf('&') < 0) {
+			return value;
+		}
+		StringBuilder sb = new StringBuilder(value.length());
+		int i = 0;
+		while (i < value.length()) {
+			char c = value.charAt(i);
+			int end = value.indexOf(';', i);
+			if (c != '&' || end < 0) {
+				sb.append(c);
+				i++;
+				continue;
+			}
+			String entity = value.substring(i + 1, end);
+			if (entity.equals("amp")) {
+				sb.append('&');
+			} else if (entity.equals("lt")) {
+				sb.append('<');
+			} else if (entity.equals("gt")) {
+				sb.append('>');
+			} else if (entity.equals("quot")) {
+				sb.append('"');
+			} else if (entity.equals("apos")) {
+				sb.append('\'');
+			} else if (entity.startsWith("#x")) {
+				sb.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+			} else if (entity.startsWith("#")) {
+				sb.appendCodePoint(Integer.parseInt(entity.substring(1)));
+			} else {
+				throw new IllegalArgumentException("Unknown entity &" + entity + ";");
+			}
+			i = end + 1;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * New value of an attribute, replacing the characters from start to end
+	 */
+	private static class Replacement {
+
+		private final int start;
+		private final int end;
+		private final String value;
+
+		Replacement(int start, int end, String value) {
+			this.start = start;
+			this.end = end;
+			this.value = value;
+		}
+
+	}
+
+	/**
+	 * Pull scanner reporting element events with exact positions in the
+	 * document, which the JDK StAX reader does not provide
+	 *
+	 * Comments, processing instructions, CDATA sections, DOCTYPE and text are
+	 * skipped. Well-formedness is not checked.
+	 */
+	static class Scanner {
+
+		private final String text;
+		private int pos;
+		private int tagStart;
+		private int tagEnd;
+		private String name;
+		private boolean emptyElement;
+
+		Scanner(String text) {
+			this.text = text;
+		}
+
+		/**
+		 * @return START_ELEMENT, END_ELEMENT or END_DOCUMENT
+		 */
+		int next() {
+			if (emptyElement) {
+				emptyElement = false;
+				return XMLStreamConstants.END_ELEMENT;
+			}
+			while (true) {
+				int lt = text.indexOf('<', pos);
+				if (lt < 0) {
+					pos = text.length();
+					return XMLStreamConstants.END_DOCUMENT;
+				}
+				if (text.startsWith("<!--", lt)) {
+					pos = skipPast(lt, "-->");
+				} else if (text.startsWith("<![CDATA[", lt)) {
+					pos = skipPast(lt, "]]>");
+				} else if (text.startsWith("<?", lt)) {
+					pos = skipPast(lt, "?>");
+				} else if (text.startsWith("<!", lt)) {
+					pos = skipDeclaration(lt);
+				} else if (text.startsWith("</", lt)) {
+					pos = skipPast(lt, ">");
+					return XMLStreamConstants.END_ELEMENT;
+				} else {
+					tagStart = lt;
+					tagEnd = findTagEnd(lt);
+					emptyElement = text.charAt(tagEnd - 2) == '/';
+					int nameEnd = lt + 1;
+					while (nameEnd < tagEnd && !isWhitespace(text.charAt(nameEnd)) && text.charAt(nameEnd) != '/' && text.charAt(nameEnd) != '>') {
+						nameEnd++;
+					}
+					name = text.substring(lt + 1, nameEnd);
+					pos = tagEnd;
+					return XMLStreamConstants.START_ELEMENT;
+				}
+			}
+		}
+
+		/**
+		 * @return local name of the current element
+		 */
+		String getLocalName() {
+			return name.substring(name.indexOf(':') + 1);
+		}
+
+		/**
+		 * Find attribute by local name in the current start tag
+		 *
+		 * @return start and end position of the attribute value, or null
+		 */
+		int[] findAttribute(String localName) {
+			int i = tagStart + 1 + name.length();
+			while (i < tagEnd) {
+				while (i < tagEnd && isWhitespace(text.charAt(i))) {
+					i++;
+				}
+				int nameStart = i;
+				while (i < tagEnd && text.charAt(i) != '=' && !isWhitespace(text.charAt(i)) && text.charAt(i) != '/' && text.charAt(i) != '>') {
+					i++;
+				}
+				if (i == nameStart) {
+					return null;
+				}
+				String attributeName = text.substring(nameStart, i);
+				while (i < tagEnd && text.charAt(i) != '"' && text.charAt(i) != '\'') {
+					i++;
+				}
+				if (i >= tagEnd) {
+					return null;
+				}
+				char quote = text.charAt(i);
+				int valueStart = i + 1;
+				int valueEnd = text.indexOf(quote, valueStart);
+				if (attributeName.substring(attributeName.indexOf(':') + 1).equals(localName) && !attributeName.startsWith("xmlns")) {
+					return new int[] { valueStart, valueEnd };
+				}
+				i = valueEnd + 1;
+			}
+			return null;
+		}
+
+		private int findTagEnd(int start) {
+			char quote = 0;
+			for (int i = start + 1; i < text.length(); i++) {
+				char c = text.charAt(i);
+				if (quote != 0) {
+					if (c == quote) {
+						quote = 0;
+					}
+				} else if (c == '"' || c == '\'') {
+					quote = c;
+				} else if (c == '>') {
+					return i + 1;
+				}
+			}
+			throw new IllegalArgumentException("Unterminated start tag at position " + start);
+		}
+
+		private int skipPast(int start, String terminator) {
+			int end = text.indexOf(terminator, start);
+			if (end < 0) {
+				throw new IllegalArgumentException("Unterminated markup at position " + start);
+			}
+			return end + terminator.length();
+		}
+
+		private int skipDeclaration(int start) {
+			int brackets = 0;
+			for (int i = start + 2; i < text.length(); i++) {
+				char c = text.charAt(i);
+				if (c == '[') {
+					brackets++;
+				} else if (c == ']') {
+					brackets--;
+				} else if (c == '>' && brackets == 0) {
+					return i + 1;
+				}
+			}
+			throw new IllegalArgumentException("Unterminated declaration at position " + start);
+		}
+
+		private static boolean isWhitespace(char c) {
+			return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+		}
+
+	}
+
+}
@@ -0,0 +1,182 @@
+package net.gisnas.oystein.ibm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Future completed by whoever receives the result, typically a notification
+ * listener
+ *
+ * Only the first of {@link #set(Object)}, {@link #setException(Throwable)}
+ * and {@link #cancel(boolean)} has effect.
+ *
+ * Callbacks are run by the thread completing the future, or immediately if
+ * it is already done. They should be short, and hand longer work over to an
+ * executor.
+ */
+public class SettableFuture<T> implements Future<T> {
+
+	private static Logger log = LoggerFactory.getLogger(SettableFuture.class);
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final List<Callback<? super T>> callbacks = new ArrayList<>();
+	private volatile T value;
+	private volatile Throwable exception;
+	private volatile boolean cancelled;
+
+	/**
+	 * @return true if the future was completed by this call
+	 */
+	public boolean set(T value) {
+		synchronized (done) {
+			if (isDone()) {
+				return false;
+			}
+			this.value = value;
+			done.countDown();
+		}
+		runCallbacks();
+		return true;
+	}
+
+	/**
+	 * @return true if the future was completed by this call
+	 */
+	public boolean setException(Throwable exception) {
+		synchronized (done) {
+			if (isDone()) {
+				return false;
+			}
+			this.exception = exception;
+			done.countDown();
+		}
+		runCallbacks();
+		return true;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (done) {
+			if (isDone()) {
+				return false;
+			}
+			cancelled = true;
+			done.countDown();
+		}
+		runCallbacks();
+		return true;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		done.await();
+		return getValue();
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return getValue();
+	}
+
+	/**
+	 * Call back when the future is done
+	 *
+	 * A cancelled future calls {@link Callback#onFailure(Throwable)} with a
+	 * {@link CancellationException}.
+	 */
+	public void addCallback(Callback<? super T> callback) {
+		synchronized (done) {
+			if (!isDone()) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		runCallback(callback);
+	}
+
+	/**
+	 * Complete this future with the outcome of another
+	 */
+	public void setFuture(SettableFuture<? extends T> future) {
+		future.addCallback(new Callback<T>() {
+			@Override
+			public void onSuccess(T value) {
+				set(value);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				setException(t);
+			}
+		});
+	}
+
+	private void runCallbacks() {
+		List<Callback<? super T>> pending;
+		synchronized (done) {
+			pending = new ArrayList<>(callbacks);
+			callbacks.clear();
+		}
+		for (Callback<? super T> callback : pending) {
+			runCallback(callback);
+		}
+	}
+
+	private void runCallback(Callback<? super T> callback) {
+		try {
+			if (cancelled) {
+				callback.onFailure(new CancellationException());
+			} else if (exception != null) {
+				callback.onFailure(exception);
+			} else {
+				callback.onSuccess(value);
+			}
+		} catch (RuntimeException e) {
+			log.error("Callback {} failed", callback, e);
+		}
+	}
+
+	private T getValue() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		}
+		if (exception != null) {
+			throw new ExecutionException(exception);
+		}
+		return value;
+	}
+
+	/**
+	 * Receives the outcome of a future
+	 */
+	public interface Callback<T> {
+
+		void onSuccess(T value);
+
+		void onFailure(Throwable t);
+
+	}
+
+}
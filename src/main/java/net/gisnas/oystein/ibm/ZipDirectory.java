@@ -0,0 +1,442 @@
+package net.gisnas.oystein.ibm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Central directory of a zip archive stored in a region of a file
+ *
+ * Gives access to the compressed data of each entry, so entries can be copied
+ * to another archive without being inflated and deflated again. ZIP64
+ * archives are not supported.
+ */
+class ZipDirectory {
+
+	static final int LOCAL_HEADER_SIG = 0x04034b50;
+	static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+	static final int CENTRAL_HEADER_SIG = 0x02014b50;
+	static final int END_SIG = 0x06054b50;
+	static final int LOCAL_HEADER_SIZE = 30;
+	static final int CENTRAL_HEADER_SIZE = 46;
+	static final int END_SIZE = 22;
+	static final int FLAG_DATA_DESCRIPTOR = 0x08;
+	static final int FLAG_UTF8 = 0x800;
+
+	private static final int MAX_COMMENT_SIZE = 0xffff;
+	private static final int SKIP_BUFFER_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Charset CP437 = Charset.forName("IBM437");
+
+	private final FileChannel channel;
+	private final long start;
+	private final long length;
+	private final Map<String, Entry> entries;
+	private final byte[] comment;
+	private final long centralDirectoryOffset;
+
+	private ZipDirectory(FileChannel channel, long start, long length, Map<String, Entry> entries, byte[] comment, long centralDirectoryOffset) {
+		this.channel = channel;
+		this.start = start;
+		this.length = length;
+		this.entries = entries;
+		this.comment = comment;
+		this.centralDirectoryOffset = centralDirectoryOffset;
+	}
+
+	/**
+	 * Read the central directory of the archive occupying length bytes from
+	 * position start in channel
+	 *
+	 * @param channel
+	 * @param start
+	 * @param length
+	 * @return central directory, with offsets relative to start
+	 * @throws ZipException if the region does not contain a supported zip archive
+	 */
+	static ZipDirectory read(FileChannel channel, long start, long length) throws IOException {
+		int tailLength = (int) Math.min(length, END_SIZE + MAX_COMMENT_SIZE);
+		End end = End.find(readFully(channel, start + length - tailLength, tailLength), length);
+		ByteBuffer cd = readFully(channel, start + end.cdOffset, (int) end.cdSize);
+		Map<String, Entry> entries = new LinkedHashMap<>(end.entryCount * 4 / 3 + 1);
+		for (Entry entry : readEntries(cd, end.entryCount)) {
+			entries.put(entry.getName(), entry);
+		}
+		return new ZipDirectory(channel, start, length, entries, end.comment, end.cdOffset);
+	}
+
+	/**
+	 * Read the central directory entries of an archive nested in zipFile
+	 * 
+	 * Only the end of the nested archive is read. The content before the
+	 * central directory is inflated, but not parsed.
+	 *
+	 * @param zipFile
+	 * @param nested
+	 * @return entries in the nested archive
+	 * @throws ZipException if nested is not a supported zip archive
+	 */
+	static List<Entry> readEntries(ZipFile zipFile, ZipEntry nested) throws IOException {
+		long length = nested.getSize();
+		int tailLength = (int) Math.min(length, END_SIZE + MAX_COMMENT_SIZE);
+		long tailStart = length - tailLength;
+		ByteBuffer tail = readFully(zipFile, nested, tailStart, tailLength);
+		End end = End.find(tail, length);
+		ByteBuffer cd;
+		if (end.cdOffset >= tailStart) {
+			tail.position((int) (end.cdOffset - tailStart));
+			cd = tail.slice().order(ByteOrder.LITTLE_ENDIAN);
+		} else {
+			cd = readFully(zipFile, nested, end.cdOffset, (int) end.cdSize);
+		}
+		return readEntries(cd, end.entryCount);
+	}
+
+	private static List<Entry> readEntries(ByteBuffer cd, int entryCount) throws ZipException {
+		List<Entry> entries = new ArrayList<>(entryCount);
+		for (int i = 0; i < entryCount; i++) {
+			entries.add(Entry.read(cd));
+		}
+		return entries;
+	}
+
+	private static ByteBuffer readFully(ZipFile zipFile, ZipEntry entry, long position, int length) throws IOException {
+		InputStream is = zipFile.getInputStream(entry);
+		try {
+			byte[] skipBuffer = new byte[SKIP_BUFFER_SIZE];
+			long skipped = 0;
+			while (skipped < position) {
+				int n = is.read(skipBuffer, 0, (int) Math.min(skipBuffer.length, position - skipped));
+				if (n < 0) {
+					throw new EOFException("Unexpected end of " + entry.getName());
+				}
+				skipped += n;
+			}
+			byte[] buf = new byte[length];
+			IOUtils.readFully(is, buf);
+			return ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+
+	static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) < 0) {
+				throw new EOFException("Unexpected end of archive");
+			}
+		}
+		buf.flip();
+		return buf;
+	}
+
+	FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return position of the archive in the channel
+	 */
+	long getStart() {
+		return start;
+	}
+
+	long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return offset of the central directory relative to the archive start
+	 */
+	long getCentralDirectoryOffset() {
+		return centralDirectoryOffset;
+	}
+
+	byte[] getComment() {
+		return comment;
+	}
+
+	List<Entry> getEntries() {
+		return Collections.unmodifiableList(new ArrayList<>(entries.values()));
+	}
+
+	Entry getEntry(String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * @return offset of the entry's compressed data relative to the archive
+	 *         start
+	 */
+	long getDataOffset(Entry entry) throws IOException {
+		ByteBuffer header = readFully(channel, start + entry.getLocalHeaderOffset(), LOCAL_HEADER_SIZE);
+		if (header.getInt(0) != LOCAL_HEADER_SIG) {
+			throw new ZipException("Invalid local header for " + entry.getName());
+		}
+		return entry.getLocalHeaderOffset() + LOCAL_HEADER_SIZE + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+	}
+
+	/**
+	 * Read and inflate the content of an entry. Intended for small entries.
+	 */
+	byte[] readContent(Entry entry) throws IOException {
+		byte[] data = readFully(channel, start + getDataOffset(entry), (int) entry.getCompressedSize()).array();
+		if (entry.getMethod() == ZipEntry.STORED) {
+			return data;
+		} else if (entry.getMethod() != ZipEntry.DEFLATED) {
+			throw new ZipException("Unsupported compression method " + entry.getMethod() + " for " + entry.getName());
+		}
+		byte[] content = new byte[(int) entry.getSize()];
+		Inflater inflater = new Inflater(true);
+		try {
+			// Extra dummy byte required by the nowrap inflater
+			inflater.setInput(Arrays.copyOf(data, data.length + 1));
+			int n = 0;
+			while (n < content.length) {
+				int inflated = inflater.inflate(content, n, content.length - n);
+				if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+					break;
+				}
+				n += inflated;
+			}
+			if (n != content.length) {
+				throw new ZipException("Invalid size of " + entry.getName());
+			}
+			return content;
+		} catch (DataFormatException e) {
+			throw new ZipException("Invalid compressed data in " + entry.getName() + ": " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Stream the content of an entry, inflating it as it is read
+	 */
+	InputStream openContent(Entry entry) throws IOException {
+		long position = start + getDataOffset(entry);
+		if (entry.getMethod() == ZipEntry.STORED) {
+			return new ChannelInputStream(channel, position, entry.getCompressedSize(), false);
+		} else if (entry.getMethod() != ZipEntry.DEFLATED) {
+			throw new ZipException("Unsupported compression method " + entry.getMethod() + " for " + entry.getName());
+		}
+		final Inflater inflater = new Inflater(true);
+		return new InflaterInputStream(new ChannelInputStream(channel, position, entry.getCompressedSize(), true), inflater, 512) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				inflater.end();
+			}
+		};
+	}
+
+	/**
+	 * @return length of the entry's local header, data and data descriptor
+	 */
+	long getRecordLength(Entry entry) throws IOException {
+		long dataEnd = getDataOffset(entry) + entry.getCompressedSize();
+		if ((entry.getFlags() & FLAG_DATA_DESCRIPTOR) == 0) {
+			return dataEnd - entry.getLocalHeaderOffset();
+		}
+		ByteBuffer signature = readFully(channel, start + dataEnd, 4);
+		int descriptorLength = signature.getInt(0) == DATA_DESCRIPTOR_SIG ? 16 : 12;
+		return dataEnd + descriptorLength - entry.getLocalHeaderOffset();
+	}
+
+	/**
+	 * Region of a channel as a stream
+	 */
+	private static class ChannelInputStream extends InputStream {
+
+		private final FileChannel channel;
+		private long position;
+		private long remaining;
+		/** Extra dummy byte at the end, required by the nowrap inflater */
+		private boolean dummyByte;
+
+		ChannelInputStream(FileChannel channel, long position, long length, boolean dummyByte) {
+			this.channel = channel;
+			this.position = position;
+			this.remaining = length;
+			this.dummyByte = dummyByte;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (remaining == 0) {
+				if (dummyByte) {
+					dummyByte = false;
+					b[off] = 0;
+					return 1;
+				}
+				return -1;
+			}
+			int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+			if (n < 0) {
+				throw new EOFException("Unexpected end of archive");
+			}
+			position += n;
+			remaining -= n;
+			return n;
+		}
+
+	}
+
+	/**
+	 * End of central directory record
+	 */
+	private static class End {
+
+		private int entryCount;
+		private long cdSize;
+		private long cdOffset;
+		private byte[] comment;
+
+		/**
+		 * @param tail last bytes of the archive
+		 * @param length archive length
+		 */
+		private static End find(ByteBuffer tail, long length) throws ZipException {
+			int pos = -1;
+			for (int i = tail.limit() - END_SIZE; i >= 0; i--) {
+				if (tail.getInt(i) == END_SIG && i + END_SIZE + (tail.getShort(i + 20) & 0xffff) == tail.limit()) {
+					pos = i;
+					break;
+				}
+			}
+			if (pos < 0) {
+				throw new ZipException("End of central directory not found");
+			}
+			End end = new End();
+			end.entryCount = tail.getShort(pos + 10) & 0xffff;
+			end.cdSize = tail.getInt(pos + 12) & 0xffffffffL;
+			end.cdOffset = tail.getInt(pos + 16) & 0xffffffffL;
+			if (end.entryCount == 0xffff || end.cdSize == 0xffffffffL || end.cdOffset == 0xffffffffL) {
+				throw new ZipException("ZIP64 archives are not supported");
+			}
+			if (end.cdOffset + end.cdSize > length) {
+				throw new ZipException("Invalid central directory offset");
+			}
+			end.comment = new byte[tail.getShort(pos + 20) & 0xffff];
+			for (int i = 0; i < end.comment.length; i++) {
+				end.comment[i] = tail.get(pos + END_SIZE + i);
+			}
+			return end;
+		}
+
+	}
+
+	/**
+	 * Zip entry as recorded in the central directory
+	 */
+	static class Entry {
+
+		private final byte[] header;
+		private final String name;
+
+		private Entry(byte[] header, String name) {
+			this.header = header;
+			this.name = name;
+		}
+
+		private static Entry read(ByteBuffer cd) throws ZipException {
+			if (cd.remaining() < CENTRAL_HEADER_SIZE || cd.getInt(cd.position()) != CENTRAL_HEADER_SIG) {
+				throw new ZipException("Invalid central directory header");
+			}
+			int pos = cd.position();
+			int nameLength = cd.getShort(pos + 28) & 0xffff;
+			int extraLength = cd.getShort(pos + 30) & 0xffff;
+			int commentLength = cd.getShort(pos + 32) & 0xffff;
+			byte[] header = new byte[CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength];
+			cd.get(header);
+			int flags = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getShort(8);
+			String name = new String(header, CENTRAL_HEADER_SIZE, nameLength, (flags & FLAG_UTF8) != 0 ? UTF8 : CP437);
+			Entry entry = new Entry(header, name);
+			if (entry.getCompressedSize() == 0xffffffffL || entry.getSize() == 0xffffffffL || entry.getLocalHeaderOffset() == 0xffffffffL) {
+				throw new ZipException("ZIP64 archives are not supported");
+			}
+			return entry;
+		}
+
+		private ByteBuffer buf() {
+			return ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		String getName() {
+			return name;
+		}
+
+		int getFlags() {
+			return buf().getShort(8) & 0xffff;
+		}
+
+		int getMethod() {
+			return buf().getShort(10) & 0xffff;
+		}
+
+		long getCrc() {
+			return buf().getInt(16) & 0xffffffffL;
+		}
+
+		long getCompressedSize() {
+			return buf().getInt(20) & 0xffffffffL;
+		}
+
+		long getSize() {
+			return buf().getInt(24) & 0xffffffffL;
+		}
+
+		long getLocalHeaderOffset() {
+			return buf().getInt(42) & 0xffffffffL;
+		}
+
+		boolean isDirectory() {
+			return name.endsWith("/");
+		}
+
+		/**
+		 * @return copy of the central directory header with another local
+		 *         header offset
+		 */
+		byte[] getHeader(long localHeaderOffset) {
+			byte[] copy = header.clone();
+			ByteBuffer.wrap(copy).order(ByteOrder.LITTLE_ENDIAN).putInt(42, (int) localHeaderOffset);
+			return copy;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+	}
+
+}
@@ -0,0 +1,310 @@
+package net.gisnas.oystein.ibm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Writes zip archives from a mix of new entries and entries copied verbatim
+ * from a {@link ZipDirectory}
+ *
+ * Copied entries keep their compressed data, CRC and sizes. New entries are
+ * deflated while they are written, so they are never held in memory.
+ */
+class ZipWriter implements Closeable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final CountingOutputStream out;
+	private final long start;
+	private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private final CRC32 crc = new CRC32();
+	private final byte[] deflateBuffer = new byte[BUFFER_SIZE];
+	private int entryCount;
+	private EntryOutputStream current;
+	private boolean finished;
+
+	ZipWriter(OutputStream out) {
+		this(out, 0);
+	}
+
+	/**
+	 * Append to an existing archive
+	 * 
+	 * @param out stream positioned at the end of the archive
+	 * @param start length of the archive
+	 */
+	ZipWriter(OutputStream out, long start) {
+		this.out = new CountingOutputStream(out);
+		this.start = start;
+	}
+
+	/**
+	 * @return position in the archive
+	 */
+	long getPosition() {
+		return start + out.getByteCount();
+	}
+
+	/**
+	 * Copy entry with its compressed data from source without inflating it
+	 */
+	void copyEntry(ZipDirectory source, ZipDirectory.Entry entry) throws IOException {
+		closeEntry();
+		long offset = getPosition();
+		copy(source, entry.getLocalHeaderOffset(), source.getRecordLength(entry), out);
+		addCentralHeader(entry.getHeader(offset));
+	}
+
+	/**
+	 * Add an entry which is already in the archive being appended to, without
+	 * writing its data
+	 */
+	void keepEntry(ZipDirectory.Entry entry) throws IOException {
+		closeEntry();
+		addCentralHeader(entry.getHeader(entry.getLocalHeaderOffset()));
+	}
+
+	/**
+	 * Start a new deflated entry
+	 *
+	 * @param name
+	 * @param time modification time in milliseconds
+	 * @return stream for the entry content, valid until the next entry is
+	 *         started. Closing it closes the entry.
+	 */
+	OutputStream putNextEntry(String name, long time) throws IOException {
+		closeEntry();
+		byte[] nameBytes = name.getBytes(UTF8);
+		int flags = ZipDirectory.FLAG_DATA_DESCRIPTOR | ZipDirectory.FLAG_UTF8;
+		int dosTime = toDosTime(time);
+		ByteBuffer header = buffer(ZipDirectory.LOCAL_HEADER_SIZE + nameBytes.length);
+		header.putInt(ZipDirectory.LOCAL_HEADER_SIG);
+		header.putShort((short) 20);
+		header.putShort((short) flags);
+		header.putShort((short) ZipEntry.DEFLATED);
+		header.putInt(dosTime);
+		header.putInt(0);
+		header.putInt(0);
+		header.putInt(0);
+		header.putShort((short) nameBytes.length);
+		header.putShort((short) 0);
+		header.put(nameBytes);
+		current = new EntryOutputStream(nameBytes, flags, dosTime, getPosition());
+		out.write(header.array());
+		deflater.reset();
+		crc.reset();
+		return current;
+	}
+
+	/**
+	 * Close the current new entry, if any
+	 */
+	void closeEntry() throws IOException {
+		if (current != null) {
+			EntryOutputStream entry = current;
+			current = null;
+			entry.finish();
+		}
+	}
+
+	/**
+	 * Write the central directory. Does not close the underlying stream.
+	 */
+	void finish(byte[] comment) throws IOException {
+		if (finished) {
+			return;
+		}
+		closeEntry();
+		if (entryCount > 0xffff || getPosition() > 0xffffffffL) {
+			throw new ZipException("Archive too large, ZIP64 is not supported");
+		}
+		long cdOffset = getPosition();
+		centralDirectory.writeTo(out);
+		ByteBuffer end = buffer(ZipDirectory.END_SIZE);
+		end.putInt(ZipDirectory.END_SIG);
+		end.putShort((short) 0);
+		end.putShort((short) 0);
+		end.putShort((short) entryCount);
+		end.putShort((short) entryCount);
+		end.putInt(centralDirectory.size());
+		end.putInt((int) cdOffset);
+		end.putShort((short) comment.length);
+		out.write(end.array());
+		out.write(comment);
+		out.flush();
+		finished = true;
+	}
+
+	/**
+	 * Give up the archive, so that {@link #close()} does not write a central
+	 * directory
+	 */
+	void abandon() {
+		current = null;
+		finished = true;
+	}
+
+	void finish() throws IOException {
+		finish(new byte[0]);
+	}
+
+	/**
+	 * Finish the archive and close the underlying stream
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			deflater.end();
+			out.close();
+		}
+	}
+
+	private void addCentralHeader(byte[] header) {
+		centralDirectory.write(header, 0, header.length);
+		entryCount++;
+	}
+
+	static void copy(ZipDirectory source, long offset, long length, OutputStream out) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, length));
+		long position = source.getStart() + offset;
+		long end = position + length;
+		while (position < end) {
+			buf.clear();
+			buf.limit((int) Math.min(buf.capacity(), end - position));
+			int read = source.getChannel().read(buf, position);
+			if (read < 0) {
+				throw new ZipException("Unexpected end of archive");
+			}
+			out.write(buf.array(), 0, read);
+			position += read;
+		}
+	}
+
+	private static ByteBuffer buffer(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static int toDosTime(long time) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		int year = c.get(Calendar.YEAR);
+		if (year < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16 | c.get(Calendar.HOUR_OF_DAY) << 11
+				| c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+	}
+
+	/**
+	 * Deflates entry content into the archive
+	 */
+	private class EntryOutputStream extends OutputStream {
+
+		private final byte[] name;
+		private final int flags;
+		private final int dosTime;
+		private final long localHeaderOffset;
+		private long size;
+		private boolean closed;
+
+		EntryOutputStream(byte[] name, int flags, int dosTime, long localHeaderOffset) {
+			this.name = name;
+			this.flags = flags;
+			this.dosTime = dosTime;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Entry is closed");
+			}
+			crc.update(b, off, len);
+			size += len;
+			deflater.setInput(b, off, len);
+			while (!deflater.needsInput()) {
+				deflate();
+			}
+		}
+
+		private void deflate() throws IOException {
+			int n = deflater.deflate(deflateBuffer, 0, deflateBuffer.length);
+			if (n > 0) {
+				out.write(deflateBuffer, 0, n);
+			}
+		}
+
+		void finish() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			deflater.finish();
+			while (!deflater.finished()) {
+				deflate();
+			}
+			long compressedSize = deflater.getBytesWritten();
+			if (size > 0xffffffffL || compressedSize > 0xffffffffL || localHeaderOffset > 0xffffffffL) {
+				throw new ZipException("Entry too large, ZIP64 is not supported");
+			}
+			ByteBuffer descriptor = buffer(16);
+			descriptor.putInt(ZipDirectory.DATA_DESCRIPTOR_SIG);
+			descriptor.putInt((int) crc.getValue());
+			descriptor.putInt((int) compressedSize);
+			descriptor.putInt((int) size);
+			out.write(descriptor.array());
+
+			ByteBuffer header = buffer(ZipDirectory.CENTRAL_HEADER_SIZE + name.length);
+			header.putInt(ZipDirectory.CENTRAL_HEADER_SIG);
+			header.putShort((short) 20);
+			header.putShort((short) 20);
+			header.putShort((short) flags);
+			header.putShort((short) ZipEntry.DEFLATED);
+			header.putInt(dosTime);
+			header.putInt((int) crc.getValue());
+			header.putInt((int) compressedSize);
+			header.putInt((int) size);
+			header.putShort((short) name.length);
+			header.putShort((short) 0);
+			header.putShort((short) 0);
+			header.putShort((short) 0);
+			header.putShort((short) 0);
+			header.putInt(0);
+			header.putInt((int) localHeaderOffset);
+			header.put(name);
+			addCentralHeader(header.array());
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (current == this) {
+				closeEntry();
+			} else {
+				finish();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,216 @@
+package net.gisnas.oystein.ibm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.websphere.management.AdminClient;
+import com.ibm.websphere.management.application.AppConstants;
+import com.ibm.websphere.management.application.AppManagement;
+import com.ibm.websphere.management.application.AppNotification;
+import com.ibm.websphere.management.exception.ConnectorException;
+
+public class AdminClientPoolTest {
+
+	private static final AdminClientConnectorProperties PROPERTIES = new AdminClientConnectorProperties("dmgr1", 8879);
+
+	private int connections;
+	/** Connections up to this number are dead */
+	private int dead;
+	private int isAliveCalls;
+	private AdminClientPool.Factory factory;
+
+	@Before
+	public void setUp() {
+		factory = new AdminClientPool.Factory() {
+			@Override
+			public AdminClient create(AdminClientConnectorProperties properties) {
+				final int connection = ++connections;
+				return (AdminClient) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { AdminClient.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						switch (method.getName()) {
+						case "isAlive":
+							isAliveCalls++;
+						case "queryNames":
+						case "invoke":
+							if (connection <= dead) {
+								throw new ConnectorException("Connection refused");
+							}
+							return Collections.emptySet();
+						default:
+							throw new UnsupportedOperationException(method.getName());
+						}
+					}
+				});
+			}
+		};
+	}
+
+	@Test
+	public void testReuse() {
+		AdminClientPool pool = new AdminClientPool(60000, 60000, factory);
+		AdminClient adminClient = pool.acquire(PROPERTIES);
+		AdminClient other = pool.acquire(new AdminClientConnectorProperties("dmgr2", 8879));
+		pool.release(adminClient);
+		pool.release(other);
+		assertEquals(2, pool.getIdleCount());
+		assertSame(adminClient, pool.acquire(new AdminClientConnectorProperties("dmgr1", 8879)));
+		assertEquals(2, connections);
+		assertEquals(0, isAliveCalls);
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		AdminClientPool pool = new AdminClientPool(10, 60000, factory);
+		AdminClient adminClient = pool.acquire(PROPERTIES);
+		pool.release(adminClient);
+		Thread.sleep(50);
+		assertEquals(0, pool.getIdleCount());
+		assertNotSame(adminClient, pool.acquire(PROPERTIES));
+		assertEquals(2, connections);
+	}
+
+	@Test
+	public void testHealthCheck() throws Exception {
+		AdminClientPool pool = new AdminClientPool(60000, 10, factory);
+		AdminClient adminClient = pool.acquire(PROPERTIES);
+		pool.release(adminClient);
+		Thread.sleep(50);
+		assertSame(adminClient, pool.acquire(PROPERTIES));
+		assertEquals(1, isAliveCalls);
+		pool.release(adminClient);
+		Thread.sleep(50);
+		dead = 1;
+		assertNotSame(adminClient, pool.acquire(PROPERTIES));
+		assertEquals(2, connections);
+	}
+
+	@Test
+	public void testReconnect() throws Exception {
+		AdminClientPool pool = new AdminClientPool(60000, 60000, factory);
+		AdminClient adminClient = pool.acquire(PROPERTIES);
+		dead = 1;
+		adminClient.queryNames(new ObjectName("WebSphere:type=Server,*"), null);
+		assertEquals(2, connections);
+	}
+
+	@Test
+	public void testNoRetryOfOperations() throws Exception {
+		AdminClientPool pool = new AdminClientPool(60000, 60000, factory);
+		AdminClient adminClient = pool.acquire(PROPERTIES);
+		dead = 1;
+		try {
+			adminClient.invoke(new ObjectName("WebSphere:type=AppManagement,*"), "startApplication", null, null);
+		} catch (ConnectorException e) {
+			// Not retried, may have taken effect
+		}
+		assertEquals(2, connections);
+		adminClient.invoke(new ObjectName("WebSphere:type=AppManagement,*"), "startApplication", null, null);
+	}
+
+	/**
+	 * Notifications for operations started after a reconnect must reach the
+	 * listener, which is registered on the new connection
+	 */
+	@Test
+	public void testReconnectMidSession() throws Exception {
+		final ObjectName appManagement = new ObjectName("WebSphere:type=AppManagement,cell=cell1,name=AppManagement");
+		// Listeners for AppManagement notifications, by connection
+		final Map<Integer, List<NotificationListener>> listeners = new ConcurrentHashMap<>();
+		AdminClientPool.Factory cell = new AdminClientPool.Factory() {
+			@Override
+			public AdminClient create(AdminClientConnectorProperties properties) {
+				final int connection = ++connections;
+				listeners.put(connection, new CopyOnWriteArrayList<NotificationListener>());
+				return (AdminClient) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { AdminClient.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (connection <= dead) {
+							throw new ConnectorException("Connection refused");
+						}
+						switch (method.getName()) {
+						case "queryNames":
+							return ((ObjectName) args[0]).apply(appManagement) ? Collections.singleton(appManagement) : Collections.emptySet();
+						case "addNotificationListener":
+							if (appManagement.equals(args[0])) {
+								listeners.get(connection).add((NotificationListener) args[1]);
+							}
+							return null;
+						case "removeNotificationListener":
+							listeners.get(connection).remove(args[1]);
+							return null;
+						case "isAlive":
+							return null;
+						default:
+							throw new UnsupportedOperationException(method.getName());
+						}
+					}
+				});
+			}
+		};
+		AppManagement appManagementProxy = (AppManagement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { AppManagement.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						switch (method.getName()) {
+						case "checkIfAppExists":
+							return "echoear".equals(args[0]);
+						case "uninstallApplication":
+							Properties props = new Properties();
+							props.setProperty(AppConstants.APPDEPL_APPNAME, (String) args[0]);
+							Notification notification = new Notification(AppConstants.NotificationType, appManagement, 1);
+							notification.setUserData(new AppNotification(AppNotification.UNINSTALL, null, AppNotification.STATUS_COMPLETED, "Uninstalled", props));
+							for (NotificationListener listener : listeners.get(connections)) {
+								listener.handleNotification(notification, null);
+							}
+							return null;
+						default:
+							throw new UnsupportedOperationException(method.getName());
+						}
+					}
+				});
+		AdminClientPool pool = new AdminClientPool(60000, 60000, cell);
+		AdminClient adminClient = pool.acquire(PROPERTIES);
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			AppManagementClient client = new AppManagementClient(adminClient, new CellTopology(adminClient, CellTopology.DEFAULT_TTL), appManagementProxy);
+			AppManager appManager = new AppManager(adminClient, scheduler, scheduler, client);
+			dead = 1;
+			assertFalse(appManager.isStarted("echoear"));
+			assertEquals(2, connections);
+			assertEquals(1, listeners.get(2).size());
+			appManager.undeployAsync("echoear").get(5, TimeUnit.SECONDS);
+			appManager.close();
+		} finally {
+			scheduler.shutdown();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testReleaseUnknown() {
+		new AdminClientPool(60000, 60000, factory).release(factory.create(PROPERTIES));
+	}
+
+}
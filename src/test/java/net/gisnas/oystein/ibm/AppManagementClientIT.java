@@ -3,6 +3,12 @@ package net.gisnas.oystein.ibm;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -47,6 +53,13 @@ public class AppManagementClientIT {
 		amClient.installApplication(EAR_FILE, false, APP_NAME);
 	}
 	
+	@Test
+	public void resubscribe() {
+		amClient.resubscribe();
+		amClient.installApplication(EAR_FILE, true, APP_NAME);
+		assertTrue(amClient.isAppReady(APP_NAME));
+	}
+
 	@Test(expected=RuntimeException.class)
 	public void installNonExistent() {
 		amClient.installApplication("/non/existent/app", false, null);
@@ -69,4 +82,25 @@ public class AppManagementClientIT {
 		assertTrue(isReady);
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void isAppReadyConcurrently() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(5);
+		try {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int i = 0; i < 5; i++) {
+				results.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						return amClient.isAppReady(APP_NAME);
+					}
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+package net.gisnas.oystein.ibm;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Properties;
+
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.websphere.management.AdminClient;
+import com.ibm.websphere.management.application.AppConstants;
+import com.ibm.websphere.management.application.AppManagement;
+import com.ibm.websphere.management.application.AppNotification;
+
+public class AppManagementClientTest {
+
+	private NotificationListener listener;
+	private AppManagementClient client;
+
+	@Before
+	public void setUp() throws Exception {
+		final ObjectName appManagement = new ObjectName("WebSphere:type=AppManagement,cell=cell1,name=AppManagement");
+		AdminClient adminClient = (AdminClient) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { AdminClient.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				switch (method.getName()) {
+				case "queryNames":
+					return ((ObjectName) args[0]).apply(appManagement) ? Collections.singleton(appManagement) : Collections.emptySet();
+				case "addNotificationListener":
+					listener = (NotificationListener) args[1];
+					return null;
+				default:
+					throw new UnsupportedOperationException(method.getName());
+				}
+			}
+		});
+		AppManagement proxy = (AppManagement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { AppManagement.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("uninstallApplication")) {
+					return null;
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+		client = new AppManagementClient(adminClient, new CellTopology(adminClient, CellTopology.DEFAULT_TTL), proxy);
+	}
+
+	private void notify(String status, String appName) {
+		Properties props = new Properties();
+		if (appName != null) {
+			props.setProperty(AppConstants.APPDEPL_APPNAME, appName);
+		}
+		AppNotification appNotification = new AppNotification(AppNotification.UNINSTALL, null, status, "", props);
+		Notification notification = new Notification(AppConstants.NotificationType, "AppManagement", 1);
+		notification.setUserData(appNotification);
+		listener.handleNotification(notification, null);
+	}
+
+	@Test
+	public void testRouteByAppName() {
+		SettableFuture<Void> app1 = client.uninstallApplicationAsync("app1");
+		SettableFuture<Void> app2 = client.uninstallApplicationAsync("app2");
+		notify(AppNotification.STATUS_COMPLETED, "app2");
+		assertFalse(app1.isDone());
+		assertTrue(app2.isDone());
+	}
+
+	@Test
+	public void testUnnamedNotificationWithSeveralOperations() {
+		SettableFuture<Void> app1 = client.uninstallApplicationAsync("app1");
+		SettableFuture<Void> app2 = client.uninstallApplicationAsync("app2");
+		notify(AppNotification.STATUS_FAILED, null);
+		assertFalse(app1.isDone());
+		assertFalse(app2.isDone());
+		notify(AppNotification.STATUS_COMPLETED, "app1");
+		notify(AppNotification.STATUS_COMPLETED, null);
+		assertTrue(app1.isDone());
+		assertTrue(app2.isDone());
+	}
+
+}
@@ -1,9 +1,12 @@
 package net.gisnas.oystein.ibm;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -38,6 +41,54 @@ public class AppManagerIT {
 		assertTrue(am.isStarted(APP_NAME));
 	}
 
+	@Test
+	public void deployUnchanged() throws IOException {
+		File ledgerFile = File.createTempFile("AppManagerIT", ".properties");
+		try {
+			am.setLedger(new DeploymentLedger(ledgerFile));
+			am.deploy(EAR_FILE, null, null, true);
+			long before = System.currentTimeMillis();
+			am.deploy(EAR_FILE);
+			assertTrue(am.isStarted(APP_NAME));
+			assertTrue(System.currentTimeMillis() - before < 5000);
+		} finally {
+			am.setLedger(null);
+			ledgerFile.delete();
+		}
+	}
+
+	@Test
+	public void getStatus() {
+		am.deploy(EAR_FILE);
+		assertEquals(AppStatus.STARTED, am.getStatus().get(APP_NAME));
+		assertEquals(AppStatus.NOT_INSTALLED, am.getStatus(Arrays.asList("non_existent_app")).get("non_existent_app"));
+	}
+
+	@Test
+	public void deployAsync() throws Exception {
+		am.deployAsync(EAR_FILE, null, null).get();
+		assertTrue(am.isStarted(APP_NAME));
+	}
+
+	@Test
+	public void deployPipelined() throws Exception {
+		am.undeploy(APP_NAME);
+		am.setPipelinedStart(true);
+		am.deployAsync(EAR_FILE, null, null).get();
+		assertTrue(am.isStarted(APP_NAME));
+	}
+
+	@Test
+	public void deployMetrics() {
+		DeployMetrics metrics = new DeployMetrics();
+		am.addListener(metrics);
+		am.undeploy(APP_NAME);
+		am.deploy(EAR_FILE);
+		assertEquals(1, metrics.getCount("INSTALL"));
+		assertEquals(1, metrics.getCount("START"));
+		assertEquals(0, metrics.getFailures("INSTALL"));
+	}
+
 	@Test(expected=RuntimeException.class)
 	public void startNonExistent() {
 		am.startApp("non_existent_app");
@@ -58,6 +109,21 @@ public class AppManagerIT {
 		assertTrue(am.isStarted(APP_NAME));
 	}
 
+	@Test
+	public void startAppRolling() {
+		am.deploy(EAR_FILE);
+		am.stopApp(APP_NAME);
+		am.startAppRolling(APP_NAME, 1);
+		assertTrue(am.isStarted(APP_NAME));
+	}
+
+	@Test
+	public void restartAppRolling() {
+		am.deploy(EAR_FILE);
+		am.restartAppRolling(APP_NAME, 1);
+		assertTrue(am.isStarted(APP_NAME));
+	}
+
 	@Test
 	public void stopNonExistent() {
 		am.stopApp("non_existent_app");
@@ -0,0 +1,105 @@
+package net.gisnas.oystein.ibm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.websphere.management.AdminClient;
+
+public class AppStateRegistryTest {
+
+	private static final String SERVER1 = "WebSphere:cell=cell1,node=node1,server=server1";
+	private static final String SERVER2 = "WebSphere:cell=cell1,node=node2,server=server2";
+
+	private Set<ObjectName> applications;
+	private NotificationListener listener;
+	private Notification duringQuery;
+	private int queries;
+	private AdminClient adminClient;
+
+	@Before
+	public void setUp() throws Exception {
+		applications = new HashSet<>();
+		applications.add(application("echoear", "node1", "server1"));
+		applications.add(application("echoear", "node2", "server2"));
+		applications.add(application("other", "node1", "server1"));
+		adminClient = (AdminClient) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { AdminClient.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				switch (method.getName()) {
+				case "queryNames":
+					queries++;
+					if (duringQuery != null) {
+						listener.handleNotification(duringQuery, null);
+					}
+					return new HashSet<>(applications);
+				case "addNotificationListenerExtended":
+					listener = (NotificationListener) args[1];
+					return null;
+				default:
+					throw new UnsupportedOperationException(method.getName());
+				}
+			}
+		});
+	}
+
+	private static ObjectName application(String name, String node, String process) throws Exception {
+		return new ObjectName("WebSphere:type=Application,cell=cell1,name=" + name + ",node=" + node + ",process=" + process);
+	}
+
+	@Test
+	public void testSeed() {
+		AppStateRegistry registry = new AppStateRegistry(adminClient);
+		assertEquals(2, registry.getRunningServers("echoear").size());
+		assertTrue(registry.getRunningServers("echoear").contains(SERVER2));
+		assertEquals(1, registry.getRunningServers("other").size());
+		assertTrue(registry.getRunningServers("missing").isEmpty());
+		assertEquals(1, queries);
+	}
+
+	@Test
+	public void testStateNotifications() throws Exception {
+		AppStateRegistry registry = new AppStateRegistry(adminClient);
+		listener.handleNotification(new Notification("j2ee.state.stopped", application("echoear", "node2", "server2"), 1), null);
+		assertEquals(1, registry.getRunningServers("echoear").size());
+		assertTrue(registry.getRunningServers("echoear").contains(SERVER1));
+		listener.handleNotification(new Notification("j2ee.state.running", application("echoear", "node2", "server2"), 2), null);
+		listener.handleNotification(new Notification("j2ee.state.running", application("new", "node2", "server2"), 3), null);
+		assertEquals(2, registry.getRunningServers("echoear").size());
+		assertTrue(registry.getRunningServers("new").contains(SERVER2));
+		assertEquals(1, queries);
+	}
+
+	@Test
+	public void testProcessFailed() throws Exception {
+		AppStateRegistry registry = new AppStateRegistry(adminClient);
+		applications.remove(application("echoear", "node2", "server2"));
+		assertEquals(2, registry.getRunningServers("echoear").size());
+		listener.handleNotification(new Notification("websphere.process.failed", new ObjectName("WebSphere:type=NodeAgent,cell=cell1,node=node2,process=nodeagent"), 1), null);
+		assertEquals(1, registry.getRunningServers("echoear").size());
+		assertTrue(registry.getRunningServers("echoear").contains(SERVER1));
+		assertEquals(1, registry.getRunningServers("other").size());
+		assertEquals(2, queries);
+	}
+
+	@Test
+	public void testNotificationDuringSeed() throws Exception {
+		duringQuery = new Notification("j2ee.state.stopped", application("other", "node1", "server1"), 1);
+		AppStateRegistry registry = new AppStateRegistry(adminClient);
+		assertTrue(registry.getRunningServers("other").isEmpty());
+		assertEquals(2, registry.getRunningServers("echoear").size());
+	}
+
+}
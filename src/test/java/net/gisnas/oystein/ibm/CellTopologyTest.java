@@ -0,0 +1,112 @@
+package net.gisnas.oystein.ibm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.management.MBeanServerNotification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.websphere.management.AdminClient;
+
+public class CellTopologyTest {
+
+	private int queries;
+	private NotificationListener listener;
+	private AdminClient adminClient;
+
+	@Before
+	public void setUp() {
+		adminClient = (AdminClient) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { AdminClient.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				switch (method.getName()) {
+				case "queryNames":
+					queries++;
+					return query((ObjectName) args[0]);
+				case "addNotificationListener":
+					listener = (NotificationListener) args[1];
+					return null;
+				default:
+					throw new UnsupportedOperationException(method.getName());
+				}
+			}
+		});
+	}
+
+	private static Set<ObjectName> query(ObjectName query) throws Exception {
+		switch (query.getKeyProperty("type")) {
+		case "AppManagement":
+			return Collections.singleton(new ObjectName("WebSphere:type=AppManagement,cell=cell1,process=dmgr"));
+		case "Cluster":
+			Set<ObjectName> clusters = new HashSet<>();
+			clusters.add(new ObjectName("WebSphere:type=Cluster,cell=cell1,name=cluster1"));
+			clusters.add(new ObjectName("WebSphere:type=Cluster,cell=cell1,name=cluster2"));
+			return clusters;
+		default:
+			return Collections.emptySet();
+		}
+	}
+
+	@Test
+	public void testCached() {
+		CellTopology topology = new CellTopology(adminClient, CellTopology.DEFAULT_TTL);
+		for (int i = 0; i < 3; i++) {
+			assertEquals("dmgr", topology.getAppManagement().getKeyProperty("process"));
+			assertEquals(2, topology.getClusters().size());
+			assertEquals("cluster2", topology.lookupCluster("cluster2").getKeyProperty("name"));
+		}
+		assertEquals(2, queries);
+	}
+
+	@Test
+	public void testTimeToLive() throws InterruptedException {
+		CellTopology topology = new CellTopology(adminClient, 10);
+		topology.getClusters();
+		Thread.sleep(20);
+		topology.getClusters();
+		assertEquals(2, queries);
+	}
+
+	@Test
+	public void testRefresh() {
+		CellTopology topology = new CellTopology(adminClient, CellTopology.DEFAULT_TTL);
+		topology.getClusters();
+		topology.refresh();
+		topology.getClusters();
+		assertEquals(2, queries);
+	}
+
+	@Test
+	public void testRegistrationNotification() throws Exception {
+		CellTopology topology = new CellTopology(adminClient, CellTopology.DEFAULT_TTL);
+		topology.getClusters();
+		ObjectName delegate = new ObjectName("JMImplementation:type=MBeanServerDelegate");
+		listener.handleNotification(new MBeanServerNotification(MBeanServerNotification.REGISTRATION_NOTIFICATION, delegate, 1, new ObjectName("WebSphere:type=Servlet,name=x")), null);
+		topology.getClusters();
+		assertEquals(1, queries);
+		listener.handleNotification(new MBeanServerNotification(MBeanServerNotification.UNREGISTRATION_NOTIFICATION, delegate, 2, new ObjectName("WebSphere:type=Server,name=server1")), null);
+		topology.getClusters();
+		assertEquals(2, queries);
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testUnknownCluster() {
+		CellTopology topology = new CellTopology(adminClient, CellTopology.DEFAULT_TTL);
+		try {
+			topology.lookupCluster("cluster3");
+		} finally {
+			assertEquals(2, queries);
+		}
+	}
+
+}
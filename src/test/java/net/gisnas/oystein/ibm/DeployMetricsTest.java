@@ -0,0 +1,68 @@
+package net.gisnas.oystein.ibm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class DeployMetricsTest {
+
+	@Test
+	public void testPhases() {
+		DeployMetrics metrics = new DeployMetrics();
+		for (int i = 1; i <= 100; i++) {
+			metrics.phaseCompleted("cell1", "echoear", DeployPhase.INSTALL, i, null);
+		}
+		metrics.phaseCompleted("cell1", "other", DeployPhase.INSTALL, 1000, new RuntimeException("Installation failed"));
+		metrics.distributionChecked("cell1", "echoear", 3);
+		assertEquals(101, metrics.getCount("INSTALL"));
+		assertEquals(1, metrics.getFailures("INSTALL"));
+		assertEquals(51, metrics.getPercentile("INSTALL", 50));
+		assertEquals(1000, metrics.getPercentile("INSTALL", 100));
+		assertEquals(-1, metrics.getPercentile("START", 50));
+		assertEquals(100, metrics.getApplicationCount("cell1/echoear", "INSTALL"));
+		assertEquals(0, metrics.getApplicationFailures("cell1/echoear", "INSTALL"));
+		assertEquals(99, metrics.getApplicationPercentile("cell1/echoear", "INSTALL", 99));
+		assertEquals(0, metrics.getApplicationCount("cell1/unknown", "INSTALL"));
+		assertEquals(2, metrics.getApplications().length);
+		assertEquals(3, metrics.getDistributionChecks());
+		metrics.reset();
+		assertEquals(0, metrics.getCount("INSTALL"));
+		assertEquals(0, metrics.getApplications().length);
+	}
+
+	@Test
+	public void testRecentSamples() {
+		DeployMetrics metrics = new DeployMetrics();
+		for (int i = 0; i < DeployMetrics.SAMPLES; i++) {
+			metrics.phaseCompleted("cell1", "echoear", DeployPhase.TOTAL, 1000, null);
+		}
+		for (int i = 0; i < DeployMetrics.SAMPLES; i++) {
+			metrics.phaseCompleted("cell1", "echoear", DeployPhase.TOTAL, 10, null);
+		}
+		assertEquals(10, metrics.getPercentile("TOTAL", 100));
+	}
+
+	@Test
+	public void testRegister() throws Exception {
+		DeployMetrics metrics = new DeployMetrics();
+		metrics.phaseCompleted("cell1", "echoear", DeployPhase.START, 20, null);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = metrics.register("test");
+		try {
+			assertTrue(server.isRegistered(name));
+			Object count = server.invoke(name, "getCount", new Object[] { "START" }, new String[] { "java.lang.String" });
+			assertEquals(1L, count);
+		} finally {
+			metrics.unregister();
+		}
+		assertFalse(server.isRegistered(name));
+	}
+
+}
@@ -0,0 +1,62 @@
+package net.gisnas.oystein.ibm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeploymentLedgerTest {
+
+	private File ledgerDir;
+
+	@Before
+	public void setUp() throws IOException {
+		ledgerDir = File.createTempFile("DeploymentLedgerTest", null);
+		ledgerDir.delete();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteQuietly(ledgerDir);
+	}
+
+	@Test
+	public void testRecord() {
+		File file = new File(ledgerDir, "ledger.properties");
+		DeploymentLedger ledger = new DeploymentLedger(file);
+		assertNull(ledger.getDigest("cell1", "echoear"));
+		ledger.record("cell1", "echoear", "abc");
+		ledger.record("cell2", "echoear", "def");
+		ledger.record("cell1", "echoear", "ghi");
+		DeploymentLedger reopened = new DeploymentLedger(file);
+		assertEquals("ghi", reopened.getDigest("cell1", "echoear"));
+		assertEquals("def", reopened.getDigest("cell2", "echoear"));
+		reopened.remove("cell1", "echoear");
+		assertNull(ledger.getDigest("cell1", "echoear"));
+		assertEquals("def", ledger.getDigest("cell2", "echoear"));
+	}
+
+	@Test
+	public void testModuleDigests() {
+		DeploymentLedger ledger = new DeploymentLedger(new File(ledgerDir, "ledger.properties"));
+		Map<String, String> moduleDigests = new HashMap<>();
+		moduleDigests.put("web.war", "abc");
+		moduleDigests.put(EarModules.OTHER, "def");
+		ledger.record("cell1", "echoear", "ghi", moduleDigests);
+		ledger.record("cell1", "other", "jkl");
+		assertEquals(moduleDigests, ledger.getModuleDigests("cell1", "echoear"));
+		assertTrue(ledger.getModuleDigests("cell1", "other").isEmpty());
+		ledger.record("cell1", "echoear", "mno");
+		assertTrue(ledger.getModuleDigests("cell1", "echoear").isEmpty());
+	}
+
+}
@@ -0,0 +1,185 @@
+package net.gisnas.oystein.ibm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeploymentPlanTest {
+
+	private ScheduledExecutorService scheduler;
+	private FakeDeployer deployer;
+
+	@Before
+	public void setUp() {
+		scheduler = Executors.newScheduledThreadPool(4);
+		deployer = new FakeDeployer();
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.shutdownNow();
+	}
+
+	@Test
+	public void testSort() {
+		DeploymentPlan plan = new DeploymentPlan();
+		plan.add("Web", new File("Web.ear"), null, "Module");
+		plan.add("Module", new File("Module.ear"), null, "Lib");
+		plan.add("Lib", new File("Lib.ear"), null);
+		plan.add("Other", new File("Other.ear"), null);
+		assertEquals("[Lib, Module [Lib], Web [Module], Other]", plan.sort().toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCycle() {
+		DeploymentPlan plan = new DeploymentPlan();
+		plan.add("A", new File("A.ear"), null, "B");
+		plan.add("B", new File("B.ear"), null, "A");
+		plan.sort();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownDependency() {
+		DeploymentPlan plan = new DeploymentPlan();
+		plan.add("A", new File("A.ear"), null, "B");
+		plan.sort();
+	}
+
+	@Test
+	public void testParallelism() {
+		DeploymentPlan plan = new DeploymentPlan();
+		for (int i = 0; i < 8; i++) {
+			plan.add("App" + i, new File("App" + i + ".ear"), null);
+		}
+		DeploymentReport report = plan.execute(deployer, 3);
+		assertTrue(report.isSuccessful());
+		assertEquals(3, deployer.maxInstalling.get());
+		assertEquals(8, deployer.started.size());
+	}
+
+	@Test
+	public void testStartAfterDependencies() {
+		DeploymentPlan plan = new DeploymentPlan();
+		plan.add("Web", new File("Web.ear"), null, "Module");
+		plan.add("Module", new File("Module.ear"), null, "Lib");
+		plan.add("Lib", new File("Lib.ear"), null);
+		plan.add("Other", new File("Other.ear"), null);
+		DeploymentReport report = plan.execute(deployer, 4);
+		assertTrue(report.isSuccessful());
+		List<String> order = deployer.started;
+		assertTrue(order.indexOf("Lib") < order.indexOf("Module"));
+		assertTrue(order.indexOf("Module") < order.indexOf("Web"));
+		for (DeploymentReport.Result result : report.getResults()) {
+			for (String dependency : result.getApp().getDependencies()) {
+				assertTrue(result.getStartBegin() >= find(report, dependency).getRunning());
+			}
+		}
+	}
+
+	@Test
+	public void testFailureSkipsDependants() {
+		DeploymentPlan plan = new DeploymentPlan();
+		plan.add("Lib", new File("Lib.ear"), null);
+		plan.add("Module", new File("Module.ear"), null, "Lib");
+		plan.add("Web", new File("Web.ear"), null, "Module");
+		plan.add("Other", new File("Other.ear"), null);
+		deployer.failing.add("Lib");
+		DeploymentReport report = plan.execute(deployer, 1);
+		assertFalse(report.isSuccessful());
+		assertEquals(3, report.getFailures().size());
+		assertNull(find(report, "Other").getFailure());
+		assertEquals(-1, find(report, "Web").getInstallBegin());
+		assertEquals("[Other]", deployer.started.toString());
+	}
+
+	@Test
+	public void testCriticalPath() {
+		DeploymentPlan plan = new DeploymentPlan();
+		plan.add("Lib", new File("Lib.ear"), null);
+		plan.add("Module", new File("Module.ear"), null, "Lib");
+		plan.add("Web", new File("Web.ear"), null, "Module");
+		plan.add("Slow", new File("Slow.ear"), null);
+		plan.add("Other", new File("Other.ear"), null, "Slow");
+		deployer.installMillis = 10;
+		deployer.slow.add("Slow");
+		DeploymentReport report = plan.execute(deployer, 5);
+		assertTrue(report.isSuccessful());
+		List<String> path = new ArrayList<>();
+		for (DeploymentReport.Result result : report.getCriticalPath()) {
+			path.add(result.getAppName());
+		}
+		assertEquals("[Slow, Other]", path.toString());
+	}
+
+	private static DeploymentReport.Result find(DeploymentReport report, String appName) {
+		for (DeploymentReport.Result result : report.getResults()) {
+			if (result.getAppName().equals(appName)) {
+				return result;
+			}
+		}
+		throw new AssertionError("No result for " + appName);
+	}
+
+	/**
+	 * Completes installs after installMillis, or ten times that for slow
+	 * applications, and starts immediately
+	 */
+	private class FakeDeployer implements DeploymentPlan.Deployer {
+
+		private final AtomicInteger installing = new AtomicInteger();
+		private final AtomicInteger maxInstalling = new AtomicInteger();
+		private final List<String> started = new ArrayList<>();
+		private final Set<String> failing = new HashSet<>();
+		private final Set<String> slow = new HashSet<>();
+		private long installMillis = 5;
+
+		@Override
+		public SettableFuture<Void> install(final DeploymentPlan.App app) {
+			final SettableFuture<Void> result = new SettableFuture<>();
+			int now = installing.incrementAndGet();
+			if (now > maxInstalling.get()) {
+				maxInstalling.set(now);
+			}
+			long delay = slow.contains(app.getAppName()) ? installMillis * 10 : installMillis;
+			scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					installing.decrementAndGet();
+					if (failing.contains(app.getAppName())) {
+						result.setException(new RuntimeException("Install failed"));
+					} else {
+						result.set(null);
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+			return result;
+		}
+
+		@Override
+		public SettableFuture<Void> start(DeploymentPlan.App app) {
+			synchronized (started) {
+				started.add(app.getAppName());
+			}
+			SettableFuture<Void> result = new SettableFuture<>();
+			result.set(null);
+			return result;
+		}
+
+	}
+
+}
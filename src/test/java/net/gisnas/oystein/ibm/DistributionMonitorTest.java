@@ -0,0 +1,192 @@
+package net.gisnas.oystein.ibm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.websphere.management.AdminClient;
+import com.ibm.websphere.management.NotificationConstants;
+import com.ibm.websphere.management.application.AppManagement;
+
+public class DistributionMonitorTest {
+
+	private static final String APP_NAME = "echoear";
+
+	/** Status checks in progress, completed by the test */
+	private List<SettableFuture<Boolean>> checks;
+	/** Polls scheduled and not yet run */
+	private List<Runnable> polls;
+	private List<Long> pollDelays;
+	private int cancelledPolls;
+	private NotificationListener nodeSyncListener;
+	private Set<ObjectName> nodeSyncs;
+	/** NodeSync MBeans listened to */
+	private Set<ObjectName> subscribed;
+	private DistributionMonitor monitor;
+
+	@Before
+	public void setUp() throws Exception {
+		checks = new ArrayList<>();
+		polls = new ArrayList<>();
+		pollDelays = new ArrayList<>();
+		final ObjectName appManagement = new ObjectName("WebSphere:type=AppManagement,cell=cell1,name=AppManagement");
+		nodeSyncs = new HashSet<>();
+		nodeSyncs.add(nodeSync("node1"));
+		subscribed = new HashSet<>();
+		AdminClient adminClient = (AdminClient) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { AdminClient.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				switch (method.getName()) {
+				case "queryNames":
+					ObjectName query = (ObjectName) args[0];
+					if (query.apply(appManagement)) {
+						return Collections.singleton(appManagement);
+					}
+					return "NodeSync".equals(query.getKeyProperty("type")) ? new HashSet<>(nodeSyncs) : Collections.emptySet();
+				case "addNotificationListener":
+					if (nodeSyncs.contains(args[0])) {
+						nodeSyncListener = (NotificationListener) args[1];
+						subscribed.add((ObjectName) args[0]);
+					}
+					return null;
+				case "removeNotificationListener":
+					subscribed.remove(args[0]);
+					return null;
+				default:
+					throw new UnsupportedOperationException(method.getName());
+				}
+			}
+		});
+		AppManagementClient am = new AppManagementClient(adminClient, new CellTopology(adminClient, CellTopology.DEFAULT_TTL), (AppManagement) unsupported(AppManagement.class)) {
+			@Override
+			public SettableFuture<Boolean> isAppReadyAsync(String appName) {
+				SettableFuture<Boolean> check = new SettableFuture<>();
+				checks.add(check);
+				return check;
+			}
+		};
+		monitor = new DistributionMonitor(am, adminClient, scheduler());
+	}
+
+	/**
+	 * Runs tasks at once, and keeps scheduled tasks for the test to run
+	 */
+	private ScheduledExecutorService scheduler() {
+		return (ScheduledExecutorService) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ScheduledExecutorService.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				switch (method.getName()) {
+				case "execute":
+					((Runnable) args[0]).run();
+					return null;
+				case "schedule":
+					final Runnable poll = (Runnable) args[0];
+					polls.add(poll);
+					pollDelays.add(((TimeUnit) args[2]).toMillis((Long) args[1]));
+					return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ScheduledFuture.class }, new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+							if (method.getName().equals("cancel")) {
+								cancelledPolls++;
+								return polls.remove(poll);
+							}
+							throw new UnsupportedOperationException(method.getName());
+						}
+					});
+				default:
+					throw new UnsupportedOperationException(method.getName());
+				}
+			}
+		});
+	}
+
+	private static ObjectName nodeSync(String node) throws Exception {
+		return new ObjectName("WebSphere:type=NodeSync,cell=cell1,node=" + node + ",name=nodeSync");
+	}
+
+	private static Object unsupported(Class<?> type) {
+		return Proxy.newProxyInstance(DistributionMonitorTest.class.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private void nodeSyncCompleted() {
+		nodeSyncListener.handleNotification(new Notification(NotificationConstants.TYPE_NODESYNC_COMPLETE, "nodeSync", 1), null);
+	}
+
+	@Test
+	public void testRecheckAfterNotificationDuringCheck() throws Exception {
+		SettableFuture<Integer> distributed = monitor.awaitDistribution(APP_NAME);
+		assertEquals(1, checks.size());
+		nodeSyncCompleted();
+		nodeSyncCompleted();
+		assertEquals(1, checks.size());
+		checks.get(0).set(false);
+		assertEquals(2, checks.size());
+		assertTrue(polls.isEmpty());
+		checks.get(1).set(true);
+		assertEquals(Integer.valueOf(2), distributed.get(0, TimeUnit.MILLISECONDS));
+		assertTrue(polls.isEmpty());
+	}
+
+	@Test
+	public void testPollBackoff() throws Exception {
+		SettableFuture<Integer> distributed = monitor.awaitDistribution(APP_NAME);
+		for (int i = 0; i < 7; i++) {
+			checks.get(i).set(false);
+			polls.remove(0).run();
+		}
+		assertEquals(Arrays.asList(250L, 500L, 1000L, 2000L, 4000L, 8000L, 8000L), pollDelays);
+		checks.get(7).set(true);
+		assertEquals(Integer.valueOf(8), distributed.get(0, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testCancel() {
+		SettableFuture<Integer> distributed = monitor.awaitDistribution(APP_NAME);
+		checks.get(0).set(false);
+		assertEquals(1, polls.size());
+		distributed.cancel(false);
+		assertEquals(1, cancelledPolls);
+		assertTrue(polls.isEmpty());
+		nodeSyncCompleted();
+		assertEquals(1, checks.size());
+	}
+
+	@Test
+	public void testSubscribeWhileWaiting() throws Exception {
+		SettableFuture<Integer> first = monitor.awaitDistribution(APP_NAME);
+		assertEquals(Collections.singleton(nodeSync("node1")), subscribed);
+		nodeSyncs.add(nodeSync("node2"));
+		SettableFuture<Integer> second = monitor.awaitDistribution("other");
+		assertEquals(nodeSyncs, subscribed);
+		checks.get(0).set(true);
+		assertEquals(2, subscribed.size());
+		checks.get(1).set(true);
+		assertTrue(first.isDone() && second.isDone());
+		assertTrue(subscribed.isEmpty());
+	}
+
+}
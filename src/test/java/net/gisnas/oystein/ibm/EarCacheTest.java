@@ -0,0 +1,152 @@
+package net.gisnas.oystein.ibm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EarCacheTest {
+
+	private static final File earFile = new File("src/test/resources/HelloBPEL.ear");
+
+	private File cacheDir;
+
+	@Before
+	public void setUp() throws IOException {
+		cacheDir = File.createTempFile("EarCacheTest", null);
+		cacheDir.delete();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteQuietly(cacheDir);
+	}
+
+	@Test
+	public void testHit() throws IOException {
+		EarCache cache = new EarCache(cacheDir, Long.MAX_VALUE);
+		File first = File.createTempFile("EarCacheTest", null);
+		File second = File.createTempFile("EarCacheTest", null);
+		try {
+			ScaUtil.modifyWsImports(endpoints("http://www.example.org"), earFile, first, cache);
+			String key = cache.key(earFile, endpoints("http://www.example.org"));
+			assertTrue(cache.get(key, second));
+			assertEquals(FileUtils.checksumCRC32(first), FileUtils.checksumCRC32(second));
+			assertFalse(cache.get(cache.key(earFile, endpoints("http://other.example.org")), second));
+		} finally {
+			first.delete();
+			second.delete();
+		}
+	}
+
+	@Test
+	public void testModifyHitInPlace() throws IOException {
+		EarCache cache = new EarCache(cacheDir, Long.MAX_VALUE);
+		File first = File.createTempFile("EarCacheTest", null);
+		File second = File.createTempFile("EarCacheTest", null);
+		try {
+			ScaUtil.modifyWsImports(endpoints("http://www.example.org"), earFile, first, cache);
+			String key = cache.key(earFile, endpoints("http://www.example.org"));
+			assertTrue(cache.get(key, second));
+			ScaUtil.modifyWsImportsInPlace(endpoints("http://other.example.org"), second);
+			assertNotEquals(FileUtils.checksumCRC32(first), FileUtils.checksumCRC32(second));
+			assertEquals(FileUtils.checksumCRC32(first), FileUtils.checksumCRC32(new File(cacheDir, key + ".ear")));
+		} finally {
+			first.delete();
+			second.delete();
+		}
+	}
+
+	@Test
+	public void testOverwriteHit() throws IOException {
+		EarCache cache = new EarCache(cacheDir, Long.MAX_VALUE);
+		File first = File.createTempFile("EarCacheTest", null);
+		File second = File.createTempFile("EarCacheTest", null);
+		try {
+			ScaUtil.modifyWsImports(endpoints("http://www.example.org"), earFile, first, cache);
+			String key = cache.key(earFile, endpoints("http://www.example.org"));
+			File entry = new File(cacheDir, key + ".ear");
+			long added = System.currentTimeMillis() - 60000;
+			entry.setLastModified(added);
+			assertTrue(cache.get(key, second));
+			assertEquals(added, entry.lastModified());
+			ScaUtil.modifyWsImports(endpoints("http://other.example.org"), earFile, second);
+			assertNotEquals(FileUtils.checksumCRC32(first), FileUtils.checksumCRC32(second));
+			assertEquals(FileUtils.checksumCRC32(first), FileUtils.checksumCRC32(entry));
+		} finally {
+			first.delete();
+			second.delete();
+		}
+	}
+
+	@Test
+	public void testEvict() throws IOException {
+		EarCache cache = new EarCache(cacheDir, earFile.length() + 1);
+		File targetFile = File.createTempFile("EarCacheTest", null);
+		try {
+			String oldKey = cache.key(earFile, endpoints("http://old.example.org"));
+			cache.put(oldKey, earFile);
+			new File(cacheDir, oldKey + ".ear").setLastModified(System.currentTimeMillis() - 60000);
+			String newKey = cache.key(earFile, endpoints("http://new.example.org"));
+			cache.put(newKey, earFile);
+
+			assertFalse(cache.get(oldKey, targetFile));
+			assertTrue(cache.get(newKey, targetFile));
+		} finally {
+			targetFile.delete();
+		}
+	}
+
+	@Test
+	public void testReplacedEar() throws IOException {
+		EarCache cache = new EarCache(cacheDir, Long.MAX_VALUE);
+		File ear = File.createTempFile("EarCacheTest", ".ear");
+		File replacement = File.createTempFile("EarCacheTest", ".ear");
+		try {
+			FileUtils.copyFile(earFile, ear);
+			String key = cache.key(ear, endpoints("http://www.example.org"));
+			byte[] content = FileUtils.readFileToByteArray(earFile);
+			content[content.length - 1] ^= 1;
+			FileUtils.writeByteArrayToFile(replacement, content);
+			replacement.setLastModified(ear.lastModified());
+			Files.move(replacement.toPath(), ear.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			assertNotEquals(key, cache.key(ear, endpoints("http://www.example.org")));
+		} finally {
+			ear.delete();
+			replacement.delete();
+		}
+	}
+
+	@Test
+	public void testEndpointsDigest() {
+		ImportEndpoint a = new ImportEndpoint();
+		a.importName = "A";
+		a.endpointUrl = "http://a";
+		ImportEndpoint b = new ImportEndpoint();
+		b.importName = "B";
+		b.endpointUrl = "http://b";
+		assertEquals(EarCache.endpointsDigest(new ImportEndpoint[] { a, b }), EarCache.endpointsDigest(new ImportEndpoint[] { b, a }));
+		ImportEndpoint ab = new ImportEndpoint();
+		ab.importName = "A";
+		ab.endpointUrl = "Bhttp://b";
+		assertNotEquals(EarCache.endpointsDigest(new ImportEndpoint[] { a, b }), EarCache.endpointsDigest(new ImportEndpoint[] { ab }));
+	}
+
+	private static ImportEndpoint[] endpoints(String endpointUrl) {
+		ImportEndpoint importEndpoint = new ImportEndpoint();
+		importEndpoint.importName = "WSImport1";
+		importEndpoint.endpointUrl = endpointUrl;
+		return new ImportEndpoint[] { importEndpoint };
+	}
+
+}
@@ -0,0 +1,59 @@
+package net.gisnas.oystein.ibm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class EarModulesTest {
+
+	private static final File earFile = new File("src/test/resources/echoear-0.0.1-SNAPSHOT.ear");
+	private static final String WAR = "echoweb-0.0.1-SNAPSHOT.war";
+
+	@Test
+	public void testDigests() {
+		Map<String, String> digests = new EarModules(earFile).getDigests();
+		assertEquals(2, digests.size());
+		assertTrue(digests.containsKey(WAR));
+		assertTrue(digests.containsKey(EarModules.OTHER));
+		assertEquals(digests, new EarModules(earFile).getDigests());
+	}
+
+	@Test
+	public void testChangedModules() {
+		EarModules modules = new EarModules(earFile);
+		Map<String, String> previous = new HashMap<>(modules.getDigests());
+		assertTrue(modules.changedModules(previous).isEmpty());
+		previous.put(WAR, "changed");
+		assertEquals(Arrays.asList(WAR), modules.changedModules(previous));
+		previous.put(EarModules.OTHER, "changed");
+		assertNull(modules.changedModules(previous));
+		previous.remove(EarModules.OTHER);
+		assertNull(modules.changedModules(previous));
+	}
+
+	@Test
+	public void testExtract() throws IOException {
+		File moduleFile = File.createTempFile("EarModulesTest", ".war");
+		ZipFile zipFile = new ZipFile(earFile);
+		try {
+			new EarModules(earFile).extract(WAR, moduleFile);
+			byte[] expected = IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry(WAR)));
+			assertTrue(Arrays.equals(expected, FileUtils.readFileToByteArray(moduleFile)));
+		} finally {
+			zipFile.close();
+			moduleFile.delete();
+		}
+	}
+
+}
@@ -0,0 +1,123 @@
+package net.gisnas.oystein.ibm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.websphere.management.filetransfer.client.FileTransferClient;
+import com.ibm.websphere.management.filetransfer.client.TransferFailedException;
+
+public class EarStageTest {
+
+	private static final File EAR_FILE = new File("src/test/resources/echoear-0.0.1-SNAPSHOT.ear");
+
+	private List<String> uploads;
+	private List<String> deletes;
+	private int failures;
+	private int corruptions;
+	private int downloads;
+	/** Files on the deployment manager */
+	private Map<String, File> files;
+	private FileTransferClient client;
+	private EarStage stage;
+
+	@Before
+	public void setUp() {
+		uploads = new ArrayList<>();
+		deletes = new ArrayList<>();
+		files = new HashMap<>();
+		client = (FileTransferClient) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { FileTransferClient.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				switch (method.getName()) {
+				case "uploadFile":
+					uploads.add((String) args[1]);
+					if (failures > 0) {
+						failures--;
+						throw new TransferFailedException("Connection reset");
+					}
+					files.put((String) args[1], corruptions-- > 0 ? new File("src/test/resources/HelloBPEL.ear") : (File) args[0]);
+					return null;
+				case "downloadFile":
+					downloads++;
+					if (!files.containsKey(args[0])) {
+						throw new TransferFailedException("No such file " + args[0]);
+					}
+					FileUtils.copyFile(files.get(args[0]), (File) args[1]);
+					return null;
+				case "deleteFile":
+					deletes.add((String) args[0]);
+					return files.remove(args[0]) != null;
+				case "getServerStagingLocation":
+					return "/opt/was/profiles/dmgr/wstemp/staging";
+				default:
+					throw new UnsupportedOperationException(method.getName());
+				}
+			}
+		});
+		stage = new EarStage(client);
+	}
+
+	@Test
+	public void testStageOnce() {
+		String path = stage.stage(EAR_FILE);
+		assertEquals("/opt/was/profiles/dmgr/wstemp/staging/wsdeploy/" + Digests.sha256(EAR_FILE) + ".ear", path);
+		assertEquals(path, stage.stage(EAR_FILE));
+		assertEquals(1, uploads.size());
+	}
+
+	@Test
+	public void testRetry() {
+		failures = 1;
+		stage.stage(EAR_FILE);
+		assertEquals(2, uploads.size());
+	}
+
+	@Test
+	public void testRetryCorrupted() {
+		corruptions = 1;
+		stage.stage(EAR_FILE);
+		assertEquals(2, uploads.size());
+	}
+
+	@Test
+	public void testForget() {
+		String path = stage.stage(EAR_FILE);
+		assertEquals(path, stage.stage(EAR_FILE));
+		assertEquals(1, downloads);
+		assertEquals(0, stage.getLockCount());
+		files.clear();
+		stage.forget(path);
+		assertEquals(path, stage.stage(EAR_FILE));
+		assertEquals(2, uploads.size());
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testGiveUp() {
+		failures = 3;
+		stage.stage(EAR_FILE);
+	}
+
+	@Test
+	public void testClear() {
+		stage.stage(EAR_FILE);
+		stage.clear();
+		assertEquals(uploads, deletes);
+		stage.stage(EAR_FILE);
+		assertEquals(2, uploads.size());
+		assertTrue(uploads.get(0).startsWith("wsdeploy/"));
+	}
+
+}
@@ -1,13 +1,37 @@
 package net.gisnas.oystein.ibm;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.junit.Test;
 
 public class ScaUtilTest {
 
 	private static final File earFile = new File("src/test/resources/HelloBPEL.ear");
+	private static final int LARGE_MODULE_ENTRIES = 16;
+	private static final int LARGE_MODULE_ENTRY_SIZE = 4 * 1024 * 1024;
 
 	@Test
 	public void testModifyWsImports() throws IOException {
@@ -20,4 +44,322 @@ public class ScaUtilTest {
 		ScaUtil.modifyWsImports(importEndpoints, earFile, targetFile);
 	}
 
+	@Test
+	public void testModifyWsImportsCopiesUnchangedEntries() throws IOException {
+		ImportEndpoint importEndpoint = new ImportEndpoint();
+		importEndpoint.importName = "WSImport1";
+		importEndpoint.endpointUrl = "http://www.example.org";
+		File targetFile = File.createTempFile("ScaUtilTest", null);
+		try {
+			ScaUtil.modifyWsImports(new ImportEndpoint[] { importEndpoint }, earFile, targetFile);
+
+			assertUnchangedEntries(earFile, targetFile, "HelloBPEL.jar");
+			File sourceModule = File.createTempFile("ScaUtilTest", ".jar");
+			File targetModule = File.createTempFile("ScaUtilTest", ".jar");
+			try {
+				FileUtils.writeByteArrayToFile(sourceModule, readEntry(earFile, "HelloBPEL.jar"));
+				FileUtils.writeByteArrayToFile(targetModule, readEntry(targetFile, "HelloBPEL.jar"));
+				assertUnchangedEntries(sourceModule, targetModule, "WSImport1.import");
+			} finally {
+				sourceModule.delete();
+				targetModule.delete();
+			}
+			String importXml = new String(readEntry(targetFile, "HelloBPEL.jar", "WSImport1.import"), "UTF-8");
+			assertTrue(importXml, importXml.contains("endpoint=\"http://www.example.org\""));
+		} finally {
+			targetFile.delete();
+		}
+	}
+
+	@Test
+	public void testModifyWsImportsMultipleModules() throws IOException {
+		File multiModuleEarFile = createMultiModuleEar();
+		File targetFile = File.createTempFile("ScaUtilTest", null);
+		try {
+			ImportEndpoint importEndpoint = new ImportEndpoint();
+			importEndpoint.importName = "WSImport1";
+			importEndpoint.endpointUrl = "http://www.example.org";
+			ScaUtil.modifyWsImports(new ImportEndpoint[] { importEndpoint }, multiModuleEarFile, targetFile);
+
+			for (String module : new String[] { "HelloBPEL.jar", "StoredHelloBPEL.jar" }) {
+				String importXml = new String(readEntry(targetFile, module, "WSImport1.import"), "UTF-8");
+				assertTrue(module + ": " + importXml, importXml.contains("endpoint=\"http://www.example.org\""));
+			}
+		} finally {
+			multiModuleEarFile.delete();
+			targetFile.delete();
+		}
+	}
+
+	/**
+	 * The SCA module must be streamed into the target EAR, not buffered in
+	 * memory
+	 */
+	@Test
+	public void testModifyWsImportsLargeModuleMemory() throws IOException {
+		File largeEarFile = createLargeEar();
+		File targetFile = File.createTempFile("ScaUtilTest", null);
+		try {
+			ImportEndpoint importEndpoint = new ImportEndpoint();
+			importEndpoint.importName = "WSImport1";
+			importEndpoint.endpointUrl = "http://www.example.org";
+
+			long moduleSize = (long) LARGE_MODULE_ENTRIES * LARGE_MODULE_ENTRY_SIZE;
+			long baseline = resetPeakOldGenUsage();
+			ScaUtil.modifyWsImports(new ImportEndpoint[] { importEndpoint }, largeEarFile, targetFile);
+			long peakIncrease = peakOldGenUsage() - baseline;
+			assertTrue("Old generation usage increased by " + peakIncrease + " bytes while rewriting a module of " + moduleSize + " bytes", peakIncrease < moduleSize / 2);
+		} finally {
+			largeEarFile.delete();
+			targetFile.delete();
+		}
+	}
+
+	@Test
+	public void testModifyWsImportsBatch() throws IOException {
+		ImportEndpoint test = new ImportEndpoint();
+		test.importName = "WSImport1";
+		test.endpointUrl = "http://test.example.org";
+		ImportEndpoint prod = new ImportEndpoint();
+		prod.importName = "WSImport1";
+		prod.endpointUrl = "http://prod.example.org";
+		File testFile = File.createTempFile("ScaUtilTest", null);
+		File prodFile = File.createTempFile("ScaUtilTest", null);
+		File missingEarFile = new File("src/test/resources/Missing.ear");
+		try {
+			List<EarVariants> ears = new ArrayList<>();
+			ears.add(new EarVariants(earFile).addVariant("test", new ImportEndpoint[] { test }, testFile).addVariant("prod", new ImportEndpoint[] { prod }, prodFile));
+			ears.add(new EarVariants(missingEarFile).addVariant("test", new ImportEndpoint[] { test }, new File("target/Missing-test.ear")));
+			BatchReport report = ScaUtil.modifyWsImports(ears, 2);
+
+			assertEquals(5, report.getResults().size());
+			assertEquals(2, report.getFailures().size());
+			for (BatchReport.Result failure : report.getFailures()) {
+				assertEquals(missingEarFile, failure.getEarFile());
+			}
+			String testXml = new String(readEntry(testFile, "HelloBPEL.jar", "WSImport1.import"), "UTF-8");
+			assertTrue(testXml, testXml.contains("endpoint=\"http://test.example.org\""));
+			String prodXml = new String(readEntry(prodFile, "HelloBPEL.jar", "WSImport1.import"), "UTF-8");
+			assertTrue(prodXml, prodXml.contains("endpoint=\"http://prod.example.org\""));
+		} finally {
+			testFile.delete();
+			prodFile.delete();
+		}
+	}
+
+	@Test
+	public void testModifyWsImportsInPlace() throws IOException {
+		ImportEndpoint importEndpoint = new ImportEndpoint();
+		importEndpoint.importName = "WSImport1";
+		importEndpoint.endpointUrl = "http://www.example.org";
+		File targetFile = File.createTempFile("ScaUtilTest", null);
+		try {
+			FileUtils.copyFile(earFile, targetFile);
+			ScaUtil.modifyWsImportsInPlace(new ImportEndpoint[] { importEndpoint }, targetFile);
+
+			assertTrue(targetFile.length() > earFile.length());
+			assertUnchangedEntries(earFile, targetFile, "HelloBPEL.jar");
+			String importXml = new String(readEntry(targetFile, "HelloBPEL.jar", "WSImport1.import"), "UTF-8");
+			assertTrue(importXml, importXml.contains("endpoint=\"http://www.example.org\""));
+
+			long appendedLength = targetFile.length();
+			ScaUtil.compactArchive(targetFile);
+			assertTrue(targetFile.length() < appendedLength);
+			assertUnchangedEntries(earFile, targetFile, "HelloBPEL.jar");
+			importXml = new String(readEntry(targetFile, "HelloBPEL.jar", "WSImport1.import"), "UTF-8");
+			assertTrue(importXml, importXml.contains("endpoint=\"http://www.example.org\""));
+		} finally {
+			targetFile.delete();
+		}
+	}
+
+	@Test
+	public void testModifyBindings() throws IOException {
+		BindingRule importRule = new BindingRule("WSImport1", "JaxWsImportBinding", "esbBinding/@endpoint", "http://www.example.org");
+		BindingRule exportRule = new BindingRule("WSExport1", "jaxws:JaxWsExportBinding", "esbBinding/@port", "ns1:OtherPort");
+		File targetFile = File.createTempFile("ScaUtilTest", null);
+		try {
+			ScaUtil.modifyBindings(new BindingRule[] { importRule, exportRule }, earFile, targetFile);
+
+			String importXml = new String(readEntry(targetFile, "HelloBPEL.jar", "WSImport1.import"), "UTF-8");
+			assertTrue(importXml, importXml.contains("endpoint=\"http://www.example.org\""));
+			String exportXml = new String(readEntry(targetFile, "HelloBPEL.jar", "WSExport1.export"), "UTF-8");
+			assertTrue(exportXml, exportXml.contains("port=\"ns1:OtherPort\""));
+		} finally {
+			targetFile.delete();
+		}
+	}
+
+	/**
+	 * Create an EAR with one SCA module containing the import from HelloBPEL
+	 * and incompressible padding entries
+	 */
+	private static File createLargeEar() throws IOException {
+		File moduleJar = File.createTempFile("ScaUtilTest", ".jar");
+		File largeEarFile = File.createTempFile("ScaUtilTest", ".ear");
+		try {
+			ZipOutputStream jar = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(moduleJar)));
+			try {
+				jar.putNextEntry(new ZipEntry("sca.module"));
+				IOUtils.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?><scdl:module xmlns:scdl=\"http://www.ibm.com/xmlns/prod/websphere/scdl/6.0.0\" name=\"Large\"/>", jar, "UTF-8");
+				jar.putNextEntry(new ZipEntry("WSImport1.import"));
+				IOUtils.write(readEntry(earFile, "HelloBPEL.jar", "WSImport1.import"), jar);
+				Random random = new Random(0);
+				byte[] buffer = new byte[64 * 1024];
+				for (int i = 0; i < LARGE_MODULE_ENTRIES; i++) {
+					jar.putNextEntry(new ZipEntry("padding/" + i + ".bin"));
+					for (int written = 0; written < LARGE_MODULE_ENTRY_SIZE; written += buffer.length) {
+						random.nextBytes(buffer);
+						jar.write(buffer);
+					}
+				}
+			} finally {
+				IOUtils.closeQuietly(jar);
+			}
+
+			ZipOutputStream ear = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(largeEarFile)));
+			InputStream is = new FileInputStream(moduleJar);
+			try {
+				ear.putNextEntry(new ZipEntry("Large.jar"));
+				IOUtils.copy(is, ear);
+			} finally {
+				IOUtils.closeQuietly(is);
+				IOUtils.closeQuietly(ear);
+			}
+			return largeEarFile;
+		} finally {
+			moduleJar.delete();
+		}
+	}
+
+	/**
+	 * Assert that all entries but changedEntry are copied with the same
+	 * compressed data
+	 */
+	private static void assertUnchangedEntries(File sourceFile, File targetFile, String changedEntry) throws IOException {
+		ZipFile source = new ZipFile(sourceFile);
+		ZipFile target = new ZipFile(targetFile);
+		try {
+			assertEquals(source.size(), target.size());
+			Enumeration<? extends ZipEntry> entries = source.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry sourceEntry = entries.nextElement();
+				ZipEntry targetEntry = target.getEntry(sourceEntry.getName());
+				if (!sourceEntry.getName().equals(changedEntry)) {
+					assertEquals(sourceEntry.getName(), sourceEntry.getCrc(), targetEntry.getCrc());
+					assertEquals(sourceEntry.getName(), sourceEntry.getCompressedSize(), targetEntry.getCompressedSize());
+					assertEquals(sourceEntry.getName(), sourceEntry.getTime(), targetEntry.getTime());
+				}
+			}
+		} finally {
+			IOUtils.closeQuietly(source);
+			IOUtils.closeQuietly(target);
+		}
+	}
+
+	/**
+	 * Create an EAR with the HelloBPEL module both deflated and stored, and a
+	 * library jar
+	 */
+	private static File createMultiModuleEar() throws IOException {
+		byte[] module = readEntry(earFile, "HelloBPEL.jar");
+		File multiModuleEarFile = File.createTempFile("ScaUtilTest", ".ear");
+		ZipOutputStream ear = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(multiModuleEarFile)));
+		try {
+			ear.putNextEntry(new ZipEntry("lib/library.jar"));
+			ZipOutputStream library = new ZipOutputStream(new CloseShieldOutputStream(ear));
+			library.putNextEntry(new ZipEntry("library.properties"));
+			IOUtils.write("library=true", library, "UTF-8");
+			library.close();
+			ear.putNextEntry(new ZipEntry("HelloBPEL.jar"));
+			IOUtils.write(module, ear);
+			ZipEntry storedEntry = new ZipEntry("StoredHelloBPEL.jar");
+			storedEntry.setMethod(ZipEntry.STORED);
+			storedEntry.setSize(module.length);
+			CRC32 crc = new CRC32();
+			crc.update(module);
+			storedEntry.setCrc(crc.getValue());
+			ear.putNextEntry(storedEntry);
+			IOUtils.write(module, ear);
+		} finally {
+			IOUtils.closeQuietly(ear);
+		}
+		return multiModuleEarFile;
+	}
+
+	private static byte[] readEntry(File ear, String entryName) throws IOException {
+		ZipFile zipFile = new ZipFile(ear);
+		try {
+			InputStream is = zipFile.getInputStream(zipFile.getEntry(entryName));
+			try {
+				return IOUtils.toByteArray(is);
+			} finally {
+				IOUtils.closeQuietly(is);
+			}
+		} finally {
+			IOUtils.closeQuietly(zipFile);
+		}
+	}
+
+	private static byte[] readEntry(File ear, String jarName, String entryName) throws IOException {
+		ZipFile zipFile = new ZipFile(ear);
+		try {
+			ZipInputStream jar = new ZipInputStream(zipFile.getInputStream(zipFile.getEntry(jarName)));
+			ZipEntry entry;
+			while ((entry = jar.getNextEntry()) != null) {
+				if (entry.getName().equals(entryName)) {
+					return IOUtils.toByteArray(jar);
+				}
+			}
+			throw new IllegalStateException(entryName + " not found in " + jarName);
+		} finally {
+			IOUtils.closeQuietly(zipFile);
+		}
+	}
+
+	/**
+	 * Collect garbage, then reset the peak usage of the old generation
+	 *
+	 * Only the old generation is measured, since short-lived garbage fills
+	 * the young generation regardless of how the module is copied. A buffer
+	 * of the module's size would be promoted, or allocated there directly.
+	 *
+	 * @return used old generation
+	 */
+	private static long resetPeakOldGenUsage() {
+		System.gc();
+		long used = 0;
+		for (MemoryPoolMXBean pool : oldGenerationPools()) {
+			pool.resetPeakUsage();
+			used += pool.getUsage().getUsed();
+		}
+		return used;
+	}
+
+	private static long peakOldGenUsage() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : oldGenerationPools()) {
+			peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+
+	/**
+	 * @return old generation pools, or all heap pools for collectors without
+	 *         generations
+	 */
+	private static List<MemoryPoolMXBean> oldGenerationPools() {
+		List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+		List<MemoryPoolMXBean> oldPools = new ArrayList<>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				heapPools.add(pool);
+				if (pool.getName().contains("Old") || pool.getName().contains("Tenured")) {
+					oldPools.add(pool);
+				}
+			}
+		}
+		return oldPools.isEmpty() ? heapPools : oldPools;
+	}
+
 }
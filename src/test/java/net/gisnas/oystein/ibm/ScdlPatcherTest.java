@@ -0,0 +1,95 @@
+package net.gisnas.oystein.ibm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ScdlPatcherTest {
+
+	private static final String IMPORT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<!-- <esbBinding endpoint=\"commented\"/> -->\n"
+			+ "<scdl:import xmlns:scdl=\"http://www.ibm.com/xmlns/prod/websphere/scdl/6.0.0\" displayName=\"Import &amp; more\" name=\"Import&amp;1\">\n"
+			+ "  <interfaces>\n"
+			+ "    <interface portType='ns1:Echo'/>\n"
+			+ "  </interfaces>\n"
+			+ "  <esbBinding  endpoint = 'http://localhost:9080/old'\n"
+			+ "      port=\"ns1:EchoHttpPort\"/>\n"
+			+ "</scdl:import>";
+
+	@Test
+	public void testReadName() throws IOException {
+		assertEquals("Import&1", ScdlPatcher.readName(IMPORT.getBytes("UTF-8")));
+	}
+
+	@Test
+	public void testReadNameFromStream() throws IOException {
+		StringBuilder padding = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			padding.append(" a").append(i).append("=\"value\"");
+		}
+		String scdl = IMPORT.replace("name=\"Import&amp;1\"", padding + " name=\"Import&amp;1\"");
+		byte[] bytes = (scdl + "<!--" + new String(new char[100000]).replace('\0', ' ') + "-->").getBytes("UTF-8");
+		ByteArrayInputStream is = new ByteArrayInputStream(bytes);
+		assertEquals("Import&1", ScdlPatcher.readName(is));
+		assertTrue("Read past the root start tag", is.available() > bytes.length - 10000);
+	}
+
+	@Test
+	public void testSetEndpoint() throws IOException {
+		byte[] patched = ScdlPatcher.setEndpoint(IMPORT.getBytes("UTF-8"), "http://example.org/new?a=1&b='2'");
+		assertEquals(IMPORT.replace("http://localhost:9080/old", "http://example.org/new?a=1&amp;b=&apos;2&apos;"), new String(patched, "UTF-8"));
+	}
+
+	@Test
+	public void testSetEndpointKeepsEncoding() throws IOException {
+		String latin1 = IMPORT.replace("UTF-8", "ISO-8859-1").replace("more", "m\u00f8re");
+		byte[] patched = ScdlPatcher.setEndpoint(latin1.getBytes("ISO-8859-1"), "http://example.org/\u00e6");
+		assertEquals(latin1.replace("http://localhost:9080/old", "http://example.org/\u00e6"), new String(patched, "ISO-8859-1"));
+	}
+
+	@Test
+	public void testSetEndpointKeepsByteOrder() throws IOException {
+		String utf16 = "\ufeff" + IMPORT.replace("UTF-8", "UTF-16");
+		byte[] patched = ScdlPatcher.setEndpoint(utf16.getBytes("UTF-16LE"), "http://example.org/new");
+		assertEquals(utf16.replace("http://localhost:9080/old", "http://example.org/new"), new String(patched, "UTF-16LE"));
+		assertEquals("Import&1", ScdlPatcher.readName(patched));
+	}
+
+	@Test
+	public void testSetEndpointEscapesWhitespace() throws IOException {
+		byte[] patched = ScdlPatcher.setEndpoint(IMPORT.getBytes("UTF-8"), "http://example.org/\ta\r\nb");
+		assertEquals(IMPORT.replace("http://localhost:9080/old", "http://example.org/&#9;a&#13;&#10;b"), new String(patched, "UTF-8"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetEndpointWithoutBinding() throws IOException {
+		ScdlPatcher.setEndpoint("<scdl:import name=\"Import1\"/>".getBytes("UTF-8"), "http://example.org");
+	}
+
+	@Test
+	public void testSetAttributes() throws IOException {
+		String jmsImport = "<scdl:import xmlns:scdl=\"http://www.ibm.com/xmlns/prod/websphere/scdl/6.0.0\" name=\"JMSImport1\">\n"
+				+ "  <esbBinding xsi:type=\"jms:JMSImportBinding\">\n"
+				+ "    <connection target=\"jms/OldCF\"/>\n"
+				+ "    <sendDestination target=\"jms/OldQueue\"/>\n"
+				+ "  </esbBinding>\n"
+				+ "</scdl:import>";
+		BindingRule connection = new BindingRule("JMSImport1", "JMSImportBinding", "esbBinding/connection/@target", "jms/NewCF");
+		BindingRule destination = new BindingRule("JMSImport1", null, "esbBinding/sendDestination/@target", "jms/NewQueue");
+		BindingRule name = new BindingRule("JMSImport1", null, "@name", "JMSImport2");
+		byte[] patched = ScdlPatcher.setAttributes(jmsImport.getBytes("UTF-8"), Arrays.asList(connection, destination, name));
+		assertEquals(jmsImport.replace("jms/OldCF", "jms/NewCF").replace("jms/OldQueue", "jms/NewQueue").replace("\"JMSImport1\"", "\"JMSImport2\""), new String(patched, "UTF-8"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetAttributesOtherBindingType() throws IOException {
+		BindingRule rule = new BindingRule("Import&1", "MQImportBinding", "esbBinding/@endpoint", "http://example.org");
+		ScdlPatcher.setAttributes(IMPORT.getBytes("UTF-8"), Arrays.asList(rule));
+	}
+
+}
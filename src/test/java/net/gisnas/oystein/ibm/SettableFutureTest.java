@@ -0,0 +1,78 @@
+package net.gisnas.oystein.ibm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+public class SettableFutureTest {
+
+	@Test
+	public void testCallbacks() throws Exception {
+		SettableFuture<String> future = new SettableFuture<>();
+		List<Object> outcomes = new ArrayList<>();
+		future.addCallback(new Recorder(outcomes));
+		assertTrue(outcomes.isEmpty());
+		assertTrue(future.set("done"));
+		assertFalse(future.set("again"));
+		future.addCallback(new Recorder(outcomes));
+		assertEquals(2, outcomes.size());
+		assertEquals("done", outcomes.get(0));
+		assertEquals("done", outcomes.get(1));
+		assertEquals("done", future.get());
+	}
+
+	@Test
+	public void testCancel() {
+		SettableFuture<String> future = new SettableFuture<>();
+		List<Object> outcomes = new ArrayList<>();
+		future.addCallback(new Recorder(outcomes));
+		assertTrue(future.cancel(false));
+		assertFalse(future.setException(new RuntimeException()));
+		assertTrue(future.isCancelled());
+		assertTrue(outcomes.get(0) instanceof CancellationException);
+	}
+
+	@Test
+	public void testSetFuture() throws InterruptedException {
+		SettableFuture<String> source = new SettableFuture<>();
+		SettableFuture<String> target = new SettableFuture<>();
+		target.setFuture(source);
+		RuntimeException failure = new RuntimeException("failed");
+		source.setException(failure);
+		try {
+			target.get();
+		} catch (ExecutionException e) {
+			assertEquals(failure, e.getCause());
+			return;
+		}
+		throw new AssertionError("Expected failure");
+	}
+
+	private static class Recorder implements SettableFuture.Callback<String> {
+
+		private final List<Object> outcomes;
+
+		Recorder(List<Object> outcomes) {
+			this.outcomes = outcomes;
+		}
+
+		@Override
+		public void onSuccess(String value) {
+			outcomes.add(value);
+		}
+
+		@Override
+		public void onFailure(Throwable t) {
+			outcomes.add(t);
+		}
+
+	}
+
+}